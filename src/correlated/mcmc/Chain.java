@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import beast.core.Distribution;
+import beast.core.Operator;
+import beast.core.State;
+import beast.util.Randomizer;
+
+/**
+ * A bare Metropolis-Hastings loop over a BEAST State, for drivers that run
+ * many analyses in one process and inspect them between steps instead of
+ * going through loggers. The target density can be tempered: With inverse
+ * temperature beta, the chain samples from prior × likelihood^beta, where the
+ * likelihood is the given part of the posterior (or the whole posterior, if
+ * no likelihood is given).
+ *
+ * The loop mirrors the one in beast.core.MCMC, so operators and calculation
+ * nodes see the same store/restore/accept calls as in a normal analysis.
+ * The chain picks operators and accepts moves with its own generator instead
+ * of the global, synchronized Randomizer, so that chains on different threads
+ * do not wait for each other there. The operators' proposals still use the
+ * Randomizer.
+ */
+public class Chain {
+	protected final State state;
+	protected final Distribution posterior;
+	protected final Distribution likelihood;
+	protected final Operator[] operators;
+	protected final double[] cumulativeWeights;
+	protected final SplittableRandom random;
+
+	protected double beta = 1.0;
+	protected boolean optimise = true;
+	protected double logPosterior;
+	protected double logLikelihood;
+	protected int sample = 0;
+	protected long accepted = 0;
+
+	/**
+	 * A chain whose own generator is seeded from the Randomizer.
+	 */
+	public Chain(State state, Distribution posterior, Distribution likelihood, List<Operator> operators) {
+		this(state, posterior, likelihood, operators, Randomizer.nextLong());
+	}
+
+	public Chain(State state, Distribution posterior, Distribution likelihood, List<Operator> operators,
+			long seed) {
+		this.state = state;
+		random = new SplittableRandom(seed);
+		this.posterior = posterior;
+		this.likelihood = likelihood;
+		this.operators = operators.toArray(new Operator[operators.size()]);
+		cumulativeWeights = new double[this.operators.length];
+		double total = 0;
+		for (int i = 0; i < this.operators.length; ++i) {
+			total += this.operators[i].getWeight();
+			cumulativeWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Set up the calculation graph of the state and calculate the posterior
+	 * for the first time. Call this once before the first step.
+	 */
+	public void initialise() {
+		state.initialise();
+		state.setPosterior(posterior);
+		recalculate();
+	}
+
+	/**
+	 * Recalculate everything from scratch, eg. after the state was changed
+	 * from outside the chain.
+	 */
+	public void recalculate() {
+		logPosterior = state.robustlyCalcPosterior(posterior);
+		logLikelihood = likelihood == null ? logPosterior : likelihood.getCurrentLogP();
+	}
+
+	protected Operator selectOperator() {
+		double u = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+		for (int i = 0; i < cumulativeWeights.length; ++i) {
+			if (u < cumulativeWeights[i]) {
+				return operators[i];
+			}
+		}
+		return operators[operators.length - 1];
+	}
+
+	/**
+	 * @return the log of the (tempered) target density for the given
+	 *         posterior and likelihood values
+	 */
+	public double tempered(double logPosterior, double logLikelihood) {
+		if (beta == 1.0) {
+			return logPosterior;
+		}
+		return logPosterior - (1.0 - beta) * logLikelihood;
+	}
+
+	/**
+	 * Propose one move and accept or reject it.
+	 *
+	 * @return whether the move was accepted
+	 */
+	public boolean step() {
+		state.store(sample);
+		++sample;
+		Operator operator = selectOperator();
+		double logHastingsRatio = operator.proposal();
+		if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+			operator.reject();
+			state.restore();
+			state.setEverythingDirty(false);
+			return false;
+		}
+
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		double newLogPosterior = posterior.calculateLogP();
+		double newLogLikelihood = likelihood == null ? newLogPosterior : likelihood.getCurrentLogP();
+		double logAlpha = tempered(newLogPosterior, newLogLikelihood) - tempered(logPosterior, logLikelihood)
+				+ logHastingsRatio;
+		boolean accept = logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha);
+		if (accept) {
+			logPosterior = newLogPosterior;
+			logLikelihood = newLogLikelihood;
+			state.acceptCalculationNodes();
+			operator.accept();
+			++accepted;
+		} else {
+			operator.reject();
+			state.restore();
+			state.restoreCalculationNodes();
+		}
+		state.setEverythingDirty(false);
+		if (optimise) {
+			operator.optimize(logAlpha);
+		}
+		return accept;
+	}
+
+	public void run(int steps) {
+		for (int i = 0; i < steps; ++i) {
+			step();
+		}
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	public Distribution getPosterior() {
+		return posterior;
+	}
+
+	public double getLogPosterior() {
+		return logPosterior;
+	}
+
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	public double getBeta() {
+		return beta;
+	}
+
+	public void setBeta(double beta) {
+		this.beta = beta;
+	}
+
+	public void setOptimise(boolean optimise) {
+		this.optimise = optimise;
+	}
+
+	public int getSampleCount() {
+		return sample;
+	}
+
+	public double getAcceptanceRate() {
+		return sample == 0 ? 0.0 : accepted / (double) sample;
+	}
+}
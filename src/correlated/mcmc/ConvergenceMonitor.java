@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.parameter.IntegerParameter;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.IndependencyLogger;
+
+@Description("Tracks the effective sample size (batch means) and split-chain R-hat of the likelihood,"
+		+ " the number of rate groups and the dependency edges of an IndependencyLogger, from the samples"
+		+ " of the logger it is part of. Together with an EarlyStoppingMCMC, it ends the run once all"
+		+ " of them are converged.")
+public class ConvergenceMonitor extends BEASTObject implements Loggable {
+	public Input<Function> likelihoodInput = new Input<Function>("likelihood", "the likelihood to monitor");
+	public Input<IntegerParameter> sizesInput = new Input<IntegerParameter>("sizes",
+			"the sizes of the rate groups; their number of non-empty groups is monitored");
+	public Input<IndependencyLogger> independenciesInput = new Input<IndependencyLogger>("independencies",
+			"a logger whose dependency edge indicators are monitored");
+	public Input<Double> minESSInput = new Input<Double>("minESS",
+			"the effective sample size every monitored value must reach", 200.0);
+	public Input<Double> maxRHatInput = new Input<Double>("maxRHat",
+			"the split-chain R-hat every monitored value must stay below", 1.01);
+	public Input<Double> burninInput = new Input<Double>("burninPercentage",
+			"the percentage of samples discarded before calculating diagnostics", 10.0);
+	public Input<Integer> checkEveryInput = new Input<Integer>("checkEvery",
+			"the number of logged samples between recalculations of the diagnostics", 100);
+
+	protected List<String> names;
+	/** The trace of every monitored value, in the same order as names */
+	protected double[][] traces;
+	protected int samples;
+	protected double[] ess;
+	protected double[] rHat;
+	protected boolean converged = false;
+	protected int convergedAt = -1;
+
+	@Override
+	public void initAndValidate() {
+		names = new ArrayList<String>();
+		if (likelihoodInput.get() != null) {
+			names.add("likelihood");
+		}
+		if (sizesInput.get() != null) {
+			names.add("groups");
+		}
+		if (independenciesInput.get() != null) {
+			int components = independenciesInput.get().csmInput.get().getShape().length;
+			for (int component1 = 0; component1 < components; ++component1) {
+				for (int component2 = 0; component2 < component1; ++component2) {
+					names.add(component1 + "_depends_on_" + component2);
+					names.add(component2 + "_depends_on_" + component1);
+				}
+			}
+		}
+		if (names.isEmpty()) {
+			throw new IllegalArgumentException("ConvergenceMonitor needs something to monitor");
+		}
+		if (burninInput.get() < 0 || burninInput.get() >= 100) {
+			throw new IllegalArgumentException("burninPercentage must be at least 0 and less than 100");
+		}
+		if (checkEveryInput.get() < 1) {
+			throw new IllegalArgumentException("checkEvery must be positive");
+		}
+		reset();
+	}
+
+	protected void reset() {
+		traces = new double[names.size()][256];
+		samples = 0;
+		ess = new double[names.size()];
+		rHat = new double[names.size()];
+		Arrays.fill(rHat, Double.POSITIVE_INFINITY);
+		converged = false;
+		convergedAt = -1;
+	}
+
+	/** Add the current values of everything monitored to the traces. */
+	protected void record() {
+		if (samples == traces[0].length) {
+			for (int i = 0; i < traces.length; ++i) {
+				traces[i] = Arrays.copyOf(traces[i], 2 * samples);
+			}
+		}
+		int i = 0;
+		if (likelihoodInput.get() != null) {
+			traces[i++][samples] = likelihoodInput.get().getArrayValue();
+		}
+		if (sizesInput.get() != null) {
+			IntegerParameter sizes = sizesInput.get();
+			int groups = 0;
+			for (int g = 0; g < sizes.getDimension(); ++g) {
+				if (sizes.getValue(g) > 0) {
+					++groups;
+				}
+			}
+			traces[i++][samples] = groups;
+		}
+		if (independenciesInput.get() != null) {
+			CorrelatedSubstitutionModel csm = independenciesInput.get().csmInput.get();
+			int components = csm.getShape().length;
+			for (int component1 = 0; component1 < components; ++component1) {
+				for (int component2 = 0; component2 < component1; ++component2) {
+					traces[i++][samples] = csm.depends(component1, component2) ? 1.0 : 0.0;
+					traces[i++][samples] = csm.depends(component2, component1) ? 1.0 : 0.0;
+				}
+			}
+		}
+		++samples;
+	}
+
+	/** Recalculate the diagnostics of all traces after the burn-in. */
+	protected void check(int sample) {
+		int start = (int) (samples * burninInput.get() / 100.0);
+		boolean all = true;
+		for (int i = 0; i < traces.length; ++i) {
+			ess[i] = batchMeansESS(traces[i], start, samples);
+			rHat[i] = splitRHat(traces[i], start, samples);
+			if (!(ess[i] >= minESSInput.get() && rHat[i] <= maxRHatInput.get())) {
+				all = false;
+			}
+		}
+		if (all && !converged) {
+			convergedAt = sample;
+		}
+		converged = all;
+	}
+
+	/**
+	 * The effective sample size of trace[start..end) by the method of batch
+	 * means, with batches of length √n. A constant trace counts as n
+	 * independent samples.
+	 */
+	public static double batchMeansESS(double[] trace, int start, int end) {
+		int n = end - start;
+		int batchLength = (int) Math.sqrt(n);
+		int batches = batchLength == 0 ? 0 : n / batchLength;
+		if (batches < 2) {
+			return 0.0;
+		}
+		// Use the last batches·batchLength samples.
+		start = end - batches * batchLength;
+		n = batches * batchLength;
+		double mean = 0.0;
+		for (int k = start; k < end; ++k) {
+			mean += trace[k];
+		}
+		mean /= n;
+		double variance = 0.0;
+		double batchVariance = 0.0;
+		for (int b = 0; b < batches; ++b) {
+			double batchMean = 0.0;
+			for (int k = start + b * batchLength; k < start + (b + 1) * batchLength; ++k) {
+				batchMean += trace[k];
+				variance += (trace[k] - mean) * (trace[k] - mean);
+			}
+			batchMean /= batchLength;
+			batchVariance += (batchMean - mean) * (batchMean - mean);
+		}
+		variance /= n - 1;
+		// The asymptotic variance of the mean, times n
+		batchVariance *= batchLength / (double) (batches - 1);
+		if (batchVariance == 0.0) {
+			return variance == 0.0 ? n : Double.POSITIVE_INFINITY;
+		}
+		return n * variance / batchVariance;
+	}
+
+	/**
+	 * The potential scale reduction factor of Gelman and Rubin, treating the
+	 * two halves of trace[start..end) as separate chains.
+	 */
+	public static double splitRHat(double[] trace, int start, int end) {
+		int half = (end - start) / 2;
+		if (half < 2) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double[] means = new double[2];
+		double[] variances = new double[2];
+		for (int h = 0; h < 2; ++h) {
+			int from = end - (2 - h) * half;
+			double mean = 0.0;
+			for (int k = from; k < from + half; ++k) {
+				mean += trace[k];
+			}
+			mean /= half;
+			double variance = 0.0;
+			for (int k = from; k < from + half; ++k) {
+				variance += (trace[k] - mean) * (trace[k] - mean);
+			}
+			means[h] = mean;
+			variances[h] = variance / (half - 1);
+		}
+		double within = (variances[0] + variances[1]) / 2;
+		// Between-chain variance divided by the chain length
+		double between = (means[0] - means[1]) * (means[0] - means[1]) / 2;
+		if (within == 0.0) {
+			return between == 0.0 ? 1.0 : Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(((half - 1) * within / half + between) / within);
+	}
+
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/** @return the sample at which all diagnostics were last met, or -1 */
+	public int getConvergedAt() {
+		return convergedAt;
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	public double getESS(int i) {
+		return ess[i];
+	}
+
+	public double getRHat(int i) {
+		return rHat[i];
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		reset();
+		for (String name : names) {
+			out.print(getID() + ".ESS(" + name + ")\t");
+			out.print(getID() + ".Rhat(" + name + ")\t");
+		}
+	}
+
+	@Override
+	public void log(int sample, PrintStream out) {
+		record();
+		if (samples % checkEveryInput.get() == 0) {
+			check(sample);
+		}
+		for (int i = 0; i < names.size(); ++i) {
+			out.print(String.format(Locale.ROOT, "%.1f\t%.4f\t", ess[i], rHat[i]));
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+		// nothing to do
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import beast.util.Randomizer;
+
+/**
+ * Metropolis-coupled MCMC (heated chains, Geyer 1991) over independent
+ * copies of one analysis. Every chain runs on its own thread for a number of
+ * steps, then neighbouring temperatures propose to swap.
+ *
+ * A swap exchanges the inverse temperatures of two chains, not their states:
+ * Every chain keeps its parameters, groupings and the eigen systems cached
+ * by its substitution model, which are all consistent with each other, so
+ * nothing has to be copied, re-initialised or recalculated. The cold chain,
+ * whose samples are the ones of interest, is whichever chain currently has
+ * beta = 1, see getColdChain().
+ *
+ * Chain i starts with beta = 1 / (1 + i·heating).
+ */
+public class CoupledChains {
+	protected final Chain[] chains;
+	/** The chain at each temperature, from cold to hot */
+	protected final int[] chainAt;
+	protected final double[] betas;
+
+	protected final long[] swapsProposed;
+	protected final long[] swapsAccepted;
+	protected final long[] busyNanos;
+	protected final SplittableRandom random;
+
+	/**
+	 * Coupled chains whose swaps are drawn with a generator seeded from the
+	 * Randomizer.
+	 */
+	public CoupledChains(List<Chain> chains, double heating) {
+		this(chains, heating, Randomizer.nextLong());
+	}
+
+	public CoupledChains(List<Chain> chains, double heating, long seed) {
+		if (chains.isEmpty()) {
+			throw new IllegalArgumentException("Need at least one chain");
+		}
+		if (heating <= 0) {
+			throw new IllegalArgumentException("heating must be positive");
+		}
+		this.chains = chains.toArray(new Chain[chains.size()]);
+		chainAt = new int[this.chains.length];
+		betas = new double[this.chains.length];
+		for (int i = 0; i < this.chains.length; ++i) {
+			chainAt[i] = i;
+			betas[i] = 1.0 / (1.0 + i * heating);
+			this.chains[i].setBeta(betas[i]);
+		}
+		swapsProposed = new long[Math.max(0, this.chains.length - 1)];
+		swapsAccepted = new long[swapsProposed.length];
+		busyNanos = new long[this.chains.length];
+		random = new SplittableRandom(seed);
+	}
+
+	/**
+	 * Initialise all chains. Call this once before the first round.
+	 */
+	public void initialise() {
+		for (Chain chain : chains) {
+			chain.initialise();
+		}
+	}
+
+	/**
+	 * Run every chain for `steps` steps on the given pool, then propose one
+	 * swap between a random pair of neighbouring temperatures. The calling
+	 * thread runs the chains no worker has started, so it may itself be a
+	 * worker of the pool.
+	 */
+	public void round(ExecutorService pool, final int steps) {
+		List<FutureTask<Void>> running = new ArrayList<FutureTask<Void>>(chains.length);
+		for (int i = 0; i < chains.length; ++i) {
+			final int c = i;
+			running.add(Tasks.start(pool, () -> {
+				long start = System.nanoTime();
+				chains[c].run(steps);
+				busyNanos[c] += System.nanoTime() - start;
+			}));
+		}
+		Tasks.await(running);
+		if (chains.length > 1) {
+			proposeSwap(random.nextInt(chains.length - 1));
+		}
+	}
+
+	/**
+	 * Run `rounds` rounds of `steps` steps each, with one thread per chain.
+	 */
+	public void run(int rounds, int steps) {
+		ExecutorService pool = Executors.newFixedThreadPool(chains.length);
+		try {
+			for (int i = 0; i < rounds; ++i) {
+				round(pool, steps);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Propose to swap the temperatures `t` and `t+1`. With likelihoods L and
+	 * inverse temperatures β, the acceptance probability is
+	 * min(1, (L_j / L_i)^(β_i - β_j)).
+	 *
+	 * @return whether the swap was accepted
+	 */
+	public boolean proposeSwap(int t) {
+		Chain colder = chains[chainAt[t]];
+		Chain hotter = chains[chainAt[t + 1]];
+		double logAlpha = (betas[t] - betas[t + 1]) * (hotter.getLogLikelihood() - colder.getLogLikelihood());
+		++swapsProposed[t];
+		if (logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha)) {
+			colder.setBeta(betas[t + 1]);
+			hotter.setBeta(betas[t]);
+			int swap = chainAt[t];
+			chainAt[t] = chainAt[t + 1];
+			chainAt[t + 1] = swap;
+			++swapsAccepted[t];
+			return true;
+		}
+		return false;
+	}
+
+	/** @return the chain that currently samples from the posterior */
+	public Chain getColdChain() {
+		return chains[chainAt[0]];
+	}
+
+	/** @return the index, in the list given to the constructor, of the cold chain */
+	public int getColdChainIndex() {
+		return chainAt[0];
+	}
+
+	public int getChainCount() {
+		return chains.length;
+	}
+
+	/** @return the fraction of accepted swaps between temperatures `t` and `t+1` */
+	public double getSwapAcceptance(int t) {
+		return swapsProposed[t] == 0 ? 0.0 : swapsAccepted[t] / (double) swapsProposed[t];
+	}
+
+	/** @return the number of swaps proposed over all pairs of temperatures */
+	public long getSwapsProposed() {
+		long proposed = 0;
+		for (long p : swapsProposed) {
+			proposed += p;
+		}
+		return proposed;
+	}
+
+	/** @return the number of swaps accepted over all pairs of temperatures */
+	public long getSwapsAccepted() {
+		long accepted = 0;
+		for (long a : swapsAccepted) {
+			accepted += a;
+		}
+		return accepted;
+	}
+
+	/** @return the fraction of accepted swaps over all pairs of temperatures */
+	public double getSwapAcceptance() {
+		long proposed = getSwapsProposed();
+		return proposed == 0 ? 0.0 : getSwapsAccepted() / (double) proposed;
+	}
+
+	/** @return the steps per second chain `c` made while it was running */
+	public double getThroughput(int c) {
+		return busyNanos[c] == 0 ? 0.0 : chains[c].getSampleCount() * 1e9 / busyNanos[c];
+	}
+
+	/**
+	 * @return a human-readable summary of swap acceptance between
+	 *         neighbouring temperatures and of the throughput of every chain
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (int t = 0; t < swapsProposed.length; ++t) {
+			report.append(String.format(Locale.ROOT, "swap beta %.3f <-> %.3f: %d/%d accepted (%.1f%%)\n", betas[t],
+					betas[t + 1], swapsAccepted[t], swapsProposed[t], 100 * getSwapAcceptance(t)));
+		}
+		for (int c = 0; c < chains.length; ++c) {
+			report.append(String.format(Locale.ROOT, "chain %d: beta %.3f, %d steps, %.0f steps/s, %.1f%% accepted\n",
+					c, chains[c].getBeta(), chains[c].getSampleCount(), getThroughput(c),
+					100 * chains[c].getAcceptanceRate()));
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.MCMC;
+import beast.core.util.Log;
+
+@Description("MCMC that ends before chainLength once all its convergence monitors report convergence."
+		+ " The monitors must be part of one of the loggers of this run.")
+public class EarlyStoppingMCMC extends MCMC {
+	public Input<List<ConvergenceMonitor>> monitorsInput = new Input<List<ConvergenceMonitor>>("monitor",
+			"convergence monitors that all have to be satisfied", new ArrayList<ConvergenceMonitor>(),
+			Validate.REQUIRED);
+	public Input<Integer> minChainLengthInput = new Input<Integer>("minChainLength",
+			"the number of samples to run in any case", 0);
+
+	@Override
+	protected void callUserFunction(int sample) {
+		if (sample < minChainLengthInput.get() || sample >= chainLength) {
+			return;
+		}
+		for (ConvergenceMonitor monitor : monitorsInput.get()) {
+			if (!monitor.isConverged()) {
+				return;
+			}
+		}
+		Log.warning.println("All convergence criteria met at sample " + sample + ", stopping early");
+		// The main loop ends once it passes chainLength.
+		chainLength = sample;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+import beast.core.State;
+import beast.core.StateNode;
+
+/**
+ * Stepping-stone estimate of the marginal likelihood (Xie et al. 2011) from
+ * power posteriors prior × likelihood^β of independent copies of one
+ * analysis, one per β, with the steps sampling concurrently on a pool.
+ *
+ * The steps are warm-started as a relay, from β = 1 down to β = 0: The chain
+ * at β = 1 burns in for the full burn-in. Every other chain starts from the
+ * state its hotter neighbour had at the end of that neighbour's burn-in, and
+ * only needs a short burn-in of its own. As soon as a chain has burnt in, it
+ * passes its state on and samples, in parallel to all other steps, so the
+ * sampling, which is the bulk of the work, is spread over all threads.
+ *
+ * Chain k has β_k = (k/K)^(1/alpha) for k = 0…K, so the steps are dense near
+ * the prior, where the power posterior changes fastest. Every step keeps
+ * running summaries of its log likelihoods, from which the estimate is
+ * available at any time, and reports them when it finishes.
+ */
+public class SteppingStone {
+	protected final Chain[] chains;
+	protected final double[] betas;
+	protected final StepSummary[] summaries;
+	protected Consumer<Chain> coldSampler = null;
+	protected PrintStream progress = null;
+
+	/** Running summaries of the log likelihoods sampled at one β */
+	public static class StepSummary {
+		/** β of the next step minus β of this one */
+		protected final double deltaBeta;
+		protected int samples = 0;
+		protected double mean = 0.0;
+		protected double sumOfSquares = 0.0;
+		protected double maxLogLikelihood = Double.NEGATIVE_INFINITY;
+		/** Σ exp(Δβ·(log L - maxLogLikelihood)) */
+		protected double scaledSum = 0.0;
+
+		public StepSummary(double deltaBeta) {
+			this.deltaBeta = deltaBeta;
+		}
+
+		public synchronized void add(double logLikelihood) {
+			++samples;
+			double delta = logLikelihood - mean;
+			mean += delta / samples;
+			sumOfSquares += delta * (logLikelihood - mean);
+			if (logLikelihood > maxLogLikelihood) {
+				scaledSum *= Math.exp(deltaBeta * (maxLogLikelihood - logLikelihood));
+				maxLogLikelihood = logLikelihood;
+			}
+			scaledSum += Math.exp(deltaBeta * (logLikelihood - maxLogLikelihood));
+		}
+
+		public synchronized int getSampleCount() {
+			return samples;
+		}
+
+		public synchronized double getMean() {
+			return mean;
+		}
+
+		public synchronized double getVariance() {
+			return samples < 2 ? 0.0 : sumOfSquares / (samples - 1);
+		}
+
+		/**
+		 * @return the log of the ratio of the normalising constants of the
+		 *         next power posterior and this one, log mean(L^Δβ)
+		 */
+		public synchronized double getLogRatio() {
+			if (samples == 0) {
+				return Double.NaN;
+			}
+			return deltaBeta * maxLogLikelihood + Math.log(scaledSum / samples);
+		}
+	}
+
+	/**
+	 * @param chains
+	 *            K+1 chains over independent copies of the analysis, each with
+	 *            a likelihood, in order of increasing β
+	 * @param alpha
+	 *            the shape of the β schedule; 1 for evenly spaced steps
+	 */
+	public SteppingStone(List<Chain> chains, double alpha) {
+		if (chains.size() < 2) {
+			throw new IllegalArgumentException("Need at least two chains");
+		}
+		if (alpha <= 0) {
+			throw new IllegalArgumentException("alpha must be positive");
+		}
+		this.chains = chains.toArray(new Chain[chains.size()]);
+		int last = this.chains.length - 1;
+		betas = new double[this.chains.length];
+		for (int k = 0; k <= last; ++k) {
+			betas[k] = Math.pow(k / (double) last, 1.0 / alpha);
+			this.chains[k].setBeta(betas[k]);
+		}
+		summaries = new StepSummary[last];
+		for (int k = 0; k < last; ++k) {
+			summaries[k] = new StepSummary(betas[k + 1] - betas[k]);
+		}
+	}
+
+	/** Pass every sample of the chain at β = 1 to `sampler`, eg. to summarise the posterior. */
+	public void setColdSampler(Consumer<Chain> sampler) {
+		coldSampler = sampler;
+	}
+
+	/** Print a line to `out` whenever a step has finished sampling. */
+	public void setProgress(PrintStream out) {
+		progress = out;
+	}
+
+	/**
+	 * Run all steps. The burn-ins, which pass their states on as a relay, run
+	 * one after the other on the calling thread; the sampling of every step
+	 * runs on the given pool as soon as the step has burnt in. The calling
+	 * thread also takes on sampling that no worker has started, so it may
+	 * itself be a worker of the pool.
+	 *
+	 * @param burnin
+	 *            the number of steps the chain at β = 1 burns in
+	 * @param stepBurnin
+	 *            the number of steps every other chain burns in after its
+	 *            warm start
+	 * @param samples
+	 *            the number of samples to take at each β
+	 * @param sampleEvery
+	 *            the number of steps between samples
+	 * @return the log marginal likelihood
+	 */
+	public double run(ExecutorService pool, final int burnin, final int stepBurnin, final int samples,
+			final int sampleEvery) {
+		List<FutureTask<Void>> sampling = new ArrayList<FutureTask<Void>>(chains.length);
+		List<StateNode> from = null;
+		for (int k = chains.length - 1; k >= 0; --k) {
+			final int step = k;
+			Chain chain = chains[step];
+			chain.initialise();
+			if (from != null) {
+				warmStart(chain.getState(), from);
+				chain.recalculate();
+			}
+			chain.run(step == chains.length - 1 ? burnin : stepBurnin);
+			from = snapshot(chain.getState());
+			sampling.add(Tasks.start(pool, () -> sample(step, samples, sampleEvery)));
+		}
+		Tasks.await(sampling);
+		return getLogMarginalLikelihood();
+	}
+
+	protected void sample(int step, int samples, int sampleEvery) {
+		Chain chain = chains[step];
+		boolean cold = step == chains.length - 1;
+		for (int i = 0; i < samples; ++i) {
+			chain.run(sampleEvery);
+			if (cold) {
+				if (coldSampler != null) {
+					coldSampler.accept(chain);
+				}
+			} else {
+				summaries[step].add(chain.getLogLikelihood());
+			}
+		}
+		if (progress != null && !cold) {
+			StepSummary summary = summaries[step];
+			synchronized (progress) {
+				progress.println(String.format(Locale.ROOT,
+						"step %d: beta %.5f, %d samples, mean logL %.4f (sd %.4f), log ratio %.4f, logML so far %.4f",
+						step, betas[step], summary.getSampleCount(), summary.getMean(),
+						Math.sqrt(summary.getVariance()), summary.getLogRatio(), getLogMarginalLikelihood()));
+			}
+		}
+	}
+
+	/** @return copies of all state nodes of `state` */
+	protected static List<StateNode> snapshot(State state) {
+		List<StateNode> copies = new ArrayList<StateNode>(state.getNrOfStateNodes());
+		for (int i = 0; i < state.getNrOfStateNodes(); ++i) {
+			copies.add(state.getStateNode(i).copy());
+		}
+		return copies;
+	}
+
+	/** Set the state nodes of `state` to the values of another copy of the analysis. */
+	protected static void warmStart(State state, List<StateNode> from) {
+		if (from.size() != state.getNrOfStateNodes()) {
+			throw new IllegalArgumentException("The chains of a stepping-stone run must be copies of one analysis");
+		}
+		for (int i = 0; i < from.size(); ++i) {
+			state.getStateNode(i).assignFromWithoutID(from.get(i));
+		}
+	}
+
+	/**
+	 * @return the sum of the log ratios of all steps that have samples so
+	 *         far, which is the log marginal likelihood once all steps are
+	 *         done
+	 */
+	public double getLogMarginalLikelihood() {
+		double logML = 0.0;
+		for (StepSummary summary : summaries) {
+			if (summary.getSampleCount() > 0) {
+				logML += summary.getLogRatio();
+			}
+		}
+		return logML;
+	}
+
+	public double getBeta(int k) {
+		return betas[k];
+	}
+
+	public int getStepCount() {
+		return summaries.length;
+	}
+
+	public StepSummary getStep(int k) {
+		return summaries[k];
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.mcmc;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Running the chains of one analysis on a pool that the calling thread may
+ * itself be a worker of, eg. the bounded pool of a screening driver.
+ * Waiting for the tasks cannot deadlock even if every worker of the pool is
+ * waiting: Whoever waits first runs the tasks no worker has started yet, and
+ * the started ones never wait for anything.
+ */
+final class Tasks {
+	private Tasks() {
+	}
+
+	/**
+	 * Queue `body` on the pool.
+	 */
+	static FutureTask<Void> start(ExecutorService pool, Runnable body) {
+		FutureTask<Void> task = new FutureTask<Void>(body, null);
+		pool.execute(task);
+		return task;
+	}
+
+	/**
+	 * Run the tasks that have not started yet on the calling thread, and wait
+	 * for the others.
+	 */
+	static void await(List<FutureTask<Void>> tasks) {
+		for (FutureTask<Void> task : tasks) {
+			// Does nothing if a worker has started the task already
+			task.run();
+		}
+		for (FutureTask<Void> task : tasks) {
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
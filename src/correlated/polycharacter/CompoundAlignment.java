@@ -30,8 +30,10 @@ public class CompoundAlignment extends Alignment {
 	// Consider inputs:
 	// stripInvariantSitesInput
 	// siteWeightsInput
+	public Input<TraitMatrix> matrixInput = new Input<TraitMatrix>("matrix",
+			"The component characters, read directly from a matrix file");
 	public Input<Alignment> alignmentInput = new Input<Alignment>("alignment", "The component sites",
-			Validate.REQUIRED);
+			Validate.XOR, matrixInput);
 	protected Alignment alignment;
 
 	public CompoundAlignment(Alignment input) {
@@ -90,26 +92,70 @@ public class CompoundAlignment extends Alignment {
 		}
 		m_dataType = cdt;
 
+		int[][] componentStates = new int[alignment.getTaxonCount()][alignment.getSiteCount()];
+		for (int taxon_ = 0; taxon_ < alignment.getTaxonCount(); ++taxon_) {
+			for (int site_ = 0; site_ < alignment.getSiteCount(); ++site_) {
+				componentStates[taxon_][site_] = alignment.getPattern(taxon_, site_);
+			}
+		}
 		// Given that we take alignments, we don't need to sort, just to check.
-		taxaNames = alignment.getTaxaNames();
+		encode(alignment.getTaxaNames(), componentStates);
+	}
+
+	private void initAndValidate(TraitMatrix matrix) {
+		alignment = null;
+
+		CompoundDataType cdt;
+		if (userDataTypeInput.get() instanceof CompoundDataType) {
+			cdt = (CompoundDataType) userDataTypeInput.get();
+		} else if (dataTypeInput.get() == NUCLEOTIDE) {
+			// The matrix knows the data type of every character, including
+			// its ambiguity codes.
+			Integer[] sizes = new Integer[matrix.getCharacterCount()];
+			for (int c = 0; c < sizes.length; ++c) {
+				sizes[c] = matrix.getDataTypes().get(c).getStateCount();
+				for (int taxon_ = 0; taxon_ < matrix.getTaxonCount(); ++taxon_) {
+					if (matrix.getState(taxon_, c) >= sizes[c]) {
+						sizes[c] = matrix.getState(taxon_, c) + 1;
+					}
+				}
+			}
+			cdt = new CompoundDataType();
+			cdt.initByName("components", matrix.getDataTypes(), "componentSizesIncludingAmbiguities",
+					new IntegerParameter(sizes));
+		} else {
+			throw new IllegalArgumentException(
+					"CompoundAlignment data type is either a CompoundDataType or derived from the matrix and may not be specified otherwise");
+		}
+		m_dataType = cdt;
+
+		int[][] componentStates = new int[matrix.getTaxonCount()][matrix.getCharacterCount()];
+		for (int taxon_ = 0; taxon_ < matrix.getTaxonCount(); ++taxon_) {
+			for (int c = 0; c < matrix.getCharacterCount(); ++c) {
+				componentStates[taxon_][c] = matrix.getState(taxon_, c);
+			}
+		}
+		encode(matrix.getTaxaNames(), componentStates);
+	}
+
+	/**
+	 * Fill in the compound state of every taxon, given the states of its
+	 * components, and calculate the patterns.
+	 */
+	protected void encode(List<String> taxa, int[][] componentStates) {
+		CompoundDataType cdt = (CompoundDataType) m_dataType;
+		taxaNames = taxa;
 		// counts, the list of sequences, starts at everything in state 0.
 		// stateCounts, the list of stateCount for each sequence, starts being 1
 		// everywhere.
 		maxStateCount = 1;
 		for (int i = 0; i < taxaNames.size(); ++i) {
-			ArrayList<Integer> zero = new ArrayList<Integer>();
-			zero.add(0);
-			counts.add(zero);
+			ArrayList<Integer> sequence = new ArrayList<Integer>(1);
+			sequence.add(cdt.componentState2compoundState(componentStates[i]));
+			counts.add(sequence);
 			stateCounts.add(cdt.getStateCount());
 		}
 
-		for (int taxon_ = 0; taxon_ < alignment.getTaxonCount(); ++taxon_) {
-			for (int site_ = 0; site_ < alignment.getSiteCount(); ++site_) {
-				counts.get(taxon_).set(0,
-						counts.get(taxon_).get(0) * cdt.getStateCounts()[site_] + alignment.getPattern(taxon_, site_));
-			}
-		}
-
 		maxStateCount = stateCounts.get(0);
 
 		if (maxStateCount != m_dataType.getStateCount()) {
@@ -125,11 +171,19 @@ public class CompoundAlignment extends Alignment {
 		// Sanity check: make sure sequences are of same length
 
 		calcPatterns();
-		Log.info.println(toString(false));
+		// Printing every taxon is slow for big data sets, so only do it on
+		// request.
+		Log.info.println(getID() + ": " + taxaNames.size() + " taxa with " + m_dataType.getStateCount()
+				+ " compound states");
+		Log.debug.println(toString(false));
 	}
 
 	@Override
 	public void initAndValidate() {
-		initAndValidate(alignmentInput.get());
+		if (matrixInput.get() != null) {
+			initAndValidate(matrixInput.get());
+		} else {
+			initAndValidate(alignmentInput.get());
+		}
 	}
 }
@@ -21,14 +21,22 @@ package correlated.polycharacter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.parameter.IntegerParameter;
+import beast.core.util.Log;
 import beast.evolution.datatype.DataType;
 
 /**
+ * A tuple of definite component states is encoded with the radices
+ * componentSizes, giving the states 0 to getStateCount()-1. A tuple containing
+ * any ambiguity code is encoded as getStateCount() plus its value with the
+ * radices componentSizesIncludingAmbiguities, so that getStateSet can decode
+ * it back into the set of compound states it stands for.
+ *
  * @author Gereon Kaiping <anaphory@yahoo.de>
  * @since 2015-04-24
  */
@@ -57,6 +65,20 @@ public class CompoundDataType extends DataType.Base {
 	protected Integer[] stateCountsExcludingAmbiguities;
 	protected int stateCount = 1;
 
+	protected String split;
+	/**
+	 * Per component, the state of every single-character ASCII code, or -1 if
+	 * it has not been looked up yet.
+	 */
+	protected int[][] charCodes;
+	/** Per component, the states of longer codes seen so far */
+	protected List<ConcurrentHashMap<String, Integer>> stringCodes;
+	/**
+	 * Per component and state, its state set, or null if the component has
+	 * to be asked every time.
+	 */
+	protected boolean[][][] componentStateSets;
+
 	public CompoundDataType(List<DataType> inputs, Integer[] sizes, Integer[] sizesWithAmbiguities) {
 		super();
 		initAndValidate(inputs, new IntegerParameter(sizes), new IntegerParameter(sizesWithAmbiguities));
@@ -127,8 +149,34 @@ public class CompoundDataType extends DataType.Base {
 				}
 			}
 		}
-		System.out.printf("%s derived internal sizes to be %s\n", getID(),
+		Log.info.printf("%s derived internal sizes to be %s\n", getID(),
 				Arrays.toString(stateCountsIncludingAmbiguities));
+
+		split = splitInput.get();
+		if (split == null || split.isEmpty()) {
+			throw new IllegalArgumentException("The split string must not be empty.");
+		}
+		charCodes = new int[components.size()][128];
+		stringCodes = new ArrayList<ConcurrentHashMap<String, Integer>>(components.size());
+		for (int i = 0; i < components.size(); ++i) {
+			Arrays.fill(charCodes[i], -1);
+			stringCodes.add(new ConcurrentHashMap<String, Integer>());
+		}
+		componentStateSets = new boolean[components.size()][][];
+		for (int i = 0; i < components.size(); ++i) {
+			componentStateSets[i] = new boolean[stateCountsIncludingAmbiguities[i]][];
+			for (int state = 0; state < componentStateSets[i].length; ++state) {
+				try {
+					componentStateSets[i][state] = components.get(i).getStateSet(state);
+				} catch (NullPointerException | IndexOutOfBoundsException e) {
+					// DataType.Base fills its state set map lazily or only for
+					// the states its code map mentions. Leave it to the
+					// component when the state comes up.
+					Log.debug.println(getID() + ": no state set for state " + state + " of component " + i
+							+ " yet (" + e + ")");
+				}
+			}
+		}
 	}
 
 	static public int[] compoundState2componentStates(Integer[] components, int compoundState) {
@@ -141,16 +189,17 @@ public class CompoundDataType extends DataType.Base {
 	}
 
 	static public int compoundState2componentState(Integer[] components, int compoundState, int component) {
-		/*
-		 * // Old Implementation: for (int i = components.length - 1; i >
-		 * component; --i) { compoundState /= components[i]; } return
-		 * compoundState % components[component];
-		 */
-		return compoundState2componentStates(components, compoundState)[component];
+		for (int i = components.length - 1; i > component; --i) {
+			compoundState /= components[i];
+		}
+		return compoundState % components[component];
 	}
 
 	public int compoundState2componentState(int compoundState, int component) {
-		return compoundState2componentState(stateCountsExcludingAmbiguities, compoundState, component);
+		if (compoundState < stateCount) {
+			return compoundState2componentState(stateCountsExcludingAmbiguities, compoundState, component);
+		}
+		return compoundState2componentState(stateCountsIncludingAmbiguities, compoundState - stateCount, component);
 	}
 
 	static public int componentState2compoundState(Integer[] components, int[] componentStates) {
@@ -162,8 +211,29 @@ public class CompoundDataType extends DataType.Base {
 		return compoundState;
 	}
 
+	/**
+	 * @param componentStates
+	 *            codes of the components, possibly ambiguous
+	 * @return the compound state, or the code of the ambiguous compound state
+	 */
 	public int componentState2compoundState(int[] componentStates) {
-		return componentState2compoundState(stateCountsExcludingAmbiguities, componentStates);
+		boolean definite = true;
+		for (int i = 0; i < componentStates.length; ++i) {
+			checkComponentCode(i, componentStates[i]);
+			definite &= componentStates[i] < stateCountsExcludingAmbiguities[i];
+		}
+		if (definite) {
+			return componentState2compoundState(stateCountsExcludingAmbiguities, componentStates);
+		}
+		return stateCount + componentState2compoundState(stateCountsIncludingAmbiguities, componentStates);
+	}
+
+	protected void checkComponentCode(int component, int code) {
+		if (code < 0 || code >= stateCountsIncludingAmbiguities[component]) {
+			throw new IllegalArgumentException("Code " + code + " of component " + component
+					+ " is beyond its componentSizesIncludingAmbiguities, "
+					+ stateCountsIncludingAmbiguities[component]);
+		}
 	}
 
 	public int getComponentCount() {
@@ -187,17 +257,83 @@ public class CompoundDataType extends DataType.Base {
 	 */
 	@Override
 	public List<Integer> string2state(String sSequence) {
-		int index = 0;
-		int[] subcodes = new int[components.size()];
-		for (String code : sSequence.split(";;")) {
-			subcodes[index] = components.get(index).string2state(code).get(0);
-			++index;
-		}
 		List<Integer> result = new ArrayList<Integer>(1);
-		result.add(componentState2compoundState(subcodes));
+		result.add(parseCompoundCode(sSequence));
 		return result;
 	}
 
+	/**
+	 * Convert many sequences at once, eg. all taxa of an alignment.
+	 *
+	 * @param sequences
+	 *            one compound code per sequence, as for string2state
+	 * @param states
+	 *            receives the compound state of sequences[i] in states[i]
+	 */
+	public void string2states(String[] sequences, int[] states) {
+		if (states.length < sequences.length) {
+			throw new IllegalArgumentException("Need room for " + sequences.length + " states, not " + states.length);
+		}
+		for (int i = 0; i < sequences.length; ++i) {
+			states[i] = parseCompoundCode(sequences[i]);
+		}
+	}
+
+	/**
+	 * Parse one compound code, ie. component codes separated by the split
+	 * string, without regular expressions or intermediate lists.
+	 */
+	protected int parseCompoundCode(String code) {
+		final int n = components.size();
+		int compoundState = 0;
+		int ambiguousState = 0;
+		boolean definite = true;
+		int start = 0;
+		for (int i = 0; i < n; ++i) {
+			int end = code.indexOf(split, start);
+			if (end < 0) {
+				if (i < n - 1) {
+					throw new IllegalArgumentException("Code " + code + " has fewer than " + n + " components");
+				}
+				end = code.length();
+			} else if (i == n - 1) {
+				throw new IllegalArgumentException("Code " + code + " has more than " + n + " components");
+			}
+			int state = componentCode(i, code, start, end);
+			checkComponentCode(i, state);
+			definite &= state < stateCountsExcludingAmbiguities[i];
+			compoundState = compoundState * stateCountsExcludingAmbiguities[i] + state;
+			ambiguousState = ambiguousState * stateCountsIncludingAmbiguities[i] + state;
+			start = end + split.length();
+		}
+		return definite ? compoundState : stateCount + ambiguousState;
+	}
+
+	/**
+	 * Look up code.substring(start, end) for component i, asking the
+	 * component only the first time a code is seen.
+	 */
+	protected int componentCode(int i, String code, int start, int end) {
+		if (end - start == 1) {
+			char c = code.charAt(start);
+			if (c < 128) {
+				int state = charCodes[i][c];
+				if (state < 0) {
+					state = components.get(i).string2state(String.valueOf(c)).get(0);
+					charCodes[i][c] = state;
+				}
+				return state;
+			}
+		}
+		String subcode = code.substring(start, end);
+		Integer state = stringCodes.get(i).get(subcode);
+		if (state == null) {
+			state = components.get(i).string2state(subcode).get(0);
+			stringCodes.get(i).put(subcode, state);
+		}
+		return state;
+	}
+
 	/**
 	 * Convert an array of states into a sequence represented by a string. This
 	 * is the inverse of string2state() throws exception when State cannot be
@@ -219,24 +355,67 @@ public class CompoundDataType extends DataType.Base {
 	 */
 	@Override
 	public boolean[] getStateSet(int iState) {
-		boolean[] result = new boolean[] { true };
+		int length = 1;
 		for (int i = 0; i < components.size(); ++i) {
-			boolean[] byComponent = components.get(i).getStateSet(compoundState2componentState(iState, i));
-			boolean[] new_result = new boolean[result.length * byComponent.length];
-			for (int j = 0; j < new_result.length; ++j) {
-				new_result[j] = result[j / byComponent.length] & byComponent[j % byComponent.length];
-			}
-			result = new_result;
+			length *= componentStateSet(i, compoundState2componentState(iState, i)).length;
 		}
+		boolean[] result = new boolean[length];
+		getStateSet(iState, result);
 		return result;
 	}
 
+	/**
+	 * Like getStateSet(iState), but writing into `result`, which must be long
+	 * enough, instead of a new array.
+	 *
+	 * @return the length of the state set
+	 */
+	public int getStateSet(int iState, boolean[] result) {
+		result[0] = true;
+		int length = 1;
+		for (int i = 0; i < components.size(); ++i) {
+			boolean[] byComponent = componentStateSet(i, compoundState2componentState(iState, i));
+			// Expand in place from the end: entry j only depends on entry
+			// j / byComponent.length, which has not been overwritten yet.
+			for (int j = length * byComponent.length - 1; j >= 0; --j) {
+				result[j] = result[j / byComponent.length] & byComponent[j % byComponent.length];
+			}
+			length *= byComponent.length;
+		}
+		return length;
+	}
+
+	protected boolean[] componentStateSet(int component, int state) {
+		boolean[][] cached = componentStateSets[component];
+		if (state < cached.length && cached[state] != null) {
+			return cached[state];
+		}
+		return components.get(component).getStateSet(state);
+	}
+
 	/**
 	 * returns an array with all non-ambiguous states represented by a state.
 	 */
 	@Override
 	public int[] getStatesForCode(int iState) {
-		return new int[] { iState };
+		if (iState < stateCount) {
+			return new int[] { iState };
+		}
+		boolean[] stateSet = getStateSet(iState);
+		int count = 0;
+		for (boolean allowed : stateSet) {
+			if (allowed) {
+				++count;
+			}
+		}
+		int[] states = new int[count];
+		count = 0;
+		for (int state = 0; state < stateSet.length; ++state) {
+			if (stateSet[state]) {
+				states[count++] = state;
+			}
+		}
+		return states;
 	}
 
 	@Override
@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.datatype.DataType;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeInterface;
+
+@Description("Tree likelihood for compound characters, with parallelism across subtrees instead of patterns:"
+		+ " A CompoundAlignment has only one or a few patterns, but many states. Independent subtrees are"
+		+ " pruned as fork-join tasks on the common pool, and only nodes whose partials changed are"
+		+ " recalculated. Partials are rescaled at every node.")
+public class CompoundTreeLikelihood extends GenericTreeLikelihood {
+	public Input<Integer> forkThresholdInput = new Input<Integer>("forkThreshold",
+			"number of multiply-adds both of two sibling subtrees need to have left to do for them to be"
+					+ " pruned in parallel",
+			1 << 16);
+
+	protected TreeInterface tree;
+	protected Alignment data;
+	protected SiteModel.Base siteModel;
+	protected SubstitutionModel substitutionModel;
+	/** The substitution model, if it can calculate transition matrices in batches; null otherwise */
+	protected CorrelatedSubstitutionModel batchModel;
+	protected BranchRateModel.Base branchRateModel;
+
+	protected int nrOfStates;
+	protected int nrOfPatterns;
+	protected int nrOfCategories;
+	protected int nrOfNodes;
+	protected long forkThreshold;
+	/** The number of multiply-adds to update one node */
+	protected long nodeCost;
+
+	/** [node][pattern·N + state], for tips; null for internal nodes */
+	protected double[][] tipPartials;
+	/**
+	 * [node][pattern]: the states allowed at a tip, if there are few enough
+	 * for {@link TransitionKernels#tipProduct} to pay off in every pattern;
+	 * null otherwise
+	 */
+	protected int[][][] tipStates;
+	/** [buffer][node][category][pattern·N + state], for internal nodes */
+	protected double[][][][] partials;
+	/**
+	 * [buffer][node][pattern]: the log of the factor the partials of the
+	 * node, including all scaling below it, have been divided by
+	 */
+	protected double[][][] logScales;
+	protected final double[] noScaling;
+	/** [buffer][node][category][N·N] */
+	protected double[][][][] matrices;
+
+	protected int[] currentPartials;
+	protected int[] storedPartials;
+	protected int[] currentMatrices;
+	protected int[] storedMatrices;
+	/** The branch length times branch rate each node's current matrices belong to */
+	protected double[] branchLengths;
+	protected double[] storedBranchLengths;
+
+	protected boolean[] matrixUpdated;
+	protected boolean[] partialsUpdated;
+	/** The number of nodes to update in the subtree below each node */
+	protected int[] pendingNodes;
+
+	protected int hasDirt;
+
+	protected final ThreadLocal<double[][]> productScratch = new ThreadLocal<double[][]>();
+
+	/**
+	 * Buffers of {@link #logLikelihoodGradient}, like matrices, partials and
+	 * logScales for a single state; allocated on first use
+	 */
+	protected double[][][] trialMatrices;
+	protected double[][][] trialPartials;
+	protected double[][] trialScales;
+	/** [node][category][pattern·N + state]: pre-order partials at the lower end of each branch */
+	protected double[][][] outside;
+	protected double[] branchWeights;
+	protected double[] patternFactors;
+	protected double[][] tops;
+	protected double[][] products;
+
+	public CompoundTreeLikelihood() {
+		noScaling = new double[0];
+	}
+
+	@Override
+	public void initAndValidate() {
+		tree = treeInput.get();
+		data = dataInput.get();
+		if (!(siteModelInput.get() instanceof SiteModel.Base)) {
+			throw new IllegalArgumentException("siteModel input should be of type SiteModel.Base");
+		}
+		siteModel = (SiteModel.Base) siteModelInput.get();
+		substitutionModel = siteModel.substModelInput.get();
+		batchModel = substitutionModel instanceof CorrelatedSubstitutionModel
+				? (CorrelatedSubstitutionModel) substitutionModel : null;
+		branchRateModel = branchRateModelInput.get();
+		if (siteModel.getProportionInvariant() > 0) {
+			throw new IllegalArgumentException("CompoundTreeLikelihood does not support invariant sites");
+		}
+
+		nrOfStates = substitutionModel.getStateCount();
+		nrOfPatterns = data.getPatternCount();
+		nrOfCategories = siteModel.getCategoryCount();
+		nrOfNodes = tree.getNodeCount();
+		forkThreshold = forkThresholdInput.get();
+		nodeCost = 2L * nrOfCategories * nrOfPatterns * nrOfStates * nrOfStates;
+
+		partials = new double[2][nrOfNodes][][];
+		logScales = new double[2][nrOfNodes][];
+		matrices = new double[2][nrOfNodes][][];
+		for (Node node : tree.getNodesAsArray()) {
+			int nr = node.getNr();
+			for (int b = 0; b < 2; ++b) {
+				if (!node.isLeaf()) {
+					partials[b][nr] = new double[nrOfCategories][nrOfPatterns * nrOfStates];
+					logScales[b][nr] = new double[nrOfPatterns];
+				}
+				if (!node.isRoot()) {
+					matrices[b][nr] = new double[nrOfCategories][nrOfStates * nrOfStates];
+				}
+			}
+		}
+		tipPartials = new double[nrOfNodes][];
+		tipStates = new int[nrOfNodes][][];
+		setTipPartials();
+
+		currentPartials = new int[nrOfNodes];
+		storedPartials = new int[nrOfNodes];
+		currentMatrices = new int[nrOfNodes];
+		storedMatrices = new int[nrOfNodes];
+		branchLengths = new double[nrOfNodes];
+		storedBranchLengths = new double[nrOfNodes];
+		Arrays.fill(branchLengths, Double.NaN);
+		Arrays.fill(storedBranchLengths, Double.NaN);
+		matrixUpdated = new boolean[nrOfNodes];
+		partialsUpdated = new boolean[nrOfNodes];
+		pendingNodes = new int[nrOfNodes];
+		hasDirt = Tree.IS_FILTHY;
+	}
+
+	/**
+	 * Translate the observations at every tip into partial likelihoods, and
+	 * list the allowed states of tips with unambiguous or only slightly
+	 * ambiguous observations.
+	 */
+	protected void setTipPartials() {
+		DataType dataType = data.getDataType();
+		for (Node node : tree.getNodesAsArray()) {
+			if (!node.isLeaf()) {
+				continue;
+			}
+			int taxon = data.getTaxonIndex(node.getID());
+			if (taxon < 0) {
+				throw new IllegalArgumentException("Taxon " + node.getID() + " is not in the alignment " + data.getID());
+			}
+			double[] tip = new double[nrOfPatterns * nrOfStates];
+			int[][] states = new int[nrOfPatterns][];
+			for (int p = 0; p < nrOfPatterns; ++p) {
+				int code = data.getPattern(taxon, p);
+				if (!dataType.isAmbiguousState(code) && code < nrOfStates) {
+					// A fully observed compound state
+					tip[p * nrOfStates + code] = 1.0;
+					if (states != null) {
+						states[p] = new int[] { code };
+					}
+					continue;
+				}
+				boolean[] stateSet = dataType.getStateSet(code);
+				if (stateSet.length != nrOfStates) {
+					throw new IllegalArgumentException("The data type of " + data.getID() + " has " + stateSet.length
+							+ " states, but the substitution model has " + nrOfStates);
+				}
+				int allowed = 0;
+				for (int i = 0; i < nrOfStates; ++i) {
+					tip[p * nrOfStates + i] = stateSet[i] ? 1.0 : 0.0;
+					if (stateSet[i]) {
+						++allowed;
+					}
+				}
+				// Gathering the columns of P(t) is only faster than a dense
+				// row-wise product while few of them are needed.
+				if (states != null && 2 * allowed <= nrOfStates) {
+					states[p] = new int[allowed];
+					allowed = 0;
+					for (int i = 0; i < nrOfStates; ++i) {
+						if (stateSet[i]) {
+							states[p][allowed++] = i;
+						}
+					}
+				} else {
+					states = null;
+				}
+			}
+			tipPartials[node.getNr()] = tip;
+			tipStates[node.getNr()] = states;
+		}
+	}
+
+	@Override
+	public double calculateLogP() {
+		if (hasDirt == Tree.IS_FILTHY) {
+			setTipPartials();
+		}
+		final boolean everything = hasDirt != Tree.IS_CLEAN;
+		final Node root = tree.getRoot();
+		updateMatrices(root, everything);
+		markPartials(root, everything);
+		if (pendingNodes[root.getNr()] * nodeCost >= 2 * forkThreshold) {
+			ForkJoinPool.commonPool().invoke(new Subtree(root));
+		} else {
+			prune(root);
+		}
+
+		logP = rootLogLikelihood(root, false);
+		hasDirt = Tree.IS_CLEAN;
+		return logP;
+	}
+
+	/**
+	 * Calculate new transition matrices for all branches whose length, rate
+	 * or model changed, in one batch.
+	 */
+	protected void updateMatrices(Node root, boolean everything) {
+		int count = 0;
+		Node[] nodes = tree.getNodesAsArray();
+		double[] lengths = new double[nrOfNodes];
+		for (Node node : nodes) {
+			int nr = node.getNr();
+			matrixUpdated[nr] = false;
+			if (node.isRoot()) {
+				continue;
+			}
+			lengths[nr] = branchLength(node);
+			if (everything || node.isDirty() != Tree.IS_CLEAN || lengths[nr] != branchLengths[nr]) {
+				matrixUpdated[nr] = true;
+				++count;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+
+		double[] distances = new double[count * nrOfCategories];
+		double[][] targets = new double[count * nrOfCategories][];
+		int next = 0;
+		for (Node node : nodes) {
+			int nr = node.getNr();
+			if (!matrixUpdated[nr]) {
+				continue;
+			}
+			// Never overwrite the matrices of the stored state
+			int target = 1 - storedMatrices[nr];
+			currentMatrices[nr] = target;
+			branchLengths[nr] = lengths[nr];
+			double[] categoryRates = siteModel.getCategoryRates(node);
+			for (int c = 0; c < nrOfCategories; ++c) {
+				distances[next] = lengths[nr] * categoryRates[c];
+				targets[next] = matrices[target][nr][c];
+				if (batchModel == null) {
+					substitutionModel.getTransitionProbabilities(node, node.getParent().getHeight(),
+							node.getHeight(), branchRateModel == null ? categoryRates[c]
+									: branchRateModel.getRateForBranch(node) * categoryRates[c], targets[next]);
+				}
+				++next;
+			}
+		}
+		if (batchModel != null) {
+			batchModel.getTransitionProbabilities(distances, targets);
+		}
+	}
+
+	/**
+	 * Find the internal nodes whose partials have to be recalculated, and
+	 * count them per subtree.
+	 *
+	 * @return whether the partials of `node` change
+	 */
+	protected boolean markPartials(Node node, boolean everything) {
+		int nr = node.getNr();
+		if (node.isLeaf()) {
+			partialsUpdated[nr] = false;
+			pendingNodes[nr] = 0;
+			return false;
+		}
+		Node left = node.getLeft();
+		Node right = node.getRight();
+		boolean leftChanged = markPartials(left, everything) || matrixUpdated[left.getNr()];
+		boolean rightChanged = markPartials(right, everything) || matrixUpdated[right.getNr()];
+		partialsUpdated[nr] = everything || leftChanged || rightChanged || node.isDirty() != Tree.IS_CLEAN;
+		pendingNodes[nr] = pendingNodes[left.getNr()] + pendingNodes[right.getNr()] + (partialsUpdated[nr] ? 1 : 0);
+		return partialsUpdated[nr];
+	}
+
+	/** Prune the subtree below `node` on the current thread. */
+	protected void prune(Node node) {
+		if (!partialsUpdated[node.getNr()]) {
+			return;
+		}
+		prune(node.getLeft());
+		prune(node.getRight());
+		updatePartials(node);
+	}
+
+	/** A subtree to prune, splitting into parallel tasks where it pays off */
+	protected class Subtree extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Node node;
+
+		Subtree(Node node) {
+			this.node = node;
+		}
+
+		@Override
+		protected void compute() {
+			if (!partialsUpdated[node.getNr()]) {
+				return;
+			}
+			Node left = node.getLeft();
+			Node right = node.getRight();
+			if (pendingNodes[left.getNr()] * nodeCost >= forkThreshold
+					&& pendingNodes[right.getNr()] * nodeCost >= forkThreshold) {
+				invokeAll(new Subtree(left), new Subtree(right));
+			} else {
+				// One side is too small to be worth a task of its own.
+				forkOrPrune(left);
+				forkOrPrune(right);
+			}
+			updatePartials(node);
+		}
+
+		void forkOrPrune(Node child) {
+			if (pendingNodes[child.getNr()] * nodeCost >= 2 * forkThreshold) {
+				new Subtree(child).compute();
+			} else {
+				prune(child);
+			}
+		}
+	}
+
+	/**
+	 * @param trial
+	 *            whether to use the buffers of {@link #logLikelihoodGradient}
+	 *            instead of those of the state
+	 * @return the partials of `node` for category `c`
+	 */
+	protected double[] partialsOf(Node node, int c, boolean trial) {
+		int nr = node.getNr();
+		if (node.isLeaf()) {
+			return tipPartials[nr];
+		}
+		return trial ? trialPartials[nr][c] : partials[currentPartials[nr]][nr][c];
+	}
+
+	protected double[] logScalesOf(Node node, boolean trial) {
+		if (node.isLeaf()) {
+			return noScaling;
+		}
+		return trial ? trialScales[node.getNr()] : logScales[currentPartials[node.getNr()]][node.getNr()];
+	}
+
+	protected double[] matrixOf(Node node, int c, boolean trial) {
+		int nr = node.getNr();
+		return trial ? trialMatrices[nr][c] : matrices[currentMatrices[nr]][nr][c];
+	}
+
+	/**
+	 * Recalculate the partials of an internal node in a free buffer.
+	 */
+	protected void updatePartials(Node node) {
+		final int nr = node.getNr();
+		final int target = 1 - storedPartials[nr];
+		combinePartials(node, false, partials[target][nr], logScales[target][nr]);
+		currentPartials[nr] = target;
+	}
+
+	/**
+	 * Calculate the partials of an internal node from those of its children,
+	 * and rescale them so that the largest partial of every pattern is 1.
+	 *
+	 * @param result
+	 *            receives the partials, [category][pattern·N + state]
+	 * @param scales
+	 *            receives the log of the scale factors of every pattern,
+	 *            including those below the node
+	 */
+	protected void combinePartials(Node node, boolean trial, double[][] result, double[] scales) {
+		final Node left = node.getLeft();
+		final Node right = node.getRight();
+		final int width = nrOfPatterns * nrOfStates;
+		double[][] scratch = productScratch.get();
+		if (scratch == null || scratch[0].length < width) {
+			scratch = new double[2][width];
+			productScratch.set(scratch);
+		}
+		final double[] fromLeft = scratch[0];
+		final double[] fromRight = scratch[1];
+
+		for (int c = 0; c < nrOfCategories; ++c) {
+			final double[] categoryResult = result[c];
+			childProduct(left, c, trial, fromLeft);
+			childProduct(right, c, trial, fromRight);
+			for (int u = 0; u < width; ++u) {
+				categoryResult[u] = fromLeft[u] * fromRight[u];
+			}
+		}
+
+		final double[] leftScales = logScalesOf(left, trial);
+		final double[] rightScales = logScalesOf(right, trial);
+		for (int p = 0; p < nrOfPatterns; ++p) {
+			final int offset = p * nrOfStates;
+			double max = 0.0;
+			for (int c = 0; c < nrOfCategories; ++c) {
+				final double[] categoryResult = result[c];
+				for (int i = offset; i < offset + nrOfStates; ++i) {
+					max = Math.max(max, categoryResult[i]);
+				}
+			}
+			double scale = Math.log(max);
+			if (max > 0.0) {
+				final double inverse = 1.0 / max;
+				for (int c = 0; c < nrOfCategories; ++c) {
+					final double[] categoryResult = result[c];
+					for (int i = offset; i < offset + nrOfStates; ++i) {
+						categoryResult[i] *= inverse;
+					}
+				}
+			}
+			if (leftScales.length > 0) {
+				scale += leftScales[p];
+			}
+			if (rightScales.length > 0) {
+				scale += rightScales[p];
+			}
+			scales[p] = scale;
+		}
+	}
+
+	/**
+	 * For every pattern and state i, Σ_j P[i][j]·partials[j] along the branch
+	 * above `child`.
+	 */
+	protected void childProduct(Node child, int c, boolean trial, double[] result) {
+		int nr = child.getNr();
+		if (tipStates[nr] != null) {
+			TransitionKernels.tipProduct(matrixOf(child, c, trial), tipStates[nr], nrOfStates, nrOfPatterns, result);
+			return;
+		}
+		TransitionKernels.partialsProduct(matrixOf(child, c, trial), partialsOf(child, c, trial), nrOfStates,
+				nrOfPatterns, result);
+	}
+
+	protected double rootLogLikelihood(Node root, boolean trial) {
+		final double[] frequencies = substitutionModel.getFrequencies();
+		final double[] proportions = siteModel.getCategoryProportions(root);
+		final double[] scales = logScalesOf(root, trial);
+		double logLikelihood = 0.0;
+		for (int p = 0; p < nrOfPatterns; ++p) {
+			final int offset = p * nrOfStates;
+			double sum = 0.0;
+			for (int c = 0; c < nrOfCategories; ++c) {
+				final double[] rootPartials = partialsOf(root, c, trial);
+				double categorySum = 0.0;
+				for (int i = 0; i < nrOfStates; ++i) {
+					categorySum += frequencies[i] * rootPartials[offset + i];
+				}
+				sum += proportions[c] * categorySum;
+			}
+			logLikelihood += data.getPatternWeight(p) * (Math.log(sum) + (scales.length > 0 ? scales[p] : 0.0));
+		}
+		return logLikelihood;
+	}
+
+	/**
+	 * Calculate the log likelihood and its gradient by the entries of the
+	 * `rates` of the CorrelatedSubstitutionModel, for the given values of the
+	 * rates and the current tree, site model and branch rates. This does not
+	 * change the state of this likelihood or of the substitution model, so it
+	 * can be called from within an operator's proposal.
+	 *
+	 * The derivative by P(t) of every branch and rate category is the outer
+	 * product of the pre-order partials above and the post-order partials
+	 * below the branch, divided by the likelihood of each pattern; see
+	 * RateMatrixGradient for the step to the rate matrix.
+	 *
+	 * @param rates
+	 *            values for every entry of `rates`
+	 * @param gradient
+	 *            receives ∂ log likelihood / ∂ rates
+	 * @return the log likelihood
+	 */
+	public double logLikelihoodGradient(double[] rates, double[] gradient) {
+		if (batchModel == null) {
+			throw new UnsupportedOperationException("Gradients need a CorrelatedSubstitutionModel");
+		}
+		if (trialMatrices == null) {
+			trialMatrices = new double[nrOfNodes][nrOfCategories][nrOfStates * nrOfStates];
+			trialPartials = new double[nrOfNodes][][];
+			trialScales = new double[nrOfNodes][];
+			outside = new double[nrOfNodes][][];
+			for (Node node : tree.getNodesAsArray()) {
+				if (!node.isLeaf()) {
+					trialPartials[node.getNr()] = new double[nrOfCategories][nrOfPatterns * nrOfStates];
+					trialScales[node.getNr()] = new double[nrOfPatterns];
+				}
+				outside[node.getNr()] = new double[nrOfCategories][nrOfPatterns * nrOfStates];
+			}
+			branchWeights = new double[nrOfStates * nrOfStates];
+			patternFactors = new double[nrOfPatterns];
+			tops = new double[nrOfCategories][nrOfPatterns * nrOfStates];
+			products = new double[nrOfCategories][nrOfPatterns * nrOfStates];
+		}
+		RateMatrixGradient system = batchModel.gradientSystem(rates);
+		for (Node node : tree.getNodesAsArray()) {
+			if (node.isRoot()) {
+				continue;
+			}
+			double[] categoryRates = siteModel.getCategoryRates(node);
+			for (int c = 0; c < nrOfCategories; ++c) {
+				system.transitionProbabilities(branchLength(node) * categoryRates[c], trialMatrices[node.getNr()][c]);
+			}
+		}
+		Node root = tree.getRoot();
+		postOrder(root);
+		double logLikelihood = rootLogLikelihood(root, true);
+
+		final double[] frequencies = substitutionModel.getFrequencies();
+		final double[] proportions = siteModel.getCategoryProportions(root);
+		for (int c = 0; c < nrOfCategories; ++c) {
+			double[] rootOutside = outside[root.getNr()][c];
+			for (int p = 0; p < nrOfPatterns; ++p) {
+				for (int i = 0; i < nrOfStates; ++i) {
+					rootOutside[p * nrOfStates + i] = proportions[c] * frequencies[i];
+				}
+			}
+		}
+		double[] matrixGradient = new double[nrOfStates * nrOfStates];
+		preOrder(root, system, matrixGradient);
+		batchModel.rateGradient(rates, matrixGradient, gradient);
+		return logLikelihood;
+	}
+
+	/** @return the length of the branch above `node` times its rate */
+	protected double branchLength(Node node) {
+		double rate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+		return (node.getParent().getHeight() - node.getHeight()) * rate;
+	}
+
+	protected void postOrder(Node node) {
+		if (node.isLeaf()) {
+			return;
+		}
+		postOrder(node.getLeft());
+		postOrder(node.getRight());
+		combinePartials(node, true, trialPartials[node.getNr()], trialScales[node.getNr()]);
+	}
+
+	protected void preOrder(Node node, RateMatrixGradient system, double[] matrixGradient) {
+		if (node.isLeaf()) {
+			return;
+		}
+		addBranchGradient(node.getLeft(), node.getRight(), system, matrixGradient);
+		addBranchGradient(node.getRight(), node.getLeft(), system, matrixGradient);
+		preOrder(node.getLeft(), system, matrixGradient);
+		preOrder(node.getRight(), system, matrixGradient);
+	}
+
+	/**
+	 * Add the derivative of the log likelihood by the rate matrix through the
+	 * branch above `child` to `matrixGradient`, and calculate the pre-order
+	 * partials at `child`.
+	 */
+	protected void addBranchGradient(Node child, Node sibling, RateMatrixGradient system, double[] matrixGradient) {
+		final int n = nrOfStates;
+		final int width = nrOfPatterns * n;
+		final double[][] parentOutside = outside[child.getParent().getNr()];
+		// tops: the pre-order partials at the upper end of the branch
+		// products: P(t)·partials at the lower end
+		for (int c = 0; c < nrOfCategories; ++c) {
+			childProduct(sibling, c, true, products[c]);
+			for (int u = 0; u < width; ++u) {
+				tops[c][u] = parentOutside[c][u] * products[c][u];
+			}
+			childProduct(child, c, true, products[c]);
+		}
+
+		for (int p = 0; p < nrOfPatterns; ++p) {
+			final int offset = p * n;
+			// The likelihood of the pattern, in the same scale as the partials
+			// on both sides
+			double likelihood = 0.0;
+			for (int c = 0; c < nrOfCategories; ++c) {
+				for (int i = offset; i < offset + n; ++i) {
+					likelihood += tops[c][i] * products[c][i];
+				}
+			}
+			patternFactors[p] = likelihood > 0.0 ? data.getPatternWeight(p) / likelihood : 0.0;
+		}
+
+		final double length = branchLength(child);
+		final double[] categoryRates = siteModel.getCategoryRates(child);
+		for (int c = 0; c < nrOfCategories; ++c) {
+			final double[] below = partialsOf(child, c, true);
+			Arrays.fill(branchWeights, 0.0);
+			for (int p = 0; p < nrOfPatterns; ++p) {
+				final int offset = p * n;
+				final double factor = patternFactors[p];
+				if (factor == 0.0) {
+					continue;
+				}
+				for (int i = 0; i < n; ++i) {
+					final double top = factor * tops[c][offset + i];
+					if (top == 0.0) {
+						continue;
+					}
+					for (int j = 0; j < n; ++j) {
+						branchWeights[i * n + j] += top * below[offset + j];
+					}
+				}
+			}
+			system.addGradient(length * categoryRates[c], branchWeights, matrixGradient);
+		}
+
+		if (child.isLeaf()) {
+			return;
+		}
+		// The pre-order partials at the lower end are Pᵀ·tops.
+		final double[][] childOutside = outside[child.getNr()];
+		for (int c = 0; c < nrOfCategories; ++c) {
+			final double[] matrix = matrixOf(child, c, true);
+			Arrays.fill(childOutside[c], 0.0);
+			for (int p = 0; p < nrOfPatterns; ++p) {
+				final int offset = p * n;
+				for (int i = 0; i < n; ++i) {
+					final double top = tops[c][offset + i];
+					if (top == 0.0) {
+						continue;
+					}
+					for (int j = 0; j < n; ++j) {
+						childOutside[c][offset + j] += top * matrix[i * n + j];
+					}
+				}
+			}
+		}
+		for (int p = 0; p < nrOfPatterns; ++p) {
+			final int offset = p * n;
+			double max = 0.0;
+			for (int c = 0; c < nrOfCategories; ++c) {
+				for (int i = offset; i < offset + n; ++i) {
+					max = Math.max(max, childOutside[c][i]);
+				}
+			}
+			if (max > 0.0) {
+				for (int c = 0; c < nrOfCategories; ++c) {
+					for (int i = offset; i < offset + n; ++i) {
+						childOutside[c][i] /= max;
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		hasDirt = Tree.IS_CLEAN;
+		if (data.isDirtyCalculation()) {
+			hasDirt = Tree.IS_FILTHY;
+			return true;
+		}
+		if (siteModel.isDirtyCalculation()) {
+			hasDirt = Tree.IS_DIRTY;
+			return true;
+		}
+		if (branchRateModel != null && branchRateModel.isDirtyCalculation()) {
+			hasDirt = Tree.IS_DIRTY;
+			return true;
+		}
+		return tree.somethingIsDirty();
+	}
+
+	@Override
+	public void store() {
+		System.arraycopy(currentPartials, 0, storedPartials, 0, nrOfNodes);
+		System.arraycopy(currentMatrices, 0, storedMatrices, 0, nrOfNodes);
+		System.arraycopy(branchLengths, 0, storedBranchLengths, 0, nrOfNodes);
+		super.store();
+	}
+
+	@Override
+	public void restore() {
+		System.arraycopy(storedPartials, 0, currentPartials, 0, nrOfNodes);
+		System.arraycopy(storedMatrices, 0, currentMatrices, 0, nrOfNodes);
+		System.arraycopy(storedBranchLengths, 0, branchLengths, 0, nrOfNodes);
+		super.restore();
+	}
+}
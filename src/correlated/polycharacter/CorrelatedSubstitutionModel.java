@@ -18,7 +18,15 @@
  */
 package correlated.polycharacter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import beast.core.Citation;
 import beast.core.Description;
@@ -26,7 +34,13 @@ import beast.core.Function;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.parameter.IntegerParameter;
+import beast.core.util.Log;
+import beast.evolution.substitutionmodel.EigenDecomposition;
 import beast.evolution.substitutionmodel.GeneralSubstitutionModel;
+import beast.evolution.tree.Node;
+import correlated.util.Metrics;
+import correlated.util.PhaseTimer;
+import correlated.util.Snapshot;
 
 @Description("Specifies transition probability matrix for a collection of multiple characters."
 		+ " At every infinitesimal time step, only one component can change values, so some transition rates are 0, the others arbitrary"
@@ -48,9 +62,132 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 			"corresponding compound data type");
 	public Input<CompoundAlignment> alignmentInput = new Input<CompoundAlignment>("alignment",
 			"corresponding alignment to derive parameter dimensions from");
+	public Input<Integer> transitionCacheSizeInput = new Input<Integer>("transitionCacheSize",
+			"number of transition probability matrices to keep per rate matrix, keyed by branch length times rate."
+					+ " Every new rate matrix misses for all branches, so this only pays off when branch lengths"
+					+ " repeat, eg. sister tips on an ultrametric tree; then use twice the number of taxa times"
+					+ " the number of rate categories (default 0, caching off)",
+			0);
+	public Input<Boolean> reversibleInput = new Input<Boolean>("reversible",
+			"tie the rate of every transition to the rate of the reverse transition, so that `rates` has half the"
+					+ " usual dimension, and decompose the rate matrix with a symmetric eigen solver."
+					+ " All frequencies must be positive.",
+			false);
+	public Input<String> snapshotInput = new Input<String>("snapshot",
+			"binary file to keep an eigen decomposition in, so that a restarted run can start from it instead of"
+					+ " decomposing again, if the rates are still the same. It is written for the rates the run"
+					+ " starts with, and again whenever stateFile has been written");
+	public Input<String> stateFileInput = new Input<String>("stateFile",
+			"the state file of the run, as given to BEAST with -statefile, so that a resumed run finds the"
+					+ " decomposition of the state it resumes from in the snapshot");
+	public Input<String> storageInput = new Input<String>("storage",
+			"how to keep eigen vectors and cached transition matrices: 'double', 'float' (half the memory, at"
+					+ " a relative precision of about 1e-7) or 'offheap' (float, outside the Java heap)",
+			MatrixStorage.DOUBLE);
+	public Input<String> exponentialInput = new Input<String>("exponential",
+			"how to calculate transition probabilities: 'eigen' (from the eigen decomposition), 'pade'"
+					+ " (scaling and squaring with Padé approximants, which also works for defective rate"
+					+ " matrices) or 'auto' (eigen, unless the decomposition of a rate matrix turns out to be"
+					+ " ill-conditioned or inaccurate, then Padé for that matrix)",
+			EXPONENTIAL_AUTO);
+
+	public static final String EXPONENTIAL_AUTO = "auto";
+	public static final String EXPONENTIAL_EIGEN = "eigen";
+	public static final String EXPONENTIAL_PADE = "pade";
+	/**
+	 * In 'auto' mode, the largest acceptable condition number ‖U‖₁·‖U⁻¹‖₁ of
+	 * the eigen vectors, and the largest acceptable residual ‖QU - UΛ‖,
+	 * relative to max|Q|·max|U|.
+	 */
+	static final double MAX_CONDITION = 1e10;
+	static final double MAX_RESIDUAL = 1e-8;
+	/**
+	 * Roughly the number of multiply-adds below which a batch of transition
+	 * matrices is not split further
+	 */
+	static final long BATCH_GRAIN = 1L << 18;
 
 	protected Integer[] shape;
 	protected int nonzeroTransitions = 0;
+	/** For every transition slot, its target state, see RateSlots.targets */
+	protected int[] slotTargets;
+	/** Work space for depends, one per thread */
+	protected final ThreadLocal<boolean[]> dependsScratch = new ThreadLocal<boolean[]>();
+
+	static final String[] METRIC_COUNTERS = { "eigenDecompositions", "padeApproximations" };
+	static final int DECOMPOSITIONS = 0;
+	static final int PADE_APPROXIMATIONS = 1;
+	static final String[] METRIC_TIMERS = { "rateMatrixRebuilds", "depends" };
+	static final int REBUILD = 0;
+	static final int DEPENDS = 1;
+	/** Counters and latencies for JMX, or null if metrics are disabled */
+	protected Metrics metrics;
+
+	/**
+	 * In reversible mode, the index in `rates` for every transition slot,
+	 * see RateSlots.reversibleRateIndices; null otherwise.
+	 */
+	protected int[] rateIndices;
+	protected SymmetricEigenSystem symmetricEigenSystem;
+	protected double[][] symmetricMatrix;
+
+	/**
+	 * Work space for the transition probability kernel, one per likelihood
+	 * thread.
+	 */
+	protected final ThreadLocal<double[]> kernelScratch = new ThreadLocal<double[]>();
+
+	protected TransitionMatrixCache transitionCache;
+
+	/**
+	 * Two sets of rate matrix and eigen decomposition: one belongs to the
+	 * stored state, the other one is free to be overwritten by a proposal.
+	 * store() and restore() only move the indices, and the inherited
+	 * `eigenDecomposition` stays null so GeneralSubstitutionModel has nothing
+	 * to copy.
+	 */
+	protected double[][][] rateMatrixBuffers;
+	protected EigenDecomposition[] decompositionBuffers;
+	protected volatile int currentBuffer = 0;
+	protected int storedBuffer = 0;
+
+	protected File snapshot;
+	protected boolean snapshotTried;
+	protected File stateFile;
+	/** When the state file was last seen to change */
+	protected long stateFileModified;
+	/** With a snapshot: the rates and frequencies each buffer was built from */
+	protected double[][] bufferRates;
+	protected double[][] bufferFrequencies;
+
+	/**
+	 * Unless the storage is 'double', the eigen vectors and inverse eigen
+	 * vectors of each buffer live here instead of in decompositionBuffers,
+	 * which then stays empty.
+	 */
+	protected String storage;
+	protected MatrixStorage[] eigenVectorBuffers;
+	protected MatrixStorage[] inverseEigenVectorBuffers;
+	protected double[][] eigenValueBuffers;
+
+	protected String exponential;
+	/**
+	 * For each buffer, the Padé exponential of its rate matrix if it is used
+	 * instead of the eigen decomposition, or null.
+	 */
+	protected PadeExponential[] padeBuffers;
+	protected final ThreadLocal<PadeExponential.Workspace> padeWorkspace = new ThreadLocal<PadeExponential.Workspace>();
+	protected boolean padeAnnounced;
+	/** Work space for checking decompositions, N² each */
+	protected double[] flatRateMatrix;
+	protected double[] checkProduct;
+	/**
+	 * Copy of the rate matrix for the eigen system, which overwrites the
+	 * matrix it decomposes, N×N
+	 */
+	protected double[][] decompositionMatrix;
+	/** The values of `rates` the rate matrix is built from */
+	protected double[] rateValues;
 
 	@Override
 	public void initAndValidate() {
@@ -82,16 +219,36 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 			nrOfStates *= size;
 			nonzeroTransitions += size - 1;
 		}
+		slotTargets = RateSlots.targets(shape);
 
 		if (nrOfStates != frequencies.getFreqs().length) {
 			throw new RuntimeException("Dimension of input 'frequencies' is " + frequencies.getFreqs().length
 					+ " but the " + "shape input gives a total dimension of " + nrOfStates);
 		}
 
-		if (ratesInput.get().getDimension() != nrOfStates * nonzeroTransitions) {
-			throw new RuntimeException("Dimension of input 'rates' is " + ratesInput.get().getDimension() + " but a "
-					+ "rate matrix of dimension " + nrOfStates + "x" + nonzeroTransitions + "="
-					+ nrOfStates * nonzeroTransitions + " was " + "expected");
+		if (reversibleInput.get()) {
+			for (double freq : frequencies.getFreqs()) {
+				if (freq <= 0) {
+					throw new IllegalArgumentException("A reversible model needs positive frequencies");
+				}
+			}
+			rateIndices = RateSlots.reversibleRateIndices(shape);
+			symmetricEigenSystem = new SymmetricEigenSystem();
+			symmetricMatrix = new double[nrOfStates][nrOfStates];
+			if (ratesInput.get().getDimension() != nrOfStates * nonzeroTransitions / 2) {
+				throw new RuntimeException("Dimension of input 'rates' is " + ratesInput.get().getDimension()
+						+ " but a reversible rate matrix of dimension " + nrOfStates + "x" + nonzeroTransitions
+						+ "/2=" + nrOfStates * nonzeroTransitions / 2 + " was " + "expected");
+			}
+		} else {
+			rateIndices = null;
+			symmetricEigenSystem = null;
+			symmetricMatrix = null;
+			if (ratesInput.get().getDimension() != nrOfStates * nonzeroTransitions) {
+				throw new RuntimeException("Dimension of input 'rates' is " + ratesInput.get().getDimension()
+						+ " but a " + "rate matrix of dimension " + nrOfStates + "x" + nonzeroTransitions + "="
+						+ nrOfStates * nonzeroTransitions + " was " + "expected");
+			}
 		}
 
 		try {
@@ -111,40 +268,725 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 			e.printStackTrace();
 		}
 
-		rateMatrix = new double[nrOfStates][nrOfStates];
-		relativeRates = new double[ratesInput.get().getDimension()];
-		storedRelativeRates = new double[ratesInput.get().getDimension()];
+		rateMatrixBuffers = new double[2][nrOfStates][nrOfStates];
+		decompositionMatrix = new double[nrOfStates][nrOfStates];
+		decompositionBuffers = new EigenDecomposition[2];
+		currentBuffer = 0;
+		storedBuffer = 0;
+		rateMatrix = rateMatrixBuffers[currentBuffer];
+		eigenDecomposition = null;
+		// setupRateMatrix reads the rates directly, so there is nothing to
+		// keep (or copy on store) here.
+		relativeRates = new double[0];
+		storedRelativeRates = new double[0];
 
+		if (snapshotInput.get() != null) {
+			snapshot = new File(snapshotInput.get());
+			snapshotTried = false;
+			bufferRates = new double[2][];
+			bufferFrequencies = new double[2][];
+			if (stateFileInput.get() != null) {
+				stateFile = new File(stateFileInput.get());
+				stateFileModified = stateFile.lastModified();
+			} else {
+				stateFile = null;
+			}
+		} else {
+			snapshot = null;
+			stateFile = null;
+		}
+
+		exponential = exponentialInput.get();
+		if (!EXPONENTIAL_AUTO.equals(exponential) && !EXPONENTIAL_EIGEN.equals(exponential)
+				&& !EXPONENTIAL_PADE.equals(exponential)) {
+			throw new IllegalArgumentException("exponential must be one of " + EXPONENTIAL_AUTO + ", "
+					+ EXPONENTIAL_EIGEN + ", " + EXPONENTIAL_PADE);
+		}
+		padeBuffers = new PadeExponential[2];
+		padeAnnounced = false;
+		flatRateMatrix = null;
+		checkProduct = null;
+
+		storage = storageInput.get();
+		if (MatrixStorage.DOUBLE.equals(storage)) {
+			eigenVectorBuffers = null;
+			inverseEigenVectorBuffers = null;
+			eigenValueBuffers = null;
+		} else {
+			// Allocated once, because off-heap memory is expensive to get
+			eigenVectorBuffers = new MatrixStorage[2];
+			inverseEigenVectorBuffers = new MatrixStorage[2];
+			eigenValueBuffers = new double[2][];
+			for (int b = 0; b < 2; ++b) {
+				eigenVectorBuffers[b] = MatrixStorage.allocate(storage, nrOfStates * nrOfStates);
+				inverseEigenVectorBuffers[b] = MatrixStorage.allocate(storage, nrOfStates * nrOfStates);
+			}
+		}
+
+		if (transitionCacheSizeInput.get() > 0) {
+			// Cached matrices come and go with every rate matrix, which is
+			// too often for off-heap allocations, so they stay on the heap.
+			transitionCache = new TransitionMatrixCache(transitionCacheSizeInput.get(),
+					MatrixStorage.OFFHEAP.equals(storage) ? MatrixStorage.FLOAT : storage);
+		} else {
+			transitionCache = null;
+		}
+
+		metrics = Metrics.register(this, METRIC_COUNTERS, METRIC_TIMERS);
+		if (metrics != null && transitionCache != null) {
+			final TransitionMatrixCache cache = transitionCache;
+			metrics.addGauge("transitionCacheHits", cache::getHits);
+			metrics.addGauge("transitionCacheMisses", cache::getMisses);
+		}
 	} // initAndValidate
 
 	public Integer[] getShape() {
 		return shape.clone();
 	}
 
+	/**
+	 * Rebuild the rate matrix and its eigen decomposition, if anything changed
+	 * since they were last calculated.
+	 */
+	protected void updateEigenSystem() {
+		if (updateMatrix) {
+			final long start = PhaseTimer.start();
+			final long metricsStart = metrics == null ? 0L : metrics.start();
+			// This must be synchronized to avoid being called simultaneously
+			// by two different likelihood threads.
+			synchronized (this) {
+				if (updateMatrix) {
+					// Never overwrite the buffer of the stored state
+					int target = currentBuffer;
+					if (target == storedBuffer) {
+						target = 1 - storedBuffer;
+					}
+					rateMatrix = rateMatrixBuffers[target];
+					setupRateMatrix();
+					EigenDecomposition decomposition = null;
+					PadeExponential pade = null;
+					boolean writeSnapshot = false;
+					if (EXPONENTIAL_PADE.equals(exponential)) {
+						pade = new PadeExponential(rateMatrix);
+						if (metrics != null) {
+							metrics.count(PADE_APPROXIMATIONS);
+						}
+					} else if (snapshot != null) {
+						Function rates = ratesInput.get();
+						bufferRates[target] = new double[rates.getDimension()];
+						for (int i = 0; i < bufferRates[target].length; ++i) {
+							bufferRates[target][i] = rates.getArrayValue(i);
+						}
+						bufferFrequencies[target] = frequencies.getFreqs().clone();
+						if (!snapshotTried) {
+							snapshotTried = true;
+							decomposition = readSnapshot(bufferRates[target], bufferFrequencies[target]);
+							// Keep the starting rates' decomposition for the
+							// next start from the same values.
+							writeSnapshot = decomposition == null;
+						}
+					}
+					if (pade == null && decomposition == null) {
+						// The accuracy check and the Padé fallback need the
+						// untouched rate matrix.
+						for (int i = 0; i < nrOfStates; ++i) {
+							System.arraycopy(rateMatrix[i], 0, decompositionMatrix[i], 0, nrOfStates);
+						}
+						decomposition = decompose(decompositionMatrix);
+						if (metrics != null) {
+							metrics.count(DECOMPOSITIONS);
+						}
+					}
+					if (pade == null && EXPONENTIAL_AUTO.equals(exponential) && !isReversible()
+							&& !isAccurate(rateMatrix, decomposition)) {
+						if (!padeAnnounced) {
+							Log.info.println(getID() + ": eigen decomposition of the rate matrix is unreliable,"
+									+ " using Padé approximants where necessary");
+							padeAnnounced = true;
+						}
+						pade = new PadeExponential(rateMatrix);
+						if (metrics != null) {
+							metrics.count(PADE_APPROXIMATIONS);
+						}
+					}
+					padeBuffers[target] = pade;
+					if (pade != null) {
+						decompositionBuffers[target] = null;
+						if (eigenValueBuffers != null) {
+							eigenValueBuffers[target] = null;
+						}
+					} else if (eigenVectorBuffers == null) {
+						decompositionBuffers[target] = decomposition;
+					} else {
+						eigenVectorBuffers[target].copyFrom(decomposition.getEigenVectors());
+						inverseEigenVectorBuffers[target].copyFrom(decomposition.getInverseEigenVectors());
+						eigenValueBuffers[target] = decomposition.getEigenValues();
+					}
+					currentBuffer = target;
+					if (transitionCache != null) {
+						transitionCache.invalidate();
+					}
+					updateMatrix = false;
+					if (writeSnapshot && isDecomposed(currentBuffer)) {
+						writeSnapshot();
+					}
+				}
+			}
+			PhaseTimer.stop(PhaseTimer.Phase.SUBSTITUTION_MODEL, start);
+			if (metrics != null) {
+				metrics.stop(REBUILD, metricsStart);
+			}
+		}
+	}
+
+	@Override
+	public void getTransitionProbabilities(Node node, double fStartTime, double fEndTime, double fRate,
+			double[] matrix) {
+		updateEigenSystem();
+		final double distance = (fStartTime - fEndTime) * fRate;
+		long version = 0;
+		if (transitionCache != null) {
+			version = transitionCache.getVersion();
+			if (transitionCache.get(distance, matrix)) {
+				return;
+			}
+		}
+		// Read the buffer index once, so that a concurrent update cannot mix
+		// vectors and values from different rate matrices.
+		computeTransitionProbabilities(currentBuffer, distance, null, 0, matrix);
+		if (transitionCache != null) {
+			transitionCache.put(version, distance, matrix);
+		}
+	}
+
+	/**
+	 * Compute the transition probabilities for many effective branch lengths
+	 * (branch length times rate, eg. for all branches and rate categories) at
+	 * once. Every exp(λt) is calculated in one sweep, and the matrices are
+	 * filled in parallel on the common fork-join pool.
+	 *
+	 * @param distances
+	 *            the effective branch lengths
+	 * @param matrices
+	 *            receives P(distances[i]) in matrices[i], each N×N
+	 */
+	public void getTransitionProbabilities(final double[] distances, final double[][] matrices) {
+		if (distances.length != matrices.length) {
+			throw new IllegalArgumentException("Need one matrix per distance, got " + matrices.length + " for "
+					+ distances.length);
+		}
+		updateEigenSystem();
+		final int buffer = currentBuffer;
+		long version = 0;
+		int[] missing = new int[distances.length];
+		int misses = 0;
+		if (transitionCache != null) {
+			version = transitionCache.getVersion();
+		}
+		for (int i = 0; i < distances.length; ++i) {
+			if (transitionCache == null || !transitionCache.get(distances[i], matrices[i])) {
+				missing[misses] = i;
+				++misses;
+			}
+		}
+		if (misses == 0) {
+			return;
+		}
+
+		double[] values = null;
+		if (padeBuffers[buffer] == null) {
+			values = eigenVectorBuffers == null ? decompositionBuffers[buffer].getEigenValues()
+					: eigenValueBuffers[buffer];
+		}
+		double[] scales = null;
+		if (values != null) {
+			scales = new double[misses * nrOfStates];
+			for (int m = 0; m < misses; ++m) {
+				final double distance = distances[missing[m]];
+				final int offset = m * nrOfStates;
+				for (int k = 0; k < nrOfStates; ++k) {
+					scales[offset + k] = Math.exp(distance * values[k]);
+				}
+			}
+		}
+
+		// Enough matrices per task to make forking worth it for small N
+		final long cube = (long) nrOfStates * nrOfStates * nrOfStates;
+		final int grain = (int) Math.max(1, BATCH_GRAIN / cube);
+		TransitionBatch batch = new TransitionBatch(buffer, distances, matrices, missing, scales, 0, misses, grain);
+		if (misses <= grain) {
+			batch.compute();
+		} else {
+			ForkJoinPool.commonPool().invoke(batch);
+		}
+
+		if (transitionCache != null) {
+			for (int m = 0; m < misses; ++m) {
+				transitionCache.put(version, distances[missing[m]], matrices[missing[m]]);
+			}
+		}
+	}
+
+	/** The transition matrices missing[from..to) of one batch */
+	protected class TransitionBatch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int buffer;
+		final double[] distances;
+		final double[][] matrices;
+		final int[] missing;
+		final double[] scales;
+		final int from;
+		final int to;
+		final int grain;
+
+		TransitionBatch(int buffer, double[] distances, double[][] matrices, int[] missing, double[] scales,
+				int from, int to, int grain) {
+			this.buffer = buffer;
+			this.distances = distances;
+			this.matrices = matrices;
+			this.missing = missing;
+			this.scales = scales;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > grain) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TransitionBatch(buffer, distances, matrices, missing, scales, from, middle, grain),
+						new TransitionBatch(buffer, distances, matrices, missing, scales, middle, to, grain));
+				return;
+			}
+			for (int m = from; m < to; ++m) {
+				computeTransitionProbabilities(buffer, distances[missing[m]], scales, m * nrOfStates,
+						matrices[missing[m]]);
+			}
+		}
+	}
+
+	/**
+	 * Compute P(distance) for the rate matrix of the given buffer, bypassing
+	 * the cache.
+	 *
+	 * @param scales
+	 *            if not null, exp(λ_k·distance) for all eigen values λ_k,
+	 *            starting at `offset`
+	 */
+	protected void computeTransitionProbabilities(int buffer, double distance, double[] scales, int offset,
+			double[] matrix) {
+		final PadeExponential pade = padeBuffers[buffer];
+		if (pade != null) {
+			PadeExponential.Workspace workspace = padeWorkspace.get();
+			if (workspace == null) {
+				workspace = new PadeExponential.Workspace(nrOfStates);
+				padeWorkspace.set(workspace);
+			}
+			pade.exp(distance, workspace, matrix);
+			return;
+		}
+		double[] scratch = kernelScratch.get();
+		if (scratch == null || scratch.length < nrOfStates * nrOfStates) {
+			scratch = new double[nrOfStates * nrOfStates];
+			kernelScratch.set(scratch);
+		}
+		if (eigenVectorBuffers == null) {
+			final EigenDecomposition decomposition = decompositionBuffers[buffer];
+			if (scales == null) {
+				TransitionKernels.transitionProbabilities(decomposition.getEigenVectors(),
+						decomposition.getEigenValues(), decomposition.getInverseEigenVectors(), nrOfStates,
+						distance, scratch, matrix);
+			} else {
+				TransitionKernels.scaledTransitionProbabilities(decomposition.getEigenVectors(), scales, offset,
+						decomposition.getInverseEigenVectors(), nrOfStates, scratch, matrix);
+			}
+		} else if (scales == null) {
+			TransitionKernels.transitionProbabilities(eigenVectorBuffers[buffer], eigenValueBuffers[buffer],
+					inverseEigenVectorBuffers[buffer], nrOfStates, distance, scratch, matrix);
+		} else {
+			TransitionKernels.scaledTransitionProbabilities(eigenVectorBuffers[buffer], scales, offset,
+					inverseEigenVectorBuffers[buffer], nrOfStates, scratch, matrix);
+		}
+	}
+
+	/**
+	 * @return the cache of transition probability matrices, or null if
+	 *         caching is switched off
+	 */
+	public TransitionMatrixCache getTransitionCache() {
+		return transitionCache;
+	}
+
+	@Override
+	public void store() {
+		storedBuffer = currentBuffer;
+		if (transitionCache != null) {
+			transitionCache.store();
+		}
+		if (stateFile != null && isDecomposed(currentBuffer)) {
+			checkStateFile();
+		}
+		super.store();
+	}
+
+	static final String SNAPSHOT_KIND = "CorrelatedSubstitutionModel";
+
+	/**
+	 * Write the snapshot if the state file has changed. BEAST writes the state
+	 * file between two steps, and the rates cannot change without calling
+	 * store first, so at the first store after that the current buffer still
+	 * belongs to the state in the file. Looking at the file costs about a
+	 * microsecond, so this is only done with a stateFile.
+	 */
+	protected void checkStateFile() {
+		long modified = stateFile.lastModified();
+		if (modified != stateFileModified) {
+			stateFileModified = modified;
+			writeSnapshot();
+		}
+	}
+
+	/**
+	 * Write the decomposition of the current buffer, ie. of the last accepted
+	 * state, together with everything it was built from.
+	 */
+	protected void writeSnapshot() {
+		EigenDecomposition decomposition = decomposition(currentBuffer);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(shape.length);
+			for (int size : shape) {
+				out.writeInt(size);
+			}
+			out.writeBoolean(isReversible());
+			Snapshot.writeDoubles(out, bufferRates[currentBuffer]);
+			Snapshot.writeDoubles(out, bufferFrequencies[currentBuffer]);
+			Snapshot.writeDoubles(out, decomposition.getEigenVectors());
+			Snapshot.writeDoubles(out, decomposition.getInverseEigenVectors());
+			Snapshot.writeDoubles(out, decomposition.getEigenValues());
+			out.close();
+			Snapshot.write(snapshot, SNAPSHOT_KIND, bytes.toByteArray());
+		} catch (IOException e) {
+			// The snapshot is only an optimisation
+			Log.warning.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the decomposition from the snapshot, if it was built from
+	 *         exactly these rates and frequencies, or null
+	 */
+	protected EigenDecomposition readSnapshot(double[] rates, double[] freqs) {
+		DataInputStream in = Snapshot.read(snapshot, SNAPSHOT_KIND);
+		if (in == null) {
+			return null;
+		}
+		try {
+			int length = in.readInt();
+			if (length != shape.length) {
+				return null;
+			}
+			for (int size : shape) {
+				if (in.readInt() != size) {
+					return null;
+				}
+			}
+			if (in.readBoolean() != isReversible()) {
+				return null;
+			}
+			if (!Arrays.equals(Snapshot.readDoubles(in), rates) || !Arrays.equals(Snapshot.readDoubles(in), freqs)) {
+				Log.info.println("Snapshot " + snapshot + " belongs to different rates, decomposing anew");
+				return null;
+			}
+			double[] eigenVectors = Snapshot.readDoubles(in);
+			double[] inverseEigenVectors = Snapshot.readDoubles(in);
+			double[] eigenValues = Snapshot.readDoubles(in);
+			if (eigenVectors.length != nrOfStates * nrOfStates
+					|| inverseEigenVectors.length != nrOfStates * nrOfStates) {
+				return null;
+			}
+			return new EigenDecomposition(eigenVectors, inverseEigenVectors, eigenValues);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void restore() {
+		currentBuffer = storedBuffer;
+		rateMatrix = rateMatrixBuffers[currentBuffer];
+		if (transitionCache != null) {
+			transitionCache.restore();
+		}
+		super.restore();
+	}
+
+	@Override
+	public EigenDecomposition getEigenDecomposition(Node node) {
+		updateEigenSystem();
+		return decomposition(currentBuffer);
+	}
+
+	protected boolean isDecomposed(int buffer) {
+		if (eigenVectorBuffers == null) {
+			return decompositionBuffers[buffer] != null;
+		}
+		return eigenValueBuffers[buffer] != null;
+	}
+
+	/**
+	 * @return the decomposition of the given buffer, or null if its
+	 *         transition probabilities come from Padé approximants. Unless the
+	 *         storage is 'double', this is a new copy in double precision,
+	 *         which is only meant for occasional use (eg. by BEAGLE or for
+	 *         snapshots).
+	 */
+	protected EigenDecomposition decomposition(int buffer) {
+		if (eigenVectorBuffers == null) {
+			return decompositionBuffers[buffer];
+		}
+		if (eigenValueBuffers[buffer] == null) {
+			return null;
+		}
+		return new EigenDecomposition(eigenVectorBuffers[buffer].toArray(),
+				inverseEigenVectorBuffers[buffer].toArray(), eigenValueBuffers[buffer].clone());
+	}
+
+	/**
+	 * Check that Q = U·Λ·U⁻¹ can be trusted: all entries are finite, U is
+	 * well-conditioned and QU = UΛ holds up to round-off. This costs one
+	 * matrix product. Complex eigen values, whose imaginary parts the default
+	 * eigen system drops, fail the last test.
+	 */
+	protected boolean isAccurate(double[][] matrix, EigenDecomposition decomposition) {
+		final int n = nrOfStates;
+		final double[] vectors = decomposition.getEigenVectors();
+		final double[] inverse = decomposition.getInverseEigenVectors();
+		final double[] values = decomposition.getEigenValues();
+		for (int k = 0; k < n; ++k) {
+			if (Double.isNaN(values[k]) || Double.isInfinite(values[k])) {
+				return false;
+			}
+		}
+		double vectorNorm = 0.0;
+		double inverseNorm = 0.0;
+		double maxVector = 0.0;
+		for (int j = 0; j < n; ++j) {
+			double vectorSum = 0.0;
+			double inverseSum = 0.0;
+			for (int i = 0; i < n; ++i) {
+				vectorSum += Math.abs(vectors[i * n + j]);
+				inverseSum += Math.abs(inverse[i * n + j]);
+				maxVector = Math.max(maxVector, Math.abs(vectors[i * n + j]));
+			}
+			vectorNorm = Math.max(vectorNorm, vectorSum);
+			inverseNorm = Math.max(inverseNorm, inverseSum);
+		}
+		// Also false for NaN entries
+		if (!(vectorNorm * inverseNorm <= MAX_CONDITION)) {
+			return false;
+		}
+
+		if (flatRateMatrix == null) {
+			flatRateMatrix = new double[n * n];
+			checkProduct = new double[n * n];
+		}
+		double maxRate = 0.0;
+		for (int i = 0; i < n; ++i) {
+			System.arraycopy(matrix[i], 0, flatRateMatrix, i * n, n);
+			for (int j = 0; j < n; ++j) {
+				maxRate = Math.max(maxRate, Math.abs(matrix[i][j]));
+			}
+		}
+		TransitionKernels.multiply(flatRateMatrix, vectors, n, checkProduct);
+		final double tolerance = MAX_RESIDUAL * maxRate * maxVector;
+		for (int i = 0; i < n; ++i) {
+			for (int k = 0; k < n; ++k) {
+				if (!(Math.abs(checkProduct[i * n + k] - vectors[i * n + k] * values[k]) <= tolerance)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/** @return whether the current rate matrix uses Padé approximants */
+	public boolean usesPade() {
+		updateEigenSystem();
+		return padeBuffers[currentBuffer] != null;
+	}
+
+	/**
+	 * Decompose the rate matrix for arbitrary values of `rates`, outside the
+	 * state of this model, eg. for the intermediate steps of a Hamiltonian
+	 * Monte Carlo trajectory. The same exponential method as for the state
+	 * is chosen.
+	 *
+	 * @param rates
+	 *            values for every entry of `rates`
+	 */
+	public synchronized RateMatrixGradient gradientSystem(double[] rates) {
+		double[][] matrix = new double[nrOfStates][nrOfStates];
+		fillRateMatrix(matrix, rates);
+		if (EXPONENTIAL_PADE.equals(exponential)) {
+			return new RateMatrixGradient(matrix, null);
+		}
+		// The eigen system may overwrite the matrix it decomposes.
+		double[][] copy = new double[nrOfStates][];
+		for (int i = 0; i < nrOfStates; ++i) {
+			copy[i] = matrix[i].clone();
+		}
+		EigenDecomposition decomposition = decompose(copy);
+		if (EXPONENTIAL_AUTO.equals(exponential) && !isReversible() && !isAccurate(matrix, decomposition)) {
+			decomposition = null;
+		}
+		return new RateMatrixGradient(matrix, decomposition);
+	}
+
+	/**
+	 * Turn the derivatives of some function by the entries of the normalised
+	 * rate matrix Q into its derivatives by the entries of `rates`. With
+	 * off-diagonal entries Q_kl = r·π_l / μ for the rate r of the slot k→l,
+	 * and μ the expected number of substitutions per unit time before
+	 * normalisation, this is
+	 * ∂f/∂r = π_l / μ · (∂f/∂Q_kl - ∂f/∂Q_kk) - π_k·π_l / μ · Σ_ij Q_ij·∂f/∂Q_ij.
+	 *
+	 * @param rates
+	 *            the values of `rates` Q was built from
+	 * @param matrixGradient
+	 *            ∂f/∂Q, N×N
+	 * @param gradient
+	 *            receives ∂f/∂rates
+	 */
+	public void rateGradient(double[] rates, double[] matrixGradient, double[] gradient) {
+		final int n = nrOfStates;
+		final double[] fFreqs = frequencies.getFreqs();
+		double mu = 0.0;
+		double weighted = 0.0;
+		int next = 0;
+		for (int k = 0; k < n; ++k) {
+			for (int t = 0; t < nonzeroTransitions; ++t) {
+				int l = slotTargets[next];
+				double rate = rates[rateIndex(next)];
+				mu += fFreqs[k] * rate * fFreqs[l];
+				weighted += rate * fFreqs[l] * (matrixGradient[k * n + l] - matrixGradient[k * n + k]);
+				++next;
+			}
+		}
+		// Σ_ij Q_ij·∂f/∂Q_ij
+		weighted /= mu;
+
+		Arrays.fill(gradient, 0.0);
+		next = 0;
+		for (int k = 0; k < n; ++k) {
+			for (int t = 0; t < nonzeroTransitions; ++t) {
+				int l = slotTargets[next];
+				gradient[rateIndex(next)] += fFreqs[l] / mu * (matrixGradient[k * n + l] - matrixGradient[k * n + k])
+						- fFreqs[k] * fFreqs[l] / mu * weighted;
+				++next;
+			}
+		}
+	}
+
+	/**
+	 * Eigen decomposition of the rate matrix Q. In reversible mode, Q =
+	 * R·Π with symmetric R, so S = Π^½·Q·Π^-½ is symmetric. With S = V·Λ·Vᵀ,
+	 * Q = (Π^-½·V)·Λ·(Vᵀ·Π^½).
+	 */
+	protected EigenDecomposition decompose(double[][] matrix) {
+		if (rateIndices == null) {
+			return eigenSystem.decomposeMatrix(matrix);
+		}
+		double[] fFreqs = frequencies.getFreqs();
+		double[] root = new double[nrOfStates];
+		for (int i = 0; i < nrOfStates; ++i) {
+			root[i] = Math.sqrt(fFreqs[i]);
+		}
+		for (int i = 0; i < nrOfStates; ++i) {
+			symmetricMatrix[i][i] = matrix[i][i];
+			for (int j = i + 1; j < nrOfStates; ++j) {
+				// Both products are the same up to rounding; average them to
+				// get an exactly symmetric matrix.
+				double s = 0.5 * (root[i] * matrix[i][j] / root[j] + root[j] * matrix[j][i] / root[i]);
+				symmetricMatrix[i][j] = s;
+				symmetricMatrix[j][i] = s;
+			}
+		}
+		EigenDecomposition decomposition = symmetricEigenSystem.decomposeMatrix(symmetricMatrix);
+		double[] eigenVectors = decomposition.getEigenVectors();
+		double[] inverseEigenVectors = decomposition.getInverseEigenVectors();
+		for (int i = 0; i < nrOfStates; ++i) {
+			for (int j = 0; j < nrOfStates; ++j) {
+				eigenVectors[i * nrOfStates + j] /= root[i];
+				inverseEigenVectors[i * nrOfStates + j] *= root[j];
+			}
+		}
+		return decomposition;
+	}
+
+	/**
+	 * @return the rate of the transition slot `slot`, see RateSlots
+	 */
+	protected double getSlotRate(Function rates, int slot) {
+		if (rateIndices == null) {
+			return rates.getArrayValue(slot);
+		}
+		return rates.getArrayValue(rateIndices[slot]);
+	}
+
+	/**
+	 * @return the entry of `rates` that transition slot `slot` uses
+	 */
+	protected int rateIndex(int slot) {
+		return rateIndices == null ? slot : rateIndices[slot];
+	}
+
+	public boolean isReversible() {
+		return rateIndices != null;
+	}
+
+	/**
+	 * The rates are read directly from the input by setupRateMatrix.
+	 */
+	@Override
+	public void setupRelativeRates() {
+	}
+
 	/**
 	 * sets up rate matrix *
 	 */
 	protected void setupRateMatrix() {
+		Function rates = ratesInput.get();
+		if (rateValues == null || rateValues.length != rates.getDimension()) {
+			rateValues = new double[rates.getDimension()];
+		}
+		for (int i = 0; i < rateValues.length; ++i) {
+			rateValues[i] = rates.getArrayValue(i);
+		}
+		fillRateMatrix(rateMatrix, rateValues);
+	}
+
+	/**
+	 * Fill `rateMatrix` with the normalised rate matrix for the given values
+	 * of `rates`.
+	 */
+	protected void fillRateMatrix(double[][] rateMatrix, double[] rates) {
 		// Reset the rate matrix to zero. This is important, because
 		// DefaultEigenSystem overwrites it, and sets some zero entries to
 		// non-zero.
-		rateMatrix = new double[rateMatrix.length][rateMatrix[0].length];
+		for (double[] row : rateMatrix) {
+			Arrays.fill(row, 0.0);
+		}
 
 		double[] fFreqs = frequencies.getFreqs();
 
 		int next = 0;
 		for (int k = 0; k < rateMatrix.length; ++k) {
-			int[] kAsComponentIndices = CompoundDataType.compoundState2componentStates(shape, k);
-			for (int c = 0; c < shape.length; ++c) {
-				int[] lAsComponentIndices = kAsComponentIndices.clone();
-				for (int i = 0; i < shape[c]; ++i) {
-					if (i != kAsComponentIndices[c]) {
-						lAsComponentIndices[c] = i;
-						int l = CompoundDataType.componentState2compoundState(shape, lAsComponentIndices);
-						rateMatrix[k][l] = ratesInput.get().getArrayValue(next);
-						++next;
-					}
-				}
+			for (int t = 0; t < nonzeroTransitions; ++t) {
+				rateMatrix[k][slotTargets[next]] = rates[rateIndex(next)];
+				++next;
 			}
 		}
 
@@ -178,9 +1020,19 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 			}
 		}
 		// System.out.println(">" + Arrays.deepToString(rateMatrix));
-	} // setupRateMatrix
+	} // fillRateMatrix
 
 	public boolean depends(int component, int dependsOn) {
+		if (metrics == null) {
+			return checkDependency(component, dependsOn);
+		}
+		final long start = metrics.start();
+		final boolean result = checkDependency(component, dependsOn);
+		metrics.stop(DEPENDS, start);
+		return result;
+	}
+
+	protected boolean checkDependency(int component, int dependsOn) {
 		// Check whether the evolution rates of `component` depend on the state
 		// of `dependsOn`.
 
@@ -211,17 +1063,23 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 			}
 		}
 
-		boolean[] checked = new boolean[nrOfStates];
+		boolean[] checked = dependsScratch.get();
+		if (checked == null) {
+			checked = new boolean[nrOfStates];
+			dependsScratch.set(checked);
+		} else {
+			Arrays.fill(checked, false);
+		}
 		for (int from = 0; from < nrOfStates; ++from) {
 			if (!checked[from]) {
 				checked[from] = true;
 				for (int componentTo = componentMin; componentTo < componentMax; ++componentTo) {
-					double thisRate = rates.getArrayValue(from * nonzeroTransitions + componentTo);
+					double thisRate = getSlotRate(rates, from * nonzeroTransitions + componentTo);
 					for (int other = 1; other < shape[dependsOn]; ++other) {
 						int otherIndex = from + dependsOnStep * other;
 						checked[otherIndex] = true;
 						// System.out.printf("> %d ?= %d\n", from, otherIndex);
-						double otherRate = rates.getArrayValue(otherIndex * nonzeroTransitions + componentTo);
+						double otherRate = getSlotRate(rates, otherIndex * nonzeroTransitions + componentTo);
 						if (thisRate != otherRate) {
 							// System.out.printf(" No: %f vs. %f\n", thisRate,
 							// otherRate);
@@ -233,6 +1091,6 @@ public class CorrelatedSubstitutionModel extends GeneralSubstitutionModel {
 		}
 
 		return false;
-	} // depends
+	} // checkDependency
 
 } // class GeneralSubstitutionModel
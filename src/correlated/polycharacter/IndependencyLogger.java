@@ -11,10 +11,12 @@ import beast.core.Input;
 import beast.core.Loggable;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
+import correlated.util.BinaryTrace;
+import correlated.util.ColumnarLoggable;
 
 @Description("A prior reporting on whether two traits are evolving dependently or independently"
 		+ " in a CorrelatedSubstitutionModel.")
-public class IndependencyLogger extends BEASTObject implements Loggable {
+public class IndependencyLogger extends BEASTObject implements Loggable, ColumnarLoggable {
 	public Input<CorrelatedSubstitutionModel> csmInput = new Input<CorrelatedSubstitutionModel>("model",
 			"The CorrelatedSubstitutionModel this logger is reporting");
 	
@@ -55,6 +57,29 @@ public class IndependencyLogger extends BEASTObject implements Loggable {
 		
 	}
 
+	@Override
+	public void addColumns(BinaryTrace.Columns columns) {
+		int components = csmInput.get().getShape().length;
+		for (int component1 = 0; component1 < components; ++component1) {
+			for (int component2 = 0; component2 < component1; ++component2) {
+				columns.add(BinaryTrace.Type.BIT, String.format("%s_%d_depends_on_%d", getID(), component1, component2));
+				columns.add(BinaryTrace.Type.BIT, String.format("%s_%d_depends_on_%d", getID(), component2, component1));
+			}
+		}
+	}
+
+	@Override
+	public void logColumns(BinaryTrace.Row out) {
+		CorrelatedSubstitutionModel csm = csmInput.get();
+		int components = csm.getShape().length;
+		for (int component1 = 0; component1 < components; ++component1) {
+			for (int component2 = 0; component2 < component1; ++component2) {
+				out.putBit(csm.depends(component1, component2));
+				out.putBit(csm.depends(component2, component1));
+			}
+		}
+	}
+
 	@Override
 	public void close(PrintStream out) {
         // nothing to do		
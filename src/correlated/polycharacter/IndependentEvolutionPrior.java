@@ -8,6 +8,7 @@ import beast.core.Distribution;
 import beast.core.Input;
 import beast.core.State;
 import beast.core.parameter.RealParameter;
+import correlated.util.Metrics;
 
 @Description("A distribution on correlated substitution models,"
 		+ " assuming a prior probability distribution on independent vs." + " dependent evolution models.")
@@ -19,11 +20,30 @@ public class IndependentEvolutionPrior extends Distribution {
 
 	private CorrelatedSubstitutionModel csm;
 	private double logPDependent;
+
+	static final String[] METRIC_COUNTERS = { "cachedEvaluations" };
+	static final int CACHED = 0;
+	static final String[] METRIC_TIMERS = { "calculations" };
+	static final int CALCULATIONS = 0;
+	/** Counters and latencies for JMX, or null if metrics are disabled */
+	protected Metrics metrics;
+	private boolean metricsRegistered = false;
 	
 	@Override
     public double calculateLogP() {
+		// Distributions need no initAndValidate, so register on first use.
+		if (!metricsRegistered) {
+			metrics = Metrics.register(this, METRIC_COUNTERS, METRIC_TIMERS);
+			metricsRegistered = true;
+		}
 		if (isDirtyCalculation()) {
+			final long start = metrics == null ? 0L : metrics.start();
 			calcLogP();
+			if (metrics != null) {
+				metrics.stop(CALCULATIONS, start);
+			}
+		} else if (metrics != null) {
+			metrics.count(CACHED);
 		}
 		return logP;
 	}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A flat array of matrix entries, kept either as doubles on the heap, as
+ * floats on the heap, or as floats in native memory outside the heap.
+ *
+ * The float modes halve the memory (and memory bandwidth) of large eigen
+ * systems and cached transition matrices, at a relative precision of about
+ * 1e-7. Off-heap storage also keeps these large, long-lived arrays away from
+ * the garbage collector. All arithmetic on the entries is done in double.
+ */
+public abstract class MatrixStorage {
+	public static final String DOUBLE = "double";
+	public static final String FLOAT = "float";
+	public static final String OFFHEAP = "offheap";
+
+	/**
+	 * @return a zeroed storage for `length` entries in the given mode
+	 */
+	public static MatrixStorage allocate(String mode, int length) {
+		if (DOUBLE.equals(mode)) {
+			return new Doubles(length);
+		} else if (FLOAT.equals(mode)) {
+			return new Floats(length);
+		} else if (OFFHEAP.equals(mode)) {
+			return new OffHeap(length);
+		}
+		throw new IllegalArgumentException("Unknown storage " + mode + ", expected one of " + DOUBLE + ", " + FLOAT
+				+ ", " + OFFHEAP);
+	}
+
+	/** @return the number of bytes one entry takes in the given mode */
+	public static int bytesPerEntry(String mode) {
+		return DOUBLE.equals(mode) ? 8 : 4;
+	}
+
+	public abstract int length();
+
+	public abstract double get(int i);
+
+	public abstract void set(int i, double value);
+
+	/** Copy values[0..length()) into this storage. */
+	public void copyFrom(double[] values) {
+		for (int i = 0; i < length(); ++i) {
+			set(i, values[i]);
+		}
+	}
+
+	/** Copy this storage into values[0..length()). */
+	public void copyTo(double[] values) {
+		for (int i = 0; i < length(); ++i) {
+			values[i] = get(i);
+		}
+	}
+
+	public double[] toArray() {
+		double[] values = new double[length()];
+		copyTo(values);
+		return values;
+	}
+
+	static final class Doubles extends MatrixStorage {
+		final double[] values;
+
+		Doubles(int length) {
+			values = new double[length];
+		}
+
+		@Override
+		public int length() {
+			return values.length;
+		}
+
+		@Override
+		public double get(int i) {
+			return values[i];
+		}
+
+		@Override
+		public void set(int i, double value) {
+			values[i] = value;
+		}
+
+		@Override
+		public void copyFrom(double[] from) {
+			System.arraycopy(from, 0, values, 0, values.length);
+		}
+
+		@Override
+		public void copyTo(double[] to) {
+			System.arraycopy(values, 0, to, 0, values.length);
+		}
+	}
+
+	static final class Floats extends MatrixStorage {
+		final float[] values;
+
+		Floats(int length) {
+			values = new float[length];
+		}
+
+		@Override
+		public int length() {
+			return values.length;
+		}
+
+		@Override
+		public double get(int i) {
+			return values[i];
+		}
+
+		@Override
+		public void set(int i, double value) {
+			values[i] = (float) value;
+		}
+	}
+
+	static final class OffHeap extends MatrixStorage {
+		final FloatBuffer values;
+
+		OffHeap(int length) {
+			values = ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		}
+
+		@Override
+		public int length() {
+			return values.capacity();
+		}
+
+		@Override
+		public double get(int i) {
+			return values.get(i);
+		}
+
+		@Override
+		public void set(int i, double value) {
+			values.put(i, (float) value);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.util.Arrays;
+
+/**
+ * The matrix exponential exp(tQ) of one rate matrix Q for many t, by scaling
+ * and squaring with Padé approximants (Higham 2005, "The scaling and squaring
+ * method for the matrix exponential revisited", SIAM J. Matrix Anal. Appl.
+ * 26:1179–1193).
+ *
+ * Unlike the eigen decomposition, this does not need Q to be diagonalisable
+ * or its eigen vectors to be well-conditioned. The even powers Q², Q⁴, Q⁶, Q⁸
+ * are computed once, when the object is created; every branch length then
+ * costs two or three matrix products, one linear solve and the squarings.
+ *
+ * Instances are immutable and may be shared between threads, as long as
+ * every thread brings its own Workspace.
+ */
+public class PadeExponential {
+	/** Largest ‖tQ‖₁ for which the Padé approximants of degree 3, 5, 7, 9, 13 are accurate */
+	static final double[] THETA = { 1.495585217958292e-2, 2.539398330063230e-1, 9.504178996162932e-1,
+			2.097847961257068e0, 5.371920351148152e0 };
+	static final int[] DEGREE = { 3, 5, 7, 9, 13 };
+	static final double[][] COEFFICIENTS = {
+			{ 120, 60, 12, 1 },
+			{ 30240, 15120, 3360, 420, 30, 1 },
+			{ 17297280, 8648640, 1995840, 277200, 25200, 1512, 56, 1 },
+			{ 17643225600.0, 8821612800.0, 2075673600, 302702400, 30270240, 2162160, 110880, 3960, 90, 1 },
+			{ 64764752532480000.0, 32382376266240000.0, 7771770303897600.0, 1187353796428800.0,
+					129060195264000.0, 10559470521600.0, 670442572800.0, 33522128640.0, 1323241920, 40840800,
+					960960, 16380, 182, 1 } };
+
+	protected final int n;
+	/** Q and its even powers, as flat row-major arrays: powers[k] = Q^(2k), powers[0] = Q */
+	protected final double[][] powers;
+	/** ‖Q‖₁, the maximum absolute column sum */
+	protected final double norm;
+
+	public PadeExponential(double[][] matrix) {
+		n = matrix.length;
+		powers = new double[5][n * n];
+		for (int i = 0; i < n; ++i) {
+			System.arraycopy(matrix[i], 0, powers[0], i * n, n);
+		}
+		TransitionKernels.multiply(powers[0], powers[0], n, powers[1]);
+		TransitionKernels.multiply(powers[1], powers[1], n, powers[2]);
+		TransitionKernels.multiply(powers[2], powers[1], n, powers[3]);
+		TransitionKernels.multiply(powers[2], powers[2], n, powers[4]);
+		double max = 0.0;
+		for (int j = 0; j < n; ++j) {
+			double sum = 0.0;
+			for (int i = 0; i < n; ++i) {
+				sum += Math.abs(powers[0][i * n + j]);
+			}
+			max = Math.max(max, sum);
+		}
+		norm = max;
+	}
+
+	/** Work space for {@link #exp}, one per thread */
+	public static class Workspace {
+		final double[] w;
+		final double[] x;
+		final double[] y;
+		final double[] z;
+
+		public Workspace(int n) {
+			w = new double[n * n];
+			x = new double[n * n];
+			y = new double[n * n];
+			z = new double[n * n];
+		}
+
+		boolean fits(int n) {
+			return w.length == n * n;
+		}
+	}
+
+	public int getStateCount() {
+		return n;
+	}
+
+	/**
+	 * Compute exp(tQ). Like the eigen route, the absolute value of every
+	 * entry is stored, to remove negative round-off.
+	 *
+	 * @param t
+	 *            the branch length times the rate
+	 * @param workspace
+	 *            work space for N states
+	 * @param result
+	 *            receives exp(tQ), N×N
+	 */
+	public void exp(double t, Workspace workspace, double[] result) {
+		expSigned(t, workspace, result);
+		for (int i = 0; i < n * n; ++i) {
+			result[i] = Math.abs(result[i]);
+		}
+	}
+
+	/**
+	 * Compute exp(tQ) for a matrix Q that is not necessarily a rate matrix,
+	 * keeping the signs of all entries.
+	 */
+	public void expSigned(double t, Workspace workspace, double[] result) {
+		if (!workspace.fits(n)) {
+			throw new IllegalArgumentException("The workspace is not made for " + n + " states");
+		}
+		final int nn = n * n;
+		final double[] w = workspace.w;
+		final double[] x = workspace.x;
+		final double[] y = workspace.y;
+		final double[] z = workspace.z;
+
+		// Pick the lowest degree that is accurate for ‖tQ‖₁, and scale tQ
+		// down for the highest one if necessary.
+		final double tNorm = Math.abs(t) * norm;
+		int d = 0;
+		while (d < DEGREE.length - 1 && tNorm > THETA[d]) {
+			++d;
+		}
+		int squarings = 0;
+		if (tNorm > THETA[d]) {
+			squarings = (int) Math.ceil(Math.log(tNorm / THETA[d]) / Math.log(2));
+		}
+		final double tau = t / Math.pow(2, squarings);
+		final double[] b = COEFFICIENTS[d];
+		final double t2 = tau * tau;
+		final double t4 = t2 * t2;
+		final double t6 = t4 * t2;
+		final double t8 = t4 * t4;
+
+		// With A = τQ, the approximant is (V - U)⁻¹·(V + U), where U holds the
+		// odd and V the even terms of the Padé numerator. Here, w = U/A and
+		// z = V.
+		if (DEGREE[d] == 13) {
+			// w = A⁶·(b13 A⁶ + b11 A⁴ + b9 A²) + b7 A⁶ + b5 A⁴ + b3 A² + b1 I
+			Arrays.fill(x, 0.0);
+			addEvenPowers(x, 0.0, t6 * b[9] * t2, t6 * b[11] * t4, t6 * b[13] * t6, 0.0);
+			TransitionKernels.multiply(powers[3], x, n, w);
+			addEvenPowers(w, b[1], b[3] * t2, b[5] * t4, b[7] * t6, 0.0);
+			// z = A⁶·(b12 A⁶ + b10 A⁴ + b8 A²) + b6 A⁶ + b4 A⁴ + b2 A² + b0 I
+			Arrays.fill(x, 0.0);
+			addEvenPowers(x, 0.0, t6 * b[8] * t2, t6 * b[10] * t4, t6 * b[12] * t6, 0.0);
+			TransitionKernels.multiply(powers[3], x, n, z);
+			addEvenPowers(z, b[0], b[2] * t2, b[4] * t4, b[6] * t6, 0.0);
+		} else {
+			double[] scale = { 1.0, t2, t4, t6, t8 };
+			double[] odd = new double[5];
+			double[] even = new double[5];
+			for (int k = 0; 2 * k < b.length; ++k) {
+				even[k] = b[2 * k] * scale[k];
+				if (2 * k + 1 < b.length) {
+					odd[k] = b[2 * k + 1] * scale[k];
+				}
+			}
+			Arrays.fill(w, 0.0);
+			addEvenPowers(w, odd[0], odd[1], odd[2], odd[3], odd[4]);
+			Arrays.fill(z, 0.0);
+			addEvenPowers(z, even[0], even[1], even[2], even[3], even[4]);
+		}
+		// x = U = τQ·w
+		for (int i = 0; i < nn; ++i) {
+			w[i] *= tau;
+		}
+		TransitionKernels.multiply(powers[0], w, n, x);
+
+		for (int i = 0; i < nn; ++i) {
+			y[i] = z[i] - x[i];
+			result[i] = z[i] + x[i];
+		}
+		solve(y, result, n);
+
+		for (int k = 0; k < squarings; ++k) {
+			System.arraycopy(result, 0, x, 0, nn);
+			TransitionKernels.multiply(x, x, n, result);
+		}
+	}
+
+	/**
+	 * target += c0·I + c2·Q² + c4·Q⁴ + c6·Q⁶ + c8·Q⁸, skipping zero terms
+	 */
+	protected void addEvenPowers(double[] target, double c0, double c2, double c4, double c6, double c8) {
+		addScaled(target, c2, powers[1]);
+		addScaled(target, c4, powers[2]);
+		addScaled(target, c6, powers[3]);
+		addScaled(target, c8, powers[4]);
+		if (c0 != 0.0) {
+			for (int i = 0; i < n; ++i) {
+				target[i * n + i] += c0;
+			}
+		}
+	}
+
+	static void addScaled(double[] target, double c, double[] power) {
+		if (c == 0.0) {
+			return;
+		}
+		for (int i = 0; i < target.length; ++i) {
+			target[i] += c * power[i];
+		}
+	}
+
+	/**
+	 * Solve a·X = b by Gaussian elimination with partial pivoting, for N×N
+	 * matrices a and b. Both are overwritten; b receives X.
+	 */
+	static void solve(double[] a, double[] b, int n) {
+		for (int k = 0; k < n; ++k) {
+			int pivot = k;
+			for (int i = k + 1; i < n; ++i) {
+				if (Math.abs(a[i * n + k]) > Math.abs(a[pivot * n + k])) {
+					pivot = i;
+				}
+			}
+			if (a[pivot * n + k] == 0.0) {
+				throw new ArithmeticException("Singular Padé denominator");
+			}
+			if (pivot != k) {
+				swapRows(a, n, k, pivot);
+				swapRows(b, n, k, pivot);
+			}
+			final double diagonal = a[k * n + k];
+			for (int i = k + 1; i < n; ++i) {
+				final double factor = a[i * n + k] / diagonal;
+				if (factor == 0.0) {
+					continue;
+				}
+				for (int j = k; j < n; ++j) {
+					a[i * n + j] -= factor * a[k * n + j];
+				}
+				for (int j = 0; j < n; ++j) {
+					b[i * n + j] -= factor * b[k * n + j];
+				}
+			}
+		}
+		for (int k = n - 1; k >= 0; --k) {
+			final double diagonal = a[k * n + k];
+			for (int j = 0; j < n; ++j) {
+				double sum = b[k * n + j];
+				for (int i = k + 1; i < n; ++i) {
+					sum -= a[k * n + i] * b[i * n + j];
+				}
+				b[k * n + j] = sum / diagonal;
+			}
+		}
+	}
+
+	static void swapRows(double[] m, int n, int r1, int r2) {
+		for (int j = 0; j < n; ++j) {
+			double swap = m[r1 * n + j];
+			m[r1 * n + j] = m[r2 * n + j];
+			m[r2 * n + j] = swap;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import beast.evolution.substitutionmodel.EigenDecomposition;
+
+/**
+ * The transition probabilities P(t) = exp(tQ) of one rate matrix Q, together
+ * with the derivative of a linear function ⟨G, P(t)⟩ = Σ_ij G_ij P(t)_ij by
+ * the entries of Q.
+ *
+ * With the eigen decomposition Q = U·Λ·U⁻¹, the derivative is
+ * U⁻ᵀ·(F ∘ (Uᵀ·G·U⁻ᵀ))·Uᵀ, where F_ij = (exp(tλ_i) - exp(tλ_j)) / (λ_i - λ_j),
+ * or t·exp(tλ_i) for equal eigen values (Najfeld and Havel 1995). Without a
+ * trustworthy decomposition, it is the upper right block of the exponential
+ * of the block matrix [[tQᵀ, tG], [0, tQᵀ]] (Van Loan 1978), by Padé
+ * approximants.
+ *
+ * An instance is independent of the state of the substitution model it was
+ * made by, so it can be used to evaluate the likelihood and its gradient at
+ * rates that are not in the state.
+ */
+public class RateMatrixGradient {
+	/** Eigen values closer than this, relative to their size, count as equal */
+	static final double EQUAL_EIGENVALUES = 1e-10;
+
+	protected final int n;
+	protected final double[] rateMatrix;
+	/** U, U⁻¹ and their transposes, or null if Padé approximants are used */
+	protected final double[] eigenVectors;
+	protected final double[] inverseEigenVectors;
+	protected final double[] transposedEigenVectors;
+	protected final double[] transposedInverseEigenVectors;
+	protected final double[] eigenValues;
+	protected final PadeExponential pade;
+
+	protected final double[] scratch;
+	protected final double[] product;
+	protected PadeExponential.Workspace workspace;
+	protected PadeExponential.Workspace blockWorkspace;
+
+	/**
+	 * @param matrix
+	 *            the rate matrix Q
+	 * @param decomposition
+	 *            its eigen decomposition, or null to use Padé approximants
+	 */
+	public RateMatrixGradient(double[][] matrix, EigenDecomposition decomposition) {
+		n = matrix.length;
+		rateMatrix = new double[n * n];
+		for (int i = 0; i < n; ++i) {
+			System.arraycopy(matrix[i], 0, rateMatrix, i * n, n);
+		}
+		scratch = new double[n * n];
+		product = new double[n * n];
+		if (decomposition == null) {
+			pade = new PadeExponential(matrix);
+			eigenVectors = null;
+			inverseEigenVectors = null;
+			transposedEigenVectors = null;
+			transposedInverseEigenVectors = null;
+			eigenValues = null;
+		} else {
+			pade = null;
+			eigenVectors = decomposition.getEigenVectors().clone();
+			inverseEigenVectors = decomposition.getInverseEigenVectors().clone();
+			eigenValues = decomposition.getEigenValues().clone();
+			transposedEigenVectors = transpose(eigenVectors, n);
+			transposedInverseEigenVectors = transpose(inverseEigenVectors, n);
+		}
+	}
+
+	static double[] transpose(double[] matrix, int n) {
+		double[] result = new double[n * n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				result[j * n + i] = matrix[i * n + j];
+			}
+		}
+		return result;
+	}
+
+	public int getStateCount() {
+		return n;
+	}
+
+	/**
+	 * @param t
+	 *            the branch length times the rate
+	 * @param result
+	 *            receives P(t), N×N
+	 */
+	public void transitionProbabilities(double t, double[] result) {
+		if (pade != null) {
+			if (workspace == null) {
+				workspace = new PadeExponential.Workspace(n);
+			}
+			pade.exp(t, workspace, result);
+		} else {
+			TransitionKernels.transitionProbabilities(eigenVectors, eigenValues, inverseEigenVectors, n, t, scratch,
+					result);
+		}
+	}
+
+	/**
+	 * Add the derivative of ⟨G, P(t)⟩ by the entries of Q to `gradient`.
+	 *
+	 * @param t
+	 *            the branch length times the rate
+	 * @param weights
+	 *            G, N×N
+	 * @param gradient
+	 *            N×N, indexed like Q
+	 */
+	public void addGradient(double t, double[] weights, double[] gradient) {
+		if (pade != null) {
+			addBlockGradient(t, weights, gradient);
+			return;
+		}
+		// scratch = Uᵀ·G·U⁻ᵀ
+		TransitionKernels.multiply(transposedEigenVectors, weights, n, product);
+		TransitionKernels.multiply(product, transposedInverseEigenVectors, n, scratch);
+		for (int i = 0; i < n; ++i) {
+			final double ei = Math.exp(t * eigenValues[i]);
+			for (int j = 0; j < n; ++j) {
+				final double difference = eigenValues[i] - eigenValues[j];
+				double f;
+				if (Math.abs(difference) <= EQUAL_EIGENVALUES
+						* Math.max(1.0, Math.max(Math.abs(eigenValues[i]), Math.abs(eigenValues[j])))) {
+					f = t * ei;
+				} else {
+					f = (ei - Math.exp(t * eigenValues[j])) / difference;
+				}
+				scratch[i * n + j] *= f;
+			}
+		}
+		// gradient += U⁻ᵀ·scratch·Uᵀ
+		TransitionKernels.multiply(transposedInverseEigenVectors, scratch, n, product);
+		TransitionKernels.multiply(product, transposedEigenVectors, n, scratch);
+		for (int u = 0; u < n * n; ++u) {
+			gradient[u] += scratch[u];
+		}
+	}
+
+	/**
+	 * The derivative as the upper right block of exp([[tQᵀ, tG], [0, tQᵀ]]).
+	 */
+	protected void addBlockGradient(double t, double[] weights, double[] gradient) {
+		final int m = 2 * n;
+		double[][] block = new double[m][m];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				block[i][j] = t * rateMatrix[j * n + i];
+				block[n + i][n + j] = t * rateMatrix[j * n + i];
+				block[i][n + j] = t * weights[i * n + j];
+			}
+		}
+		if (blockWorkspace == null) {
+			blockWorkspace = new PadeExponential.Workspace(m);
+		}
+		double[] exponential = new double[m * m];
+		new PadeExponential(block).expSigned(1.0, blockWorkspace, exponential);
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				gradient[i * n + j] += exponential[i * m + n + j];
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+/**
+ * Index arithmetic for the `rates` of a CorrelatedSubstitutionModel.
+ *
+ * For each compound state `from` (in the order of CompoundDataType), the rates
+ * vector contains one entry per component and per other value of that
+ * component, ordered by component and then by target value, skipping the
+ * current value. This is the order in which
+ * CorrelatedSubstitutionModel.setupRateMatrix consumes the rates.
+ */
+public final class RateSlots {
+	private RateSlots() {
+	}
+
+	public static int stateCount(Integer[] shape) {
+		int nrOfStates = 1;
+		for (int size : shape) {
+			nrOfStates *= size;
+		}
+		return nrOfStates;
+	}
+
+	public static int nonzeroTransitions(Integer[] shape) {
+		int nonzeroTransitions = 0;
+		for (int size : shape) {
+			nonzeroTransitions += size - 1;
+		}
+		return nonzeroTransitions;
+	}
+
+	/**
+	 * @return the index in `rates` of the transition from compound state
+	 *         `from` to the state where `component` has value `to`
+	 */
+	public static int slot(Integer[] shape, int from, int component, int to) {
+		int offset = 0;
+		for (int c = 0; c < component; ++c) {
+			offset += shape[c] - 1;
+		}
+		int current = CompoundDataType.compoundState2componentState(shape, from, component);
+		if (to == current) {
+			throw new IllegalArgumentException("A component cannot change to its current value");
+		}
+		return from * nonzeroTransitions(shape) + offset + (to < current ? to : to - 1);
+	}
+
+	/**
+	 * @return for every slot, the compound state that its transition leads
+	 *         to
+	 */
+	public static int[] targets(Integer[] shape) {
+		int nrOfStates = stateCount(shape);
+		int[] targets = new int[nrOfStates * nonzeroTransitions(shape)];
+		int next = 0;
+		for (int from = 0; from < nrOfStates; ++from) {
+			int[] fromValues = CompoundDataType.compoundState2componentStates(shape, from);
+			for (int c = 0; c < shape.length; ++c) {
+				int[] toValues = fromValues.clone();
+				for (int to = 0; to < shape[c]; ++to) {
+					if (to != fromValues[c]) {
+						toValues[c] = to;
+						targets[next] = CompoundDataType.componentState2compoundState(shape, toValues);
+						++next;
+					}
+				}
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * @return the number of different rates of a model in which all
+	 *         components evolve independently
+	 */
+	public static int independentGroupCount(Integer[] shape) {
+		int groups = 0;
+		for (int size : shape) {
+			groups += size * (size - 1);
+		}
+		return groups;
+	}
+
+	/**
+	 * Construct `groupings` for a Selector such that every component evolves
+	 * independently: All slots describing the same change of value of the
+	 * same component share a group, irrespective of the other components.
+	 */
+	public static int[] independentGroupings(Integer[] shape) {
+		int nrOfStates = stateCount(shape);
+		int[] groupings = new int[nrOfStates * nonzeroTransitions(shape)];
+		int next = 0;
+		for (int from = 0; from < nrOfStates; ++from) {
+			int[] fromValues = CompoundDataType.compoundState2componentStates(shape, from);
+			int groupOffset = 0;
+			for (int c = 0; c < shape.length; ++c) {
+				for (int to = 0; to < shape[c]; ++to) {
+					if (to != fromValues[c]) {
+						groupings[next] = groupOffset + fromValues[c] * (shape[c] - 1)
+								+ (to < fromValues[c] ? to : to - 1);
+						++next;
+					}
+				}
+				groupOffset += shape[c] * (shape[c] - 1);
+			}
+		}
+		return groupings;
+	}
+
+	/**
+	 * Tie every rate to the rate of the reverse transition, for a
+	 * time-reversible model: The forward slot (towards a compound state with
+	 * a higher index) gets a new entry of the reduced rates vector, the
+	 * backward slot shares it.
+	 *
+	 * @return for every slot, the index of its entry in a rates vector of
+	 *         half the length
+	 */
+	public static int[] reversibleRateIndices(Integer[] shape) {
+		int nrOfStates = stateCount(shape);
+		int[] indices = new int[nrOfStates * nonzeroTransitions(shape)];
+		int next = 0;
+		int reduced = 0;
+		for (int from = 0; from < nrOfStates; ++from) {
+			int[] fromValues = CompoundDataType.compoundState2componentStates(shape, from);
+			for (int c = 0; c < shape.length; ++c) {
+				int[] toValues = fromValues.clone();
+				for (int to = 0; to < shape[c]; ++to) {
+					if (to != fromValues[c]) {
+						toValues[c] = to;
+						int target = CompoundDataType.componentState2compoundState(shape, toValues);
+						if (target > from) {
+							indices[next] = reduced;
+							++reduced;
+						} else {
+							// The reverse slot belongs to an earlier state,
+							// so it already has its index.
+							indices[next] = indices[slot(shape, target, c, fromValues[c])];
+						}
+						++next;
+					}
+				}
+			}
+		}
+		return indices;
+	}
+}
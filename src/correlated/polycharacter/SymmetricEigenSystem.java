@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import beast.evolution.substitutionmodel.EigenSystem;
+
+/**
+ * Eigen decomposition of a real symmetric matrix, by Householder reduction to
+ * tridiagonal form and the implicit QL algorithm. This is the tred2/tql2 pair
+ * of EISPACK, in the form given in JAMA (public domain).
+ *
+ * For a symmetric matrix A = V·diag(λ)·Vᵀ with orthogonal V, so the inverse
+ * eigenvectors are just Vᵀ, and all eigenvalues are real.
+ *
+ * The input matrix is not modified.
+ */
+public class SymmetricEigenSystem implements EigenSystem {
+	@Override
+	public EigenDecomposition decomposeMatrix(double[][] matrix) {
+		final int n = matrix.length;
+		double[][] v = new double[n][];
+		for (int i = 0; i < n; ++i) {
+			v[i] = matrix[i].clone();
+		}
+		double[] d = new double[n];
+		double[] e = new double[n];
+		tred2(v, d, e);
+		tql2(v, d, e);
+
+		double[] eigenVectors = new double[n * n];
+		double[] inverseEigenVectors = new double[n * n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				eigenVectors[i * n + j] = v[i][j];
+				inverseEigenVectors[j * n + i] = v[i][j];
+			}
+		}
+		return new EigenDecomposition(eigenVectors, inverseEigenVectors, d);
+	}
+
+	/**
+	 * Householder reduction of the symmetric matrix in `v` to tridiagonal
+	 * form, with diagonal `d` and subdiagonal `e` (in e[1..n-1]). On return,
+	 * `v` holds the orthogonal transformation.
+	 */
+	static void tred2(double[][] v, double[] d, double[] e) {
+		final int n = d.length;
+		for (int j = 0; j < n; ++j) {
+			d[j] = v[n - 1][j];
+		}
+
+		for (int i = n - 1; i > 0; --i) {
+			// Scale to avoid under/overflow.
+			double scale = 0.0;
+			double h = 0.0;
+			for (int k = 0; k < i; ++k) {
+				scale += Math.abs(d[k]);
+			}
+			if (scale == 0.0) {
+				e[i] = d[i - 1];
+				for (int j = 0; j < i; ++j) {
+					d[j] = v[i - 1][j];
+					v[i][j] = 0.0;
+					v[j][i] = 0.0;
+				}
+			} else {
+				// Generate Householder vector.
+				for (int k = 0; k < i; ++k) {
+					d[k] /= scale;
+					h += d[k] * d[k];
+				}
+				double f = d[i - 1];
+				double g = Math.sqrt(h);
+				if (f > 0) {
+					g = -g;
+				}
+				e[i] = scale * g;
+				h = h - f * g;
+				d[i - 1] = f - g;
+				for (int j = 0; j < i; ++j) {
+					e[j] = 0.0;
+				}
+
+				// Apply similarity transformation to remaining columns.
+				for (int j = 0; j < i; ++j) {
+					f = d[j];
+					v[j][i] = f;
+					g = e[j] + v[j][j] * f;
+					for (int k = j + 1; k <= i - 1; ++k) {
+						g += v[k][j] * d[k];
+						e[k] += v[k][j] * f;
+					}
+					e[j] = g;
+				}
+				f = 0.0;
+				for (int j = 0; j < i; ++j) {
+					e[j] /= h;
+					f += e[j] * d[j];
+				}
+				double hh = f / (h + h);
+				for (int j = 0; j < i; ++j) {
+					e[j] -= hh * d[j];
+				}
+				for (int j = 0; j < i; ++j) {
+					f = d[j];
+					g = e[j];
+					for (int k = j; k <= i - 1; ++k) {
+						v[k][j] -= (f * e[k] + g * d[k]);
+					}
+					d[j] = v[i - 1][j];
+					v[i][j] = 0.0;
+				}
+			}
+			d[i] = h;
+		}
+
+		// Accumulate transformations.
+		for (int i = 0; i < n - 1; ++i) {
+			v[n - 1][i] = v[i][i];
+			v[i][i] = 1.0;
+			double h = d[i + 1];
+			if (h != 0.0) {
+				for (int k = 0; k <= i; ++k) {
+					d[k] = v[k][i + 1] / h;
+				}
+				for (int j = 0; j <= i; ++j) {
+					double g = 0.0;
+					for (int k = 0; k <= i; ++k) {
+						g += v[k][i + 1] * v[k][j];
+					}
+					for (int k = 0; k <= i; ++k) {
+						v[k][j] -= g * d[k];
+					}
+				}
+			}
+			for (int k = 0; k <= i; ++k) {
+				v[k][i + 1] = 0.0;
+			}
+		}
+		for (int j = 0; j < n; ++j) {
+			d[j] = v[n - 1][j];
+			v[n - 1][j] = 0.0;
+		}
+		v[n - 1][n - 1] = 1.0;
+		e[0] = 0.0;
+	}
+
+	/**
+	 * Diagonalise the symmetric tridiagonal matrix given by `d` and `e` with
+	 * the implicit QL algorithm, accumulating the transformations in `v`. On
+	 * return, `d` holds the eigenvalues and the columns of `v` the
+	 * eigenvectors.
+	 */
+	static void tql2(double[][] v, double[] d, double[] e) {
+		final int n = d.length;
+		for (int i = 1; i < n; ++i) {
+			e[i - 1] = e[i];
+		}
+		e[n - 1] = 0.0;
+
+		double f = 0.0;
+		double tst1 = 0.0;
+		final double eps = Math.ulp(1.0);
+		for (int l = 0; l < n; ++l) {
+			// Find small subdiagonal element
+			tst1 = Math.max(tst1, Math.abs(d[l]) + Math.abs(e[l]));
+			int m = l;
+			while (m < n) {
+				if (Math.abs(e[m]) <= eps * tst1) {
+					break;
+				}
+				++m;
+			}
+			if (m == n) {
+				m = n - 1;
+			}
+
+			// If m == l, d[l] is an eigenvalue, otherwise iterate.
+			if (m > l) {
+				do {
+					// Compute implicit shift
+					double g = d[l];
+					double p = (d[l + 1] - g) / (2.0 * e[l]);
+					double r = Math.hypot(p, 1.0);
+					if (p < 0) {
+						r = -r;
+					}
+					d[l] = e[l] / (p + r);
+					d[l + 1] = e[l] * (p + r);
+					double dl1 = d[l + 1];
+					double h = g - d[l];
+					for (int i = l + 2; i < n; ++i) {
+						d[i] -= h;
+					}
+					f = f + h;
+
+					// Implicit QL transformation.
+					p = d[m];
+					double c = 1.0;
+					double c2 = c;
+					double c3 = c;
+					double el1 = e[l + 1];
+					double s = 0.0;
+					double s2 = 0.0;
+					for (int i = m - 1; i >= l; --i) {
+						c3 = c2;
+						c2 = c;
+						s2 = s;
+						g = c * e[i];
+						h = c * p;
+						r = Math.hypot(p, e[i]);
+						e[i + 1] = s * r;
+						s = e[i] / r;
+						c = p / r;
+						p = c * d[i] - s * g;
+						d[i + 1] = h + s * (c * g + s * d[i]);
+
+						// Accumulate transformation.
+						for (int k = 0; k < n; ++k) {
+							h = v[k][i + 1];
+							v[k][i + 1] = s * v[k][i] + c * h;
+							v[k][i] = c * v[k][i] - s * h;
+						}
+					}
+					p = -s * s2 * c3 * el1 * e[l] / dl1;
+					e[l] = s * p;
+					d[l] = c * p;
+
+					// Check for convergence.
+				} while (Math.abs(e[l]) > eps * tst1);
+			}
+			d[l] = d[l] + f;
+			e[l] = 0.0;
+		}
+	}
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.util.Log;
+import beast.evolution.datatype.DataType;
+import beast.evolution.datatype.StandardData;
+import beast.evolution.datatype.UserDataType;
+import correlated.util.Snapshot;
+
+/**
+ * @author Gereon Kaiping <anaphory@yahoo.de>
+ */
+@Description("A character matrix read directly from a CSV, TSV or NEXUS file, to be used as `matrix` of a"
+		+ " CompoundAlignment instead of an Alignment built from sequences."
+		+ " CSV and TSV files have a header row, one row per taxon, and the taxon name in the first column."
+		+ " NEXUS files are read from the MATRIX command of their DATA or CHARACTERS block, non-interleaved,"
+		+ " with one character per symbol and polymorphisms in () or {}.")
+public class TraitMatrix extends BEASTObject {
+	public Input<String> fileNameInput = new Input<String>("fileName", "CSV, TSV or NEXUS file to read",
+			Validate.REQUIRED);
+	public Input<String> formatInput = new Input<String>("format",
+			"one of csv, tsv, nexus, or auto to decide by the file name extension", "auto");
+	public Input<String> columnsInput = new Input<String>("columns",
+			"comma-separated characters to use, by name (CSV, TSV only) or by 1-based position, including"
+					+ " ranges like 3-7. Default: all characters.");
+	public Input<StandardData> userDataTypeInput = new Input<StandardData>("userDataType",
+			"data type with one charstatelabels per selected character, whose codeMap translates the codes of"
+					+ " that character. By default, the codes are the digits 0-9, and ?, - and polymorphisms"
+					+ " stand for missing data.");
+	public Input<String> snapshotInput = new Input<String>("snapshot",
+			"binary file to keep the parsed matrix in. It is used instead of the matrix file as long as that file"
+					+ " and the column selection are unchanged, and rewritten otherwise.");
+
+	/** Size of the windows in which the file is mapped into memory */
+	static final long WINDOW = 1L << 26;
+
+	protected List<String> taxa;
+	protected List<String> characterNames;
+	protected List<DataType> dataTypes;
+	/** Component codes (in terms of the data types), [taxon][character] */
+	protected int[][] states;
+
+	/** Codes seen per selected character, in order of appearance */
+	protected List<List<String>> tokens;
+	/** Per selected character, the token id of every single-byte token */
+	protected int[][] byteTokens;
+	protected List<Map<String, Integer>> longTokens;
+	/** Token ids, row by row */
+	protected int[] cells;
+	protected int cellCount;
+
+	@Override
+	public void initAndValidate() {
+		File file = new File(fileNameInput.get());
+		String format = formatInput.get().toLowerCase();
+		if (format.equals("auto")) {
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".nex") || name.endsWith(".nexus") || name.endsWith(".nxs")) {
+				format = "nexus";
+			} else if (name.endsWith(".tsv") || name.endsWith(".tab") || name.endsWith(".txt")) {
+				format = "tsv";
+			} else {
+				format = "csv";
+			}
+		}
+		taxa = new ArrayList<String>();
+		File snapshot = snapshotInput.get() == null ? null : new File(snapshotInput.get());
+		String fingerprint = fingerprint(file, format);
+		if (snapshot != null && readSnapshot(snapshot, fingerprint)) {
+			encode();
+			return;
+		}
+		try (MappedBytes in = new MappedBytes(file)) {
+			if (format.equals("csv")) {
+				readDelimited(in, (byte) ',');
+			} else if (format.equals("tsv")) {
+				readDelimited(in, (byte) '\t');
+			} else if (format.equals("nexus")) {
+				readNexus(in);
+			} else {
+				throw new IllegalArgumentException("Unknown format " + formatInput.get());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + file + ": " + e.getMessage(), e);
+		}
+		if (snapshot != null) {
+			writeSnapshot(snapshot, fingerprint);
+		}
+		encode();
+	}
+
+	static final String SNAPSHOT_KIND = "TraitMatrix";
+
+	/**
+	 * @return a description of everything the parsed matrix depends on
+	 */
+	protected String fingerprint(File file, String format) {
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + format + "|"
+				+ columnsInput.get();
+	}
+
+	protected boolean readSnapshot(File snapshot, String fingerprint) {
+		DataInputStream in = Snapshot.read(snapshot, SNAPSHOT_KIND);
+		if (in == null) {
+			return false;
+		}
+		try {
+			if (!in.readUTF().equals(fingerprint)) {
+				return false;
+			}
+			int taxonCount = in.readInt();
+			for (int t = 0; t < taxonCount; ++t) {
+				taxa.add(in.readUTF());
+			}
+			int n = in.readInt();
+			characterNames = new ArrayList<String>(n);
+			tokens = new ArrayList<List<String>>(n);
+			for (int c = 0; c < n; ++c) {
+				characterNames.add(in.readUTF());
+				int tokenCount = in.readInt();
+				List<String> characterTokens = new ArrayList<String>(tokenCount);
+				for (int t = 0; t < tokenCount; ++t) {
+					characterTokens.add(in.readUTF());
+				}
+				tokens.add(characterTokens);
+			}
+			cellCount = in.readInt();
+			cells = new int[cellCount];
+			for (int i = 0; i < cellCount; ++i) {
+				cells[i] = in.readInt();
+			}
+			return true;
+		} catch (IOException e) {
+			taxa.clear();
+			return false;
+		}
+	}
+
+	protected void writeSnapshot(File snapshot, String fingerprint) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeUTF(fingerprint);
+			out.writeInt(taxa.size());
+			for (String taxon : taxa) {
+				out.writeUTF(taxon);
+			}
+			out.writeInt(characterNames.size());
+			for (int c = 0; c < characterNames.size(); ++c) {
+				out.writeUTF(characterNames.get(c));
+				out.writeInt(tokens.get(c).size());
+				for (String token : tokens.get(c)) {
+					out.writeUTF(token);
+				}
+			}
+			out.writeInt(cellCount);
+			for (int i = 0; i < cellCount; ++i) {
+				out.writeInt(cells[i]);
+			}
+			out.close();
+			Snapshot.write(snapshot, SNAPSHOT_KIND, bytes.toByteArray());
+		} catch (IOException e) {
+			// The snapshot is only an optimisation
+			Log.warning.println("Could not write snapshot " + snapshot + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Choose the characters to keep.
+	 *
+	 * @return for each column of the file, the index of the selected
+	 *         character, or -1
+	 */
+	protected int[] selectColumns(List<String> fileColumns) {
+		int[] selection = new int[fileColumns.size()];
+		Arrays.fill(selection, -1);
+		characterNames = new ArrayList<String>();
+		if (columnsInput.get() == null) {
+			for (int i = 0; i < selection.length; ++i) {
+				selection[i] = i;
+				characterNames.add(fileColumns.get(i));
+			}
+		} else {
+			for (String part : columnsInput.get().split(",")) {
+				part = part.trim();
+				int column = fileColumns.indexOf(part);
+				if (column >= 0) {
+					select(selection, column, fileColumns);
+					continue;
+				}
+				int dash = part.indexOf('-', 1);
+				try {
+					int from = Integer.parseInt((dash < 0 ? part : part.substring(0, dash)).trim());
+					int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+					for (int c = from; c <= to; ++c) {
+						if (c < 1 || c > fileColumns.size()) {
+							throw new IllegalArgumentException("Column " + c + " is out of range 1-" + fileColumns.size());
+						}
+						select(selection, c - 1, fileColumns);
+					}
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("No character " + part + " in " + fileNameInput.get());
+				}
+			}
+		}
+		if (characterNames.isEmpty()) {
+			throw new IllegalArgumentException("No characters selected from " + fileNameInput.get());
+		}
+		int n = characterNames.size();
+		tokens = new ArrayList<List<String>>(n);
+		longTokens = new ArrayList<Map<String, Integer>>(n);
+		byteTokens = new int[n][256];
+		for (int i = 0; i < n; ++i) {
+			tokens.add(new ArrayList<String>());
+			longTokens.add(new HashMap<String, Integer>());
+			Arrays.fill(byteTokens[i], -1);
+		}
+		cells = new int[n * 64];
+		cellCount = 0;
+		return selection;
+	}
+
+	private void select(int[] selection, int column, List<String> fileColumns) {
+		if (selection[column] >= 0) {
+			throw new IllegalArgumentException("Character " + fileColumns.get(column) + " is selected twice");
+		}
+		selection[column] = characterNames.size();
+		characterNames.add(fileColumns.get(column));
+	}
+
+	/**
+	 * @return the id of the token in buffer[0..length) among the tokens of
+	 *         selected character `c`
+	 */
+	protected int token(int c, byte[] buffer, int length) {
+		if (length == 1) {
+			int b = buffer[0] & 0xff;
+			int id = byteTokens[c][b];
+			if (id < 0) {
+				id = newToken(c, new String(buffer, 0, 1, StandardCharsets.ISO_8859_1));
+				byteTokens[c][b] = id;
+			}
+			return id;
+		}
+		String token = new String(buffer, 0, length, StandardCharsets.UTF_8);
+		Integer id = longTokens.get(c).get(token);
+		if (id == null) {
+			id = newToken(c, token);
+			longTokens.get(c).put(token, id);
+		}
+		return id;
+	}
+
+	private int newToken(int c, String token) {
+		tokens.get(c).add(token);
+		return tokens.get(c).size() - 1;
+	}
+
+	/** Store the token id of selected character `c` for taxon `row`. */
+	protected void setCell(int row, int c, int id) {
+		int n = characterNames.size();
+		int index = row * n + c;
+		if (index >= cells.length) {
+			cells = Arrays.copyOf(cells, Math.max(2 * cells.length, (row + 1) * n));
+		}
+		cells[index] = id;
+		cellCount = Math.max(cellCount, (row + 1) * n);
+	}
+
+	protected void readDelimited(MappedBytes in, byte delimiter) throws IOException {
+		byte[] buffer = new byte[64];
+		List<String> header = new ArrayList<String>();
+		int end;
+		do {
+			int length = 0;
+			int b;
+			while ((b = in.read()) >= 0 && b != delimiter && b != '\n') {
+				if (length == buffer.length) {
+					buffer = Arrays.copyOf(buffer, 2 * length);
+				}
+				buffer[length++] = (byte) b;
+			}
+			end = b;
+			header.add(unquote(buffer, length));
+		} while (end == delimiter);
+		header.remove(0);
+		int[] selection = selectColumns(header);
+
+		int row = 0;
+		while (!in.atEnd()) {
+			// column -1 is the taxon name
+			int column = -1;
+			while (true) {
+				int length = 0;
+				int b;
+				while ((b = in.read()) >= 0 && b != delimiter && b != '\n') {
+					if (b == '\r' || (b == ' ' && length == 0)) {
+						continue;
+					}
+					if (length == buffer.length) {
+						buffer = Arrays.copyOf(buffer, 2 * length);
+					}
+					buffer[length++] = (byte) b;
+				}
+				while (length > 0 && buffer[length - 1] == ' ') {
+					--length;
+				}
+				if (column < 0) {
+					if (length == 0 && b != delimiter) {
+						// empty line
+						break;
+					}
+					taxa.add(unquote(buffer, length));
+				} else if (column >= selection.length) {
+					throw new IllegalArgumentException("Row " + (row + 1) + " of " + fileNameInput.get()
+							+ " has more than " + selection.length + " characters");
+				} else if (selection[column] >= 0) {
+					if (length == 0) {
+						buffer[length++] = '?';
+					}
+					setCell(row, selection[column], token(selection[column], buffer, length));
+				}
+				++column;
+				if (b != delimiter) {
+					break;
+				}
+			}
+			if (column >= 0) {
+				if (column != selection.length) {
+					throw new IllegalArgumentException("Row " + (row + 1) + " of " + fileNameInput.get() + " has "
+							+ column + " instead of " + selection.length + " characters");
+				}
+				++row;
+			}
+		}
+	}
+
+	protected void readNexus(MappedBytes in) throws IOException {
+		byte[] buffer = new byte[64];
+		// Find NCHAR, then MATRIX
+		int nchar = -1;
+		String word;
+		while (true) {
+			word = nexusWord(in);
+			if (word == null) {
+				throw new IllegalArgumentException("No MATRIX in " + fileNameInput.get());
+			}
+			if (word.equalsIgnoreCase("matrix")) {
+				break;
+			}
+			if (word.toLowerCase().startsWith("nchar")) {
+				String value = word.substring(5).replace("=", "").trim();
+				while (value.isEmpty()) {
+					value = nexusWord(in).replace("=", "").trim();
+				}
+				nchar = Integer.parseInt(value);
+			}
+		}
+		if (nchar < 0) {
+			throw new IllegalArgumentException("No NCHAR before the MATRIX of " + fileNameInput.get());
+		}
+		List<String> numbers = new ArrayList<String>(nchar);
+		for (int i = 1; i <= nchar; ++i) {
+			numbers.add(Integer.toString(i));
+		}
+		int[] selection = selectColumns(numbers);
+
+		Set<String> seen = new HashSet<String>();
+		int row = 0;
+		while (true) {
+			String taxon = nexusWord(in);
+			if (taxon == null) {
+				throw new IllegalArgumentException("MATRIX of " + fileNameInput.get() + " does not end with ;");
+			}
+			if (taxon.equals(";")) {
+				break;
+			}
+			if (!seen.add(taxon)) {
+				throw new IllegalArgumentException(
+						"Taxon " + taxon + " occurs twice, interleaved matrices are not supported");
+			}
+			taxa.add(taxon);
+			// A row may span several lines, so read exactly nchar symbols.
+			for (int column = 0; column < nchar; ++column) {
+				int b;
+				do {
+					b = in.read();
+					if (b == '[') {
+						skipComment(in);
+						b = ' ';
+					}
+				} while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+				if (b < 0 || b == ';') {
+					throw new IllegalArgumentException(
+							"Taxon " + taxon + " has " + column + " instead of " + nchar + " characters");
+				}
+				int length = 0;
+				buffer[length++] = (byte) b;
+				if (b == '(' || b == '{') {
+					int close = b == '(' ? ')' : '}';
+					while ((b = in.read()) >= 0 && b != close) {
+						if (length == buffer.length - 1) {
+							buffer = Arrays.copyOf(buffer, 2 * length);
+						}
+						if (b != ' ' && b != ',') {
+							buffer[length++] = (byte) b;
+						}
+					}
+					buffer[length++] = (byte) close;
+				}
+				if (selection[column] >= 0) {
+					setCell(row, selection[column], token(selection[column], buffer, length));
+				}
+			}
+			++row;
+		}
+	}
+
+	/**
+	 * @return the next word (or ;) of a NEXUS file, skipping white space and
+	 *         comments, or null at the end of the file
+	 */
+	static String nexusWord(MappedBytes in) throws IOException {
+		int b;
+		do {
+			b = in.read();
+			if (b == '[') {
+				skipComment(in);
+				b = ' ';
+			}
+		} while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+		if (b < 0) {
+			return null;
+		}
+		if (b == ';') {
+			return ";";
+		}
+		StringBuilder word = new StringBuilder();
+		if (b == '\'' || b == '"') {
+			int quote = b;
+			while ((b = in.read()) >= 0 && b != quote) {
+				word.append((char) b);
+			}
+			return word.toString();
+		}
+		word.append((char) b);
+		while ((b = in.peek()) >= 0 && b != ' ' && b != '\t' && b != '\r' && b != '\n' && b != ';'
+				&& b != '[') {
+			word.append((char) in.read());
+		}
+		return word.toString();
+	}
+
+	static void skipComment(MappedBytes in) throws IOException {
+		int b;
+		while ((b = in.read()) >= 0 && b != ']') {
+		}
+	}
+
+	static String unquote(byte[] buffer, int length) {
+		String s = new String(buffer, 0, length, StandardCharsets.UTF_8).trim();
+		if (s.length() >= 2 && (s.charAt(0) == '"' || s.charAt(0) == '\'')
+				&& s.charAt(s.length() - 1) == s.charAt(0)) {
+			s = s.substring(1, s.length() - 1);
+		}
+		return s;
+	}
+
+	/**
+	 * Translate the tokens of every character into codes of its data type,
+	 * once per distinct token, and fill the state table.
+	 */
+	protected void encode() {
+		int n = characterNames.size();
+		List<UserDataType> labels = null;
+		if (userDataTypeInput.get() != null) {
+			labels = userDataTypeInput.get().charStateLabelsInput.get();
+			if (labels.size() != n) {
+				throw new IllegalArgumentException(
+						"userDataType has " + labels.size() + " charstatelabels, but " + n + " characters are selected");
+			}
+		}
+		dataTypes = new ArrayList<DataType>(n);
+		int[][] codes = new int[n][];
+		for (int c = 0; c < n; ++c) {
+			List<String> characterTokens = tokens.get(c);
+			DataType dataType;
+			if (labels != null) {
+				dataType = labels.get(c);
+			} else {
+				dataType = defaultDataType(c, characterTokens);
+			}
+			dataTypes.add(dataType);
+			codes[c] = new int[characterTokens.size()];
+			for (int t = 0; t < codes[c].length; ++t) {
+				String token = characterTokens.get(t);
+				if (labels == null && !isDigit(token)) {
+					token = "?";
+				}
+				codes[c][t] = dataType.string2state(token).get(0);
+			}
+		}
+		states = new int[taxa.size()][n];
+		for (int i = 0; i < cellCount; ++i) {
+			states[i / n][i % n] = codes[i % n][cells[i]];
+		}
+		// The raw cells are not needed any more.
+		cells = null;
+		byteTokens = null;
+		longTokens = null;
+	}
+
+	static boolean isDigit(String token) {
+		return token.length() == 1 && token.charAt(0) >= '0' && token.charAt(0) <= '9';
+	}
+
+	/**
+	 * A data type for a character without charstatelabels: One state per digit
+	 * up to the largest digit seen, and ? and - as missing data.
+	 */
+	protected DataType defaultDataType(int c, List<String> characterTokens) {
+		int states = 1;
+		for (String token : characterTokens) {
+			if (isDigit(token)) {
+				states = Math.max(states, token.charAt(0) - '0' + 1);
+			}
+		}
+		StringBuilder codeMap = new StringBuilder();
+		StringBuilder all = new StringBuilder();
+		for (int s = 0; s < states; ++s) {
+			codeMap.append(s).append('=').append(s).append(", ");
+			all.append(s == 0 ? "" : " ").append(s);
+		}
+		codeMap.append("?=").append(all).append(", -=").append(all);
+		UserDataType dataType = new UserDataType();
+		dataType.initByName("states", states, "codelength", 1, "codeMap", codeMap.toString(), "characterName",
+				characterNames.get(c));
+		return dataType;
+	}
+
+	public List<String> getTaxaNames() {
+		return taxa;
+	}
+
+	public List<String> getCharacterNames() {
+		return characterNames;
+	}
+
+	public List<DataType> getDataTypes() {
+		return dataTypes;
+	}
+
+	public int getTaxonCount() {
+		return taxa.size();
+	}
+
+	public int getCharacterCount() {
+		return characterNames.size();
+	}
+
+	/**
+	 * @return the code of `character` for `taxon`, in terms of its data type
+	 */
+	public int getState(int taxon, int character) {
+		return states[taxon][character];
+	}
+
+	/**
+	 * Reads a file through read-only memory mapped windows, byte by byte.
+	 */
+	static class MappedBytes implements AutoCloseable {
+		final RandomAccessFile file;
+		final FileChannel channel;
+		final long size;
+		long windowStart = 0;
+		MappedByteBuffer window;
+
+		MappedBytes(File f) throws IOException {
+			file = new RandomAccessFile(f, "r");
+			channel = file.getChannel();
+			size = channel.size();
+			map(0);
+		}
+
+		private void map(long start) throws IOException {
+			windowStart = start;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW, size - start));
+		}
+
+		boolean atEnd() throws IOException {
+			return peek() < 0;
+		}
+
+		int peek() throws IOException {
+			if (!window.hasRemaining()) {
+				long next = windowStart + window.limit();
+				if (next >= size) {
+					return -1;
+				}
+				map(next);
+			}
+			return window.get(window.position()) & 0xff;
+		}
+
+		int read() throws IOException {
+			int b = peek();
+			if (b >= 0) {
+				window.get();
+			}
+			return b;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+			file.close();
+		}
+	}
+}
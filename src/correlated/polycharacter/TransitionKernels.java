@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.util.Arrays;
+
+/**
+ * Dense kernels for compound state spaces, where the number of states N is
+ * large enough (dozens to hundreds) for the O(N³) reconstruction of P(t) from
+ * the eigen decomposition to dominate the run time.
+ *
+ * All matrices are flat row-major double arrays. The products are blocked so
+ * that the working set of the inner loops stays in the L1/L2 cache, and the
+ * innermost loops run over contiguous memory with independent iterations, a
+ * form the JIT compiler auto-vectorises.
+ */
+public final class TransitionKernels {
+	/**
+	 * Edge length of the square blocks. 64×64 doubles are 32 KiB, so one block
+	 * of each operand fits into a typical L2 cache.
+	 */
+	public static final int BLOCK = 64;
+
+	private TransitionKernels() {
+	}
+
+	/**
+	 * Compute P(t) = U·diag(exp(λt))·U⁻¹.
+	 *
+	 * @param eigenVectors
+	 *            U, N×N
+	 * @param eigenValues
+	 *            λ, of length at least N (only the real parts are used)
+	 * @param inverseEigenVectors
+	 *            U⁻¹, N×N
+	 * @param n
+	 *            N
+	 * @param distance
+	 *            t, the branch length times the rate
+	 * @param scratch
+	 *            work space of length at least N²
+	 * @param matrix
+	 *            the result, N×N. Like
+	 *            GeneralSubstitutionModel.getTransitionProbabilities, the
+	 *            absolute value of every entry is stored, to remove negative
+	 *            round-off.
+	 */
+	public static void transitionProbabilities(double[] eigenVectors, double[] eigenValues,
+			double[] inverseEigenVectors, int n, double distance, double[] scratch, double[] matrix) {
+		// scratch = diag(exp(λt))·U⁻¹
+		for (int k = 0; k < n; ++k) {
+			final double scale = Math.exp(distance * eigenValues[k]);
+			final int row = k * n;
+			for (int j = 0; j < n; ++j) {
+				scratch[row + j] = inverseEigenVectors[row + j] * scale;
+			}
+		}
+		multiply(eigenVectors, scratch, n, matrix);
+		for (int u = 0; u < n * n; ++u) {
+			matrix[u] = Math.abs(matrix[u]);
+		}
+	}
+
+	/**
+	 * Compute P(t) = U·diag(s)·U⁻¹ for precomputed scales s_k = exp(λ_k t), eg.
+	 * from one sweep over the eigen values for many branch lengths at once.
+	 *
+	 * @param scales
+	 *            exp(λt), read from scales[offset..offset+N)
+	 */
+	public static void scaledTransitionProbabilities(double[] eigenVectors, double[] scales, int offset,
+			double[] inverseEigenVectors, int n, double[] scratch, double[] matrix) {
+		for (int k = 0; k < n; ++k) {
+			final double scale = scales[offset + k];
+			final int row = k * n;
+			for (int j = 0; j < n; ++j) {
+				scratch[row + j] = inverseEigenVectors[row + j] * scale;
+			}
+		}
+		multiply(eigenVectors, scratch, n, matrix);
+		for (int u = 0; u < n * n; ++u) {
+			matrix[u] = Math.abs(matrix[u]);
+		}
+	}
+
+	/**
+	 * Compute P(t) from precomputed scales, as above, from eigen vectors kept
+	 * in a MatrixStorage.
+	 */
+	public static void scaledTransitionProbabilities(MatrixStorage eigenVectors, double[] scales, int offset,
+			MatrixStorage inverseEigenVectors, int n, double[] scratch, double[] matrix) {
+		for (int k = 0; k < n; ++k) {
+			final double scale = scales[offset + k];
+			final int row = k * n;
+			for (int j = 0; j < n; ++j) {
+				scratch[row + j] = inverseEigenVectors.get(row + j) * scale;
+			}
+		}
+		multiply(eigenVectors, scratch, n, matrix);
+		for (int u = 0; u < n * n; ++u) {
+			matrix[u] = Math.abs(matrix[u]);
+		}
+	}
+
+	/**
+	 * Compute P(t) as above, from eigen vectors kept in a MatrixStorage. The
+	 * arithmetic is done in double, only the stored vectors are rounded.
+	 */
+	public static void transitionProbabilities(MatrixStorage eigenVectors, double[] eigenValues,
+			MatrixStorage inverseEigenVectors, int n, double distance, double[] scratch, double[] matrix) {
+		for (int k = 0; k < n; ++k) {
+			final double scale = Math.exp(distance * eigenValues[k]);
+			final int row = k * n;
+			for (int j = 0; j < n; ++j) {
+				scratch[row + j] = inverseEigenVectors.get(row + j) * scale;
+			}
+		}
+		multiply(eigenVectors, scratch, n, matrix);
+		for (int u = 0; u < n * n; ++u) {
+			matrix[u] = Math.abs(matrix[u]);
+		}
+	}
+
+	/**
+	 * Compute the product c = a·b of two N×N matrices.
+	 */
+	public static void multiply(double[] a, double[] b, int n, double[] c) {
+		Arrays.fill(c, 0, n * n, 0.0);
+		for (int i0 = 0; i0 < n; i0 += BLOCK) {
+			final int i1 = Math.min(i0 + BLOCK, n);
+			for (int k0 = 0; k0 < n; k0 += BLOCK) {
+				final int k1 = Math.min(k0 + BLOCK, n);
+				for (int j0 = 0; j0 < n; j0 += BLOCK) {
+					final int j1 = Math.min(j0 + BLOCK, n);
+					for (int i = i0; i < i1; ++i) {
+						final int cRow = i * n;
+						final int aRow = i * n;
+						for (int k = k0; k < k1; ++k) {
+							final double aik = a[aRow + k];
+							if (aik == 0.0) {
+								continue;
+							}
+							final int bRow = k * n;
+							for (int j = j0; j < j1; ++j) {
+								c[cRow + j] += aik * b[bRow + j];
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compute the product c = a·b of two N×N matrices, where a is kept in a
+	 * MatrixStorage. Every entry of a is read only once.
+	 */
+	public static void multiply(MatrixStorage a, double[] b, int n, double[] c) {
+		Arrays.fill(c, 0, n * n, 0.0);
+		for (int i0 = 0; i0 < n; i0 += BLOCK) {
+			final int i1 = Math.min(i0 + BLOCK, n);
+			for (int k0 = 0; k0 < n; k0 += BLOCK) {
+				final int k1 = Math.min(k0 + BLOCK, n);
+				for (int i = i0; i < i1; ++i) {
+					final int row = i * n;
+					for (int k = k0; k < k1; ++k) {
+						final double aik = a.get(row + k);
+						if (aik == 0.0) {
+							continue;
+						}
+						final int bRow = k * n;
+						for (int j = 0; j < n; ++j) {
+							c[row + j] += aik * b[bRow + j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Multiply a transition matrix with the partial likelihoods of a child
+	 * node, for all patterns at once.
+	 *
+	 * @param matrix
+	 *            P(t), N×N
+	 * @param partials
+	 *            the child partials, patterns×N (pattern-major, as in BEAST's
+	 *            likelihood cores)
+	 * @param n
+	 *            N
+	 * @param patterns
+	 *            the number of patterns
+	 * @param result
+	 *            for every pattern p and state i, Σ_j P[i][j]·partials[p][j],
+	 *            patterns×N
+	 */
+	public static void partialsProduct(double[] matrix, double[] partials, int n, int patterns, double[] result) {
+		for (int p0 = 0; p0 < patterns; p0 += BLOCK) {
+			final int p1 = Math.min(p0 + BLOCK, patterns);
+			for (int i = 0; i < n; ++i) {
+				final int mRow = i * n;
+				for (int p = p0; p < p1; ++p) {
+					final int pRow = p * n;
+					double sum0 = 0.0;
+					double sum1 = 0.0;
+					int j = 0;
+					// Two independent accumulators break the dependency chain
+					// of the additions.
+					for (; j + 1 < n; j += 2) {
+						sum0 += matrix[mRow + j] * partials[pRow + j];
+						sum1 += matrix[mRow + j + 1] * partials[pRow + j + 1];
+					}
+					if (j < n) {
+						sum0 += matrix[mRow + j] * partials[pRow + j];
+					}
+					result[pRow + i] = sum0 + sum1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Multiply a transition matrix with the partial likelihoods of a tip whose
+	 * observations allow only few states, without touching the zeros: For a
+	 * one-hot tip this gathers one column of P(t), in O(N) instead of O(N²)
+	 * per pattern.
+	 *
+	 * @param matrix
+	 *            P(t), N×N
+	 * @param states
+	 *            for every pattern, the states the observation allows
+	 * @param n
+	 *            N
+	 * @param patterns
+	 *            the number of patterns
+	 * @param result
+	 *            for every pattern p and state i, Σ_{j ∈ states[p]} P[i][j],
+	 *            patterns×N
+	 */
+	public static void tipProduct(double[] matrix, int[][] states, int n, int patterns, double[] result) {
+		for (int p = 0; p < patterns; ++p) {
+			final int pRow = p * n;
+			final int[] allowed = states[p];
+			if (allowed.length == 1) {
+				final int j = allowed[0];
+				for (int i = 0; i < n; ++i) {
+					result[pRow + i] = matrix[i * n + j];
+				}
+				continue;
+			}
+			for (int i = 0; i < n; ++i) {
+				final int mRow = i * n;
+				double sum = 0.0;
+				for (int j : allowed) {
+					sum += matrix[mRow + j];
+				}
+				result[pRow + i] = sum;
+			}
+		}
+	}
+}
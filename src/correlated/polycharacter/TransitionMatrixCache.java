@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.polycharacter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transition probability matrices of one substitution model, keyed by the
+ * exact effective branch length (branch length times rate).
+ *
+ * Every rate matrix gets a fresh generation of the cache, with its own
+ * version number. A generation is never cleared, only replaced, so the
+ * generation saved by {@link #store()} is still intact when
+ * {@link #restore()} brings it back after a rejected proposal. The buffers of
+ * a generation that is neither current nor stored are reused for later
+ * matrices, so after warming up the cache does not allocate. When a
+ * generation is full, its oldest matrix makes room for the new one.
+ *
+ * The matrices are kept in a MatrixStorage of the given mode, so a cache in
+ * float mode takes half the memory, at float precision.
+ */
+public class TransitionMatrixCache {
+	private static final AtomicLong totalHits = new AtomicLong();
+	private static final AtomicLong totalMisses = new AtomicLong();
+	private static final AtomicLong generations = new AtomicLong();
+
+	/**
+	 * One cached matrix. Lookups copy it while holding its lock and check
+	 * that it still belongs to the generation and distance they looked for,
+	 * because a buffer may be handed to another matrix at any time.
+	 */
+	protected static class Entry {
+		final MatrixStorage matrix;
+		Generation generation;
+		long key;
+
+		Entry(MatrixStorage matrix) {
+			this.matrix = matrix;
+		}
+	}
+
+	/** The matrices of one rate matrix */
+	protected static class Generation {
+		final long version;
+		final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+		/** The entries in the order they were put, guarded by the cache */
+		final ArrayDeque<Entry> order = new ArrayDeque<Entry>();
+
+		Generation(long version) {
+			this.version = version;
+		}
+	}
+
+	protected final int maxEntries;
+	protected final String storage;
+
+	protected volatile Generation current;
+	protected Generation stored;
+	/** Buffers of dropped generations, guarded by the cache */
+	protected final ArrayDeque<Entry> free = new ArrayDeque<Entry>();
+	protected long allocated = 0;
+
+	protected final AtomicLong hits = new AtomicLong();
+	protected final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            the number of matrices kept per rate matrix, eg. the number
+	 *            of branches of the tree times the number of rate categories.
+	 *            If more distinct lengths are seen, the oldest matrix is
+	 *            dropped.
+	 */
+	public TransitionMatrixCache(int maxEntries) {
+		this(maxEntries, MatrixStorage.DOUBLE);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            as above
+	 * @param storage
+	 *            how to keep the matrices, see MatrixStorage
+	 */
+	public TransitionMatrixCache(int maxEntries, String storage) {
+		// Fail early on an unknown mode
+		MatrixStorage.allocate(storage, 0);
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("The cache must have room for at least one matrix");
+		}
+		this.maxEntries = maxEntries;
+		this.storage = storage;
+		current = new Generation(0L);
+		stored = current;
+	}
+
+	/**
+	 * Drop all matrices, because the rate matrix changed.
+	 */
+	public synchronized void invalidate() {
+		if (current != stored) {
+			release(current);
+		}
+		current = new Generation(generations.incrementAndGet());
+	}
+
+	/**
+	 * Hand the buffers of a generation that is not going to be used again to
+	 * later matrices.
+	 */
+	protected void release(Generation generation) {
+		free.addAll(generation.order);
+		generation.order.clear();
+	}
+
+	/**
+	 * Copy the cached matrix for `distance` into `matrix`.
+	 *
+	 * @return whether the matrix was cached
+	 */
+	public boolean get(double distance, double[] matrix) {
+		final Generation generation = current;
+		final long key = Double.doubleToLongBits(distance);
+		Entry entry = generation.entries.get(key);
+		boolean found = false;
+		if (entry != null) {
+			synchronized (entry) {
+				if (entry.generation == generation && entry.key == key) {
+					entry.matrix.copyTo(matrix);
+					found = true;
+				}
+			}
+		}
+		if (!found) {
+			misses.incrementAndGet();
+			totalMisses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		totalHits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Remember a copy of `matrix` as the transition matrix for `distance`,
+	 * unless the rate matrix changed after `version` was read.
+	 */
+	public synchronized void put(long version, double distance, double[] matrix) {
+		final Generation generation = current;
+		final long key = Double.doubleToLongBits(distance);
+		if (version != generation.version || generation.entries.containsKey(key)) {
+			return;
+		}
+		Entry entry;
+		if (generation.order.size() >= maxEntries) {
+			entry = generation.order.poll();
+			generation.entries.remove(entry.key, entry);
+		} else {
+			entry = free.poll();
+			if (entry == null) {
+				entry = new Entry(MatrixStorage.allocate(storage, matrix.length));
+				++allocated;
+			}
+		}
+		synchronized (entry) {
+			entry.generation = generation;
+			entry.key = key;
+			entry.matrix.copyFrom(matrix);
+		}
+		generation.order.add(entry);
+		generation.entries.put(key, entry);
+	}
+
+	/**
+	 * @return the version of the current generation, to be passed to
+	 *         {@link #put(long, double, double[])}
+	 */
+	public long getVersion() {
+		return current.version;
+	}
+
+	public synchronized void store() {
+		if (stored != current) {
+			release(stored);
+		}
+		stored = current;
+	}
+
+	public synchronized void restore() {
+		if (current != stored) {
+			release(current);
+		}
+		current = stored;
+	}
+
+	/**
+	 * @return the number of matrix buffers allocated so far, at most twice
+	 *         the number of entries
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that were answered from the cache, or 0
+	 *         if there were none
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0.0 : h / (double) total;
+	}
+
+	/**
+	 * @return the hit rate of all caches in this process, see
+	 *         {@link #getHitRate()}
+	 */
+	public static double getTotalHitRate() {
+		long h = totalHits.get();
+		long total = h + totalMisses.get();
+		return total == 0 ? 0.0 : h / (double) total;
+	}
+
+	public static void resetTotals() {
+		totalHits.set(0L);
+		totalMisses.set(0L);
+	}
+}
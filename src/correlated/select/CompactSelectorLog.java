@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.select;
+
+/**
+ * The compact log format of a Selector, which writes two columns per sample
+ * instead of one per entry:
+ *
+ * `id.values` holds the distinct values, comma-separated, in the order in
+ * which their groups first occur in the vector.
+ *
+ * `id.groupings` holds, for every entry, the position of its value in that
+ * list, run-length encoded as comma-separated `position` or
+ * `position*repetitions` items, eg. `0*12,1*3,0*4`. If the groupings have not
+ * changed since the previous sample, the column only contains `=`.
+ *
+ * Encoder is used by Selector while logging; Decoder reconstructs the full
+ * vectors from the columns, sample by sample.
+ */
+public class CompactSelectorLog {
+	public static final String VALUES = ".values";
+	public static final String GROUPINGS = ".groupings";
+	public static final String UNCHANGED = "=";
+
+	/**
+	 * Turns the groups of every entry into the two columns, reusing its
+	 * buffers between samples.
+	 */
+	public static class Encoder {
+		protected int[] positions = new int[0];
+		protected int[] previous = null;
+		/** For every group (and one more, for the special index -1), its position plus one, or 0 */
+		protected int[] positionOfGroup = new int[0];
+		protected int[] groupAt = new int[0];
+		protected int distinct;
+		protected final StringBuilder builder = new StringBuilder();
+
+		/**
+		 * Rank the groups of all entries by first occurrence.
+		 *
+		 * @param groups
+		 *            the group of every entry, with -1 for the special value
+		 * @param nrOfGroups
+		 *            the number of groups
+		 * @return the number of distinct groups
+		 */
+		public int rank(int[] groups, int length, int nrOfGroups) {
+			if (positions.length != length) {
+				positions = new int[length];
+				previous = null;
+			}
+			if (positionOfGroup.length != nrOfGroups + 1) {
+				positionOfGroup = new int[nrOfGroups + 1];
+				groupAt = new int[nrOfGroups + 1];
+			} else {
+				java.util.Arrays.fill(positionOfGroup, 0);
+			}
+			distinct = 0;
+			for (int i = 0; i < length; ++i) {
+				int slot = groups[i] < 0 ? nrOfGroups : groups[i];
+				if (positionOfGroup[slot] == 0) {
+					groupAt[distinct] = groups[i];
+					++distinct;
+					positionOfGroup[slot] = distinct;
+				}
+				positions[i] = positionOfGroup[slot] - 1;
+			}
+			return distinct;
+		}
+
+		/** @return the group whose value comes at `position` in the values column */
+		public int groupAt(int position) {
+			return groupAt[position];
+		}
+
+		/**
+		 * @return the groupings column for the last ranked groups, or
+		 *         UNCHANGED if they are the same as for the previous call
+		 */
+		public String groupings() {
+			if (previous != null && java.util.Arrays.equals(previous, positions)) {
+				return UNCHANGED;
+			}
+			if (previous == null) {
+				previous = new int[positions.length];
+			}
+			System.arraycopy(positions, 0, previous, 0, positions.length);
+			builder.setLength(0);
+			int i = 0;
+			while (i < positions.length) {
+				int run = 1;
+				while (i + run < positions.length && positions[i + run] == positions[i]) {
+					++run;
+				}
+				if (builder.length() > 0) {
+					builder.append(',');
+				}
+				builder.append(positions[i]);
+				if (run > 1) {
+					builder.append('*').append(run);
+				}
+				i += run;
+			}
+			return builder.toString();
+		}
+
+		/** Forget the previous groupings, eg. at the start of a new log. */
+		public void reset() {
+			previous = null;
+		}
+	}
+
+	/**
+	 * Reconstructs the full vector of every sample from the two columns.
+	 */
+	public static class Decoder {
+		protected int[] positions = null;
+
+		/**
+		 * @return the full vector for this sample
+		 */
+		public double[] decode(String values, String groupings) {
+			if (UNCHANGED.equals(groupings)) {
+				if (positions == null) {
+					throw new IllegalArgumentException("The first sample must contain the groupings");
+				}
+			} else {
+				positions = decodeGroupings(groupings);
+			}
+			String[] parts = values.split(",");
+			double[] distinct = new double[parts.length];
+			for (int k = 0; k < parts.length; ++k) {
+				distinct[k] = Double.parseDouble(parts[k]);
+			}
+			double[] result = new double[positions.length];
+			for (int i = 0; i < positions.length; ++i) {
+				if (positions[i] >= distinct.length) {
+					throw new IllegalArgumentException("Position " + positions[i] + " refers to no value in " + values);
+				}
+				result[i] = distinct[positions[i]];
+			}
+			return result;
+		}
+
+		/** @return the number of entries of the vector, once known */
+		public int getDimension() {
+			return positions == null ? -1 : positions.length;
+		}
+	}
+
+	/**
+	 * @return the position of every entry encoded in a groupings column
+	 */
+	public static int[] decodeGroupings(String groupings) {
+		String[] items = groupings.split(",");
+		int length = 0;
+		int[][] runs = new int[items.length][2];
+		for (int k = 0; k < items.length; ++k) {
+			String item = items[k].trim();
+			int star = item.indexOf('*');
+			if (star < 0) {
+				runs[k][0] = Integer.parseInt(item);
+				runs[k][1] = 1;
+			} else {
+				runs[k][0] = Integer.parseInt(item.substring(0, star));
+				runs[k][1] = Integer.parseInt(item.substring(star + 1));
+			}
+			length += runs[k][1];
+		}
+		int[] positions = new int[length];
+		int i = 0;
+		for (int[] run : runs) {
+			for (int r = 0; r < run[1]; ++r) {
+				positions[i++] = run[0];
+			}
+		}
+		return positions;
+	}
+}
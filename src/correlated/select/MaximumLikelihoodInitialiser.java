@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.select;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.core.util.Log;
+import correlated.polycharacter.CompoundDataType;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+
+@Description("Initialises the rates, groupings and sizes of a Selector-based CorrelatedSubstitutionModel"
+		+ " near the maximum likelihood on the starting tree: First the independent model is fitted, then"
+		+ " rate groups are split greedily, by the value of another component, as long as that improves"
+		+ " the log likelihood by at least splitGain.")
+public class MaximumLikelihoodInitialiser extends BEASTObject implements StateNodeInitialiser {
+	public Input<State> stateInput = new Input<State>("state", "the state of the analysis", Validate.REQUIRED);
+	public Input<Distribution> likelihoodInput = new Input<Distribution>("likelihood",
+			"the likelihood to maximise", Validate.REQUIRED);
+	public Input<CorrelatedSubstitutionModel> modelInput = new Input<CorrelatedSubstitutionModel>("model",
+			"the substitution model whose rates are a Selector over parameters and groupings",
+			Validate.REQUIRED);
+	public Input<RealParameter> parametersInput = new Input<RealParameter>("parameters",
+			"the rates of the groups", Validate.REQUIRED);
+	public Input<IntegerParameter> groupingsInput = new Input<IntegerParameter>("groupings",
+			"the group of every rate slot", Validate.REQUIRED);
+	public Input<IntegerParameter> sizesInput = new Input<IntegerParameter>("sizes",
+			"the number of slots in every group");
+	public Input<Boolean> independentInput = new Input<Boolean>("independent",
+			"start from the partition where all components evolve independently, instead of the given groupings",
+			true);
+	public Input<Double> splitGainInput = new Input<Double>("splitGain",
+			"the log likelihood a split has to gain to be kept", 2.0);
+	public Input<Integer> maxEvaluationsInput = new Input<Integer>("maxEvaluations",
+			"the maximum number of likelihood evaluations", 5000);
+	public Input<Double> toleranceInput = new Input<Double>("tolerance",
+			"the smallest change in log rate the optimisation tries", 0.01);
+
+	/** The number of likelihood evaluations of a split candidate */
+	static final int CANDIDATE_EVALUATIONS = 60;
+
+	protected Integer[] shape;
+	protected int[] groupings;
+	protected int evaluations;
+
+	@Override
+	public void initAndValidate() {
+		shape = modelInput.get().getShape();
+		int slots = RateSlots.stateCount(shape) * RateSlots.nonzeroTransitions(shape);
+		if (groupingsInput.get().getDimension() != slots) {
+			throw new IllegalArgumentException("groupings should have dimension " + slots + ", one per rate slot");
+		}
+		if (independentInput.get() && parametersInput.get().getDimension() < RateSlots.independentGroupCount(shape)) {
+			throw new IllegalArgumentException("parameters need at least " + RateSlots.independentGroupCount(shape)
+					+ " entries for the independent model");
+		}
+		if (sizesInput.get() != null && sizesInput.get().getDimension() != parametersInput.get().getDimension()) {
+			throw new IllegalArgumentException("sizes and parameters should have the same dimension");
+		}
+	}
+
+	@Override
+	public void initStateNodes() {
+		long start = System.nanoTime();
+		evaluations = 0;
+		RealParameter parameters = parametersInput.get();
+		IntegerParameter groupingsParameter = groupingsInput.get();
+		double weightedSum = weightedSum();
+
+		if (independentInput.get()) {
+			groupings = RateSlots.independentGroupings(shape);
+			for (int s = 0; s < groupings.length; ++s) {
+				// Slots with the fixed rate of the Selector's index -1 stay fixed.
+				if (groupingsParameter.getValue(s) < 0) {
+					groupings[s] = -1;
+				} else {
+					groupingsParameter.setValue(s, groupings[s]);
+				}
+			}
+		} else {
+			groupings = new int[groupingsParameter.getDimension()];
+			for (int s = 0; s < groupings.length; ++s) {
+				groupings[s] = groupingsParameter.getValue(s);
+			}
+		}
+		double logLikelihood = optimise(nonEmptyGroups(), maxEvaluationsInput.get());
+		Log.info.println(String.format(Locale.ROOT, "Maximum likelihood initialiser: %d groups, log likelihood %.4f",
+				nonEmptyGroups().length, logLikelihood));
+
+		while (evaluations < maxEvaluationsInput.get()) {
+			int free = freeGroup();
+			if (free < 0) {
+				break;
+			}
+			int[] best = null;
+			int bestGroup = -1;
+			double bestLogLikelihood = logLikelihood + splitGainInput.get();
+			for (int group : nonEmptyGroups()) {
+				for (int[] candidate : candidateSplits(shape, groupings, group)) {
+					double value = parameters.getValue(group);
+					split(candidate, free, value);
+					double candidateLogLikelihood = optimise(new int[] { group, free }, CANDIDATE_EVALUATIONS);
+					if (candidateLogLikelihood > bestLogLikelihood) {
+						bestLogLikelihood = candidateLogLikelihood;
+						best = candidate;
+						bestGroup = group;
+					}
+					split(candidate, group, value);
+				}
+			}
+			if (best == null) {
+				break;
+			}
+			split(best, free, parameters.getValue(bestGroup));
+			logLikelihood = optimise(nonEmptyGroups(), maxEvaluationsInput.get() - evaluations);
+			Log.info.println(String.format(Locale.ROOT,
+					"Maximum likelihood initialiser: %d groups, log likelihood %.4f", nonEmptyGroups().length,
+					logLikelihood));
+		}
+
+		// The likelihood does not depend on the overall scale of the rates,
+		// so keep the weighted sum, which the rate operators conserve.
+		double scale = weightedSum / weightedSum();
+		for (int group : nonEmptyGroups()) {
+			parameters.setValue(group, parameters.getValue(group) * scale);
+		}
+		if (sizesInput.get() != null) {
+			int[] sizes = sizes();
+			for (int g = 0; g < sizes.length; ++g) {
+				sizesInput.get().setValue(g, sizes[g]);
+			}
+		}
+		stateInput.get().robustlyCalcPosterior(likelihoodInput.get());
+		Log.info.println(String.format(Locale.ROOT,
+				"Maximum likelihood initialiser: %d likelihood evaluations in %.1fs", evaluations,
+				(System.nanoTime() - start) / 1e9));
+	}
+
+	/**
+	 * Move the slots of `candidate` into `group`, and give that group the
+	 * rate `value`.
+	 */
+	protected void split(int[] candidate, int group, double value) {
+		for (int s : candidate) {
+			groupings[s] = group;
+			groupingsInput.get().setValue(s, group);
+		}
+		parametersInput.get().setValue(group, value);
+	}
+
+	/**
+	 * All ways to split `group` in two by the value of one component in the
+	 * state the slots start from.
+	 *
+	 * @return the slots of the part to move into a new group, for every
+	 *         split that leaves both parts non-empty
+	 */
+	public static List<int[]> candidateSplits(Integer[] shape, int[] groupings, int group) {
+		int nonzeroTransitions = RateSlots.nonzeroTransitions(shape);
+		List<int[]> candidates = new ArrayList<int[]>();
+		for (int component = 0; component < shape.length; ++component) {
+			for (int value = 0; value < shape[component]; ++value) {
+				List<Integer> part = new ArrayList<Integer>();
+				int size = 0;
+				for (int s = 0; s < groupings.length; ++s) {
+					if (groupings[s] != group) {
+						continue;
+					}
+					++size;
+					int from = s / nonzeroTransitions;
+					if (CompoundDataType.compoundState2componentState(shape, from, component) == value) {
+						part.add(s);
+					}
+				}
+				if (!part.isEmpty() && part.size() < size) {
+					int[] candidate = new int[part.size()];
+					for (int i = 0; i < candidate.length; ++i) {
+						candidate[i] = part.get(i);
+					}
+					candidates.add(candidate);
+				}
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Maximise the likelihood over the rates of `groups`, by a pattern search
+	 * in log rate space.
+	 *
+	 * @return the best log likelihood found; the parameters hold the
+	 *         corresponding rates
+	 */
+	protected double optimise(int[] groups, int maxEvaluations) {
+		RealParameter parameters = parametersInput.get();
+		int last = evaluations + maxEvaluations;
+		double best = evaluate();
+		double step = 1.0;
+		while (step > toleranceInput.get() && evaluations < last) {
+			boolean improved = false;
+			for (int group : groups) {
+				double value = parameters.getValue(group);
+				for (int direction = -1; direction <= 1 && evaluations < last; direction += 2) {
+					double proposal = value * Math.exp(direction * step);
+					if (proposal < parameters.getLower() || proposal > parameters.getUpper()) {
+						continue;
+					}
+					parameters.setValue(group, proposal);
+					double logLikelihood = evaluate();
+					if (logLikelihood > best) {
+						best = logLikelihood;
+						value = proposal;
+						improved = true;
+						break;
+					}
+					parameters.setValue(group, value);
+				}
+			}
+			if (!improved) {
+				step /= 2;
+			}
+		}
+		return best;
+	}
+
+	protected double evaluate() {
+		++evaluations;
+		double logLikelihood = stateInput.get().robustlyCalcPosterior(likelihoodInput.get());
+		return Double.isNaN(logLikelihood) ? Double.NEGATIVE_INFINITY : logLikelihood;
+	}
+
+	/** @return the number of slots in every group, not counting fixed slots */
+	protected int[] sizes() {
+		int[] sizes = new int[parametersInput.get().getDimension()];
+		for (int group : groupings) {
+			if (group >= 0) {
+				++sizes[group];
+			}
+		}
+		return sizes;
+	}
+
+	protected int[] nonEmptyGroups() {
+		int[] sizes = sizes();
+		int count = 0;
+		for (int size : sizes) {
+			if (size > 0) {
+				++count;
+			}
+		}
+		int[] groups = new int[count];
+		count = 0;
+		for (int g = 0; g < sizes.length; ++g) {
+			if (sizes[g] > 0) {
+				groups[count++] = g;
+			}
+		}
+		return groups;
+	}
+
+	/** @return an empty group, or -1 if there is none */
+	protected int freeGroup() {
+		int[] sizes = sizes();
+		for (int g = 0; g < sizes.length; ++g) {
+			if (sizes[g] == 0) {
+				return g;
+			}
+		}
+		return -1;
+	}
+
+	/** @return Σ size·rate over all groups, leaving out fixed slots */
+	protected double weightedSum() {
+		RealParameter parameters = parametersInput.get();
+		double sum = 0.0;
+		int[] sizes = new int[parameters.getDimension()];
+		IntegerParameter groupingsParameter = groupingsInput.get();
+		for (int s = 0; s < groupingsParameter.getDimension(); ++s) {
+			int group = groupingsParameter.getValue(s);
+			if (group >= 0) {
+				++sizes[group];
+			}
+		}
+		for (int g = 0; g < sizes.length; ++g) {
+			sum += sizes[g] * parameters.getValue(g);
+		}
+		return sum;
+	}
+
+	@Override
+	public void getInitialisedStateNodes(List<StateNode> stateNodes) {
+		stateNodes.add(parametersInput.get());
+		stateNodes.add(groupingsInput.get());
+		if (sizesInput.get() != null) {
+			stateNodes.add(sizesInput.get());
+		}
+	}
+}
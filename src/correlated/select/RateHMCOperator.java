@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.select;
+
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import correlated.polycharacter.CompoundTreeLikelihood;
+
+@Description("Hamiltonian Monte Carlo move of the rates of all non-empty groups at once, driven by the"
+		+ " gradient of a CompoundTreeLikelihood. The groupings and the weighted sum of the rates,"
+		+ " Σ size·rate, stay fixed, as with a DeltaExchangeOperator weighted by the sizes. Priors on the"
+		+ " rates other than a flat one on that simplex only enter through the acceptance probability."
+		+ " Entries with grouping -1 keep the value of minusOne and are not moved.")
+public class RateHMCOperator extends Operator {
+	public Input<CompoundTreeLikelihood> likelihoodInput = new Input<CompoundTreeLikelihood>("likelihood",
+			"the tree likelihood whose gradient drives the trajectories", Validate.REQUIRED);
+	public Input<RealParameter> parametersInput = new Input<RealParameter>("parameters",
+			"individual parameters that the actual value is chosen from", Validate.REQUIRED);
+	public Input<IntegerParameter> groupingsInput = new Input<IntegerParameter>("groupings",
+			"parameter selection indices, one per entry of the substitution model's rates", Validate.REQUIRED);
+	public Input<IntegerParameter> sizesInput = new Input<IntegerParameter>("sizes",
+			"stores how many indices are pointing to each parameter", Validate.REQUIRED);
+	public Input<Function> minusOneInput = new Input<Function>("minusOne",
+			"the constant value of entries with grouping -1, as for the Selector (required if there are any)");
+	public Input<Double> stepSizeInput = new Input<Double>("stepSize",
+			"the initial leapfrog step size, in log rate space", 0.05);
+	public Input<Integer> leapfrogStepsInput = new Input<Integer>("leapfrogSteps",
+			"the number of leapfrog steps per trajectory", 10);
+	public Input<Boolean> optimiseInput = new Input<Boolean>("optimise",
+			"tune the step size towards the target acceptance probability", true);
+
+	static final double TARGET_ACCEPTANCE = 0.65;
+
+	protected double stepSize;
+	protected double[] rates;
+	protected double[] rateGradient;
+
+	@Override
+	public void initAndValidate() {
+		if (sizesInput.get().getDimension() != parametersInput.get().getDimension()) {
+			throw new IllegalArgumentException("sizes must correspond to parameters in dimension");
+		}
+		if (leapfrogStepsInput.get() < 1) {
+			throw new IllegalArgumentException("leapfrogSteps must be positive");
+		}
+		IntegerParameter groupings = groupingsInput.get();
+		for (int i = 0; i < groupings.getDimension(); ++i) {
+			if (groupings.getValue(i) < 0 && minusOneInput.get() == null) {
+				throw new IllegalArgumentException("Some groupings are -1, so minusOne must be given");
+			}
+		}
+		stepSize = stepSizeInput.get();
+		rates = new double[groupings.getDimension()];
+		rateGradient = new double[rates.length];
+	}
+
+	@Override
+	public double proposal() {
+		RealParameter parameters = parametersInput.get();
+		IntegerParameter sizes = sizesInput.get();
+		int count = 0;
+		for (int g = 0; g < sizes.getDimension(); ++g) {
+			if (sizes.getValue(g) > 0) {
+				++count;
+			}
+		}
+		if (count < 2) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		final int[] groups = new int[count];
+		final double[] weights = new double[count];
+		final double[] logRates = new double[count];
+		count = 0;
+		double total = 0.0;
+		double logJacobian = 0.0;
+		for (int g = 0; g < sizes.getDimension(); ++g) {
+			if (sizes.getValue(g) > 0) {
+				groups[count] = g;
+				weights[count] = sizes.getValue(g);
+				logRates[count] = Math.log(parameters.getValue(g));
+				total += weights[count] * parameters.getValue(g);
+				logJacobian += logRates[count];
+				++count;
+			}
+		}
+
+		double[] momentum = new double[count];
+		for (int k = 0; k < count; ++k) {
+			momentum[k] = Randomizer.nextGaussian();
+		}
+		project(momentum);
+		final double kinetic = kineticEnergy(momentum);
+
+		double[] gradient = gradient(groups, weights, total, logRates);
+		if (gradient == null) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		for (int step = 0; step < leapfrogStepsInput.get(); ++step) {
+			for (int k = 0; k < count; ++k) {
+				momentum[k] += stepSize / 2 * gradient[k];
+				logRates[k] += stepSize * momentum[k];
+			}
+			normalise(weights, total, logRates);
+			gradient = gradient(groups, weights, total, logRates);
+			if (gradient == null) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			for (int k = 0; k < count; ++k) {
+				momentum[k] += stepSize / 2 * gradient[k];
+			}
+		}
+
+		double newLogJacobian = 0.0;
+		for (int k = 0; k < count; ++k) {
+			double value = Math.exp(logRates[k]);
+			if (value < parameters.getLower() || value > parameters.getUpper()) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			newLogJacobian += logRates[k];
+		}
+		for (int k = 0; k < count; ++k) {
+			parameters.setValue(groups[k], Math.exp(logRates[k]));
+		}
+		// The trajectory preserves volume in log rate space; the posterior is
+		// a density over the rates themselves.
+		return kinetic - kineticEnergy(momentum) + newLogJacobian - logJacobian;
+	}
+
+	/**
+	 * The gradient of the log likelihood plus the log Jacobian, Σ log rate,
+	 * by the log rates of the groups, projected onto the directions that do
+	 * not change the overall scale.
+	 *
+	 * @return the gradient, or null if the likelihood is not finite
+	 */
+	protected double[] gradient(int[] groups, double[] weights, double total, double[] logRates) {
+		double[] groupRates = new double[parametersInput.get().getDimension()];
+		for (int k = 0; k < groups.length; ++k) {
+			groupRates[groups[k]] = Math.exp(logRates[k]);
+		}
+		IntegerParameter groupings = groupingsInput.get();
+		for (int i = 0; i < rates.length; ++i) {
+			int group = groupings.getValue(i);
+			rates[i] = group < 0 ? minusOneInput.get().getArrayValue() : groupRates[group];
+		}
+		double logLikelihood = likelihoodInput.get().logLikelihoodGradient(rates, rateGradient);
+		if (Double.isNaN(logLikelihood) || Double.isInfinite(logLikelihood)) {
+			return null;
+		}
+		double[] byGroup = new double[groupRates.length];
+		for (int i = 0; i < rates.length; ++i) {
+			// Fixed entries do not move with any group.
+			int group = groupings.getValue(i);
+			if (group >= 0) {
+				byGroup[group] += rateGradient[i];
+			}
+		}
+		double[] gradient = new double[groups.length];
+		for (int k = 0; k < groups.length; ++k) {
+			double rate = groupRates[groups[k]];
+			gradient[k] = rate * byGroup[groups[k]] + 1.0 - groups.length * weights[k] * rate / total;
+			if (Double.isNaN(gradient[k]) || Double.isInfinite(gradient[k])) {
+				return null;
+			}
+		}
+		project(gradient);
+		return gradient;
+	}
+
+	/** Remove the component along (1, …, 1), which only changes the scale. */
+	static void project(double[] vector) {
+		double mean = 0.0;
+		for (double v : vector) {
+			mean += v;
+		}
+		mean /= vector.length;
+		for (int k = 0; k < vector.length; ++k) {
+			vector[k] -= mean;
+		}
+	}
+
+	/** Shift the log rates so that Σ weight·rate = total again. */
+	static void normalise(double[] weights, double total, double[] logRates) {
+		double sum = 0.0;
+		for (int k = 0; k < logRates.length; ++k) {
+			sum += weights[k] * Math.exp(logRates[k]);
+		}
+		double shift = Math.log(total / sum);
+		for (int k = 0; k < logRates.length; ++k) {
+			logRates[k] += shift;
+		}
+	}
+
+	static double kineticEnergy(double[] momentum) {
+		double energy = 0.0;
+		for (double p : momentum) {
+			energy += p * p;
+		}
+		return energy / 2;
+	}
+
+	@Override
+	public double getCoercableParameterValue() {
+		return stepSize;
+	}
+
+	@Override
+	public void setCoercableParameterValue(double value) {
+		stepSize = value;
+	}
+
+	@Override
+	public void optimize(double logAlpha) {
+		if (optimiseInput.get()) {
+			stepSize = Math.exp(Math.log(stepSize) + calcDelta(logAlpha));
+		}
+	}
+
+	@Override
+	public double getTargetAcceptanceProbability() {
+		return TARGET_ACCEPTANCE;
+	}
+}
@@ -20,6 +20,8 @@
 package correlated.select;
 
 import java.io.PrintStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import beast.core.CalculationNode;
 import beast.core.Citation;
@@ -30,13 +32,16 @@ import beast.core.Input.Validate;
 import beast.core.Loggable;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
+import correlated.util.BinaryTrace;
+import correlated.util.ColumnarLoggable;
+import correlated.util.Metrics;
 
 @Description("A calculation node that propagates parameters from a vector of parameters")
 // Needed for the reversible-jump Markov chain described in
 @Citation("Huelsenbeck, J.P., Larget, B., Alfaro, M.E., 2004. "
 		+ "Bayesian Phylogenetic Model Selection Using Reversible Jump Markov Chain Monte Carlo. "
 		+ "Mol Biol Evol 21, 1123-1133. doi:10.1093/molbev/msh123")
-public class Selector extends CalculationNode implements Loggable, Function {
+public class Selector extends CalculationNode implements Loggable, Function, ColumnarLoggable {
 	// Input objects
 	final public Input<IntegerParameter> entryInput = new Input<IntegerParameter>(
 			"entry",
@@ -51,10 +56,28 @@ public class Selector extends CalculationNode implements Loggable, Function {
 			Validate.REQUIRED);
 	public Input<Function> minusOneIsSpecialInput = new Input<Function>(
 			"minusOne", "Deliver this constant value for index -1"); 
+	public Input<Boolean> compactInput = new Input<Boolean>(
+			"compact",
+			"log the distinct values and the run-length encoded groupings of the entries in two columns, instead of one column per entry",
+			false);
 
 	// Member objects
 	protected IntegerParameter entries;
 	protected Integer maxIndex;
+	/**
+	 * One encoder per log this Selector is written to, because whether the
+	 * groupings are unchanged depends on the previous row of that log.
+	 */
+	protected final Map<PrintStream, CompactSelectorLog.Encoder> encoders =
+			new IdentityHashMap<PrintStream, CompactSelectorLog.Encoder>();
+	protected int[] groups;
+
+	static final String[] METRIC_COUNTERS = { "valueReads" };
+	static final int VALUE_READS = 0;
+	static final String[] METRIC_TIMERS = { "log" };
+	static final int LOG = 0;
+	/** Counters and latencies for JMX, or null if metrics are disabled */
+	protected Metrics metrics;
 
 	@Override
 	public void initAndValidate() {
@@ -87,6 +110,7 @@ public class Selector extends CalculationNode implements Loggable, Function {
 			}
 		}
 		// value = parametersInput[groupingsInput[entry]]
+		metrics = Metrics.register(this, METRIC_COUNTERS, METRIC_TIMERS);
 	}
 
 	/**
@@ -111,6 +135,9 @@ public class Selector extends CalculationNode implements Loggable, Function {
 
 	@Override
 	public double getArrayValue(int iDim) {
+		if (metrics != null) {
+			metrics.count(VALUE_READS);
+		}
 		int index = groupingsInput.get().getNativeValue(
 				entries.getNativeValue(iDim));
 		if (index == -1) {
@@ -126,6 +153,11 @@ public class Selector extends CalculationNode implements Loggable, Function {
 
 	@Override
 	public void init(final PrintStream out) {
+		if (compactInput.get()) {
+			encoders.put(out, new CompactSelectorLog.Encoder());
+			out.print(getID() + CompactSelectorLog.VALUES + "\t" + getID() + CompactSelectorLog.GROUPINGS + "\t");
+			return;
+		}
 		for (int i = 0; i < getDimension(); ++i) {
 			out.print(getID() + "" + i + "\t");
 		}
@@ -133,14 +165,72 @@ public class Selector extends CalculationNode implements Loggable, Function {
 
 	@Override
 	public void log(final int nSample, final PrintStream out) {
-		for (int i = 0; i < getDimension(); ++i) {
-			out.print(getArrayValue(i) + "\t");
+		final long start = metrics == null ? 0L : metrics.start();
+		if (compactInput.get()) {
+			logCompact(out);
+		} else {
+			for (int i = 0; i < getDimension(); ++i) {
+				out.print(getArrayValue(i) + "\t");
+			}
+		}
+		if (metrics != null) {
+			metrics.stop(LOG, start);
+		}
+	}
+
+	/**
+	 * Log the value of every entry in the format of CompactSelectorLog.
+	 */
+	protected void logCompact(final PrintStream out) {
+		int n = entries.getDimension();
+		if (groups == null || groups.length != n) {
+			groups = new int[n];
+		}
+		IntegerParameter groupings = groupingsInput.get();
+		for (int i = 0; i < n; ++i) {
+			groups[i] = groupings.getNativeValue(entries.getNativeValue(i));
+		}
+		CompactSelectorLog.Encoder encoder = encoders.get(out);
+		if (encoder == null) {
+			encoder = new CompactSelectorLog.Encoder();
+			encoders.put(out, encoder);
 		}
+		int distinct = encoder.rank(groups, n, maxIndex);
+		for (int k = 0; k < distinct; ++k) {
+			int group = encoder.groupAt(k);
+			if (k > 0) {
+				out.print(",");
+			}
+			if (group == -1) {
+				out.print(minusOneIsSpecialInput.get().getArrayValue());
+			} else {
+				out.print(parametersInput.get().getValue(group));
+			}
+		}
+		out.print("\t" + encoder.groupings() + "\t");
 	}
 
 	@Override
 	public void close(final PrintStream out) {
-		// nothing to do
+		encoders.remove(out);
+	}
+
+	/**
+	 * ColumnarLoggable interface implementation follows *
+	 */
+
+	@Override
+	public void addColumns(BinaryTrace.Columns columns) {
+		for (int i = 0; i < getDimension(); ++i) {
+			columns.add(BinaryTrace.Type.FLOAT64, getID() + "" + i);
+		}
+	}
+
+	@Override
+	public void logColumns(BinaryTrace.Row out) {
+		for (int i = 0; i < getDimension(); ++i) {
+			out.putDouble(getArrayValue(i));
+		}
 	}
 
 }
@@ -5,6 +5,7 @@ import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
 import beast.core.parameter.IntegerParameter;
+import correlated.util.BinaryTrace;
 
 @Description("A calculation node that propagates the used values from a vector of parameters. As opposed to Selector, this class aggregates values into some kind of multiset, useful for analyses where only different values matter.")
 @Citation("Huelsenbeck, J.P., Larget, B., Alfaro, M.E., 2004. "
@@ -18,9 +19,9 @@ public class SelectorSet extends Selector {
 	@Override
 	public int getDimension() {
 		int dim = 0;
-		Integer[] sizes = sizesInput.get().getValues();
+		IntegerParameter sizes = sizesInput.get();
 		for (int i = 0; i<maxIndex; ++i){
-			if (sizes[i] > 0) {
+			if (sizes.getNativeValue(i) > 0) {
 				++dim;
 			}
 		}
@@ -35,9 +36,9 @@ public class SelectorSet extends Selector {
 	@Override
 	public double getArrayValue(int iDim) {
 		int dim = 0;
-		Integer[] sizes = sizesInput.get().getValues();
+		IntegerParameter sizes = sizesInput.get();
 		for (int i = 0; i<maxIndex; ++i){
-			if (sizes[i] > 0) {
+			if (sizes.getNativeValue(i) > 0) {
 				++dim;
 			}
 			if (dim>iDim) {
@@ -48,5 +49,33 @@ public class SelectorSet extends Selector {
 		return 0;
 	}
 
+	/**
+	 * The number of distinct values changes, but a binary trace needs a fixed
+	 * number of columns, so there is one for every parameter, and the columns
+	 * beyond the current dimension are NaN.
+	 */
+	@Override
+	public void addColumns(BinaryTrace.Columns columns) {
+		for (int i = 0; i < maxIndex; ++i) {
+			columns.add(BinaryTrace.Type.FLOAT64, getID() + "" + i);
+		}
+	}
+
+	@Override
+	public void logColumns(BinaryTrace.Row out) {
+		IntegerParameter sizes = sizesInput.get();
+		int dim = 0;
+		for (int i = 0; i < maxIndex; ++i) {
+			if (sizes.getNativeValue(i) > 0) {
+				int index = groupingsInput.get().getNativeValue(i);
+				out.putDouble(parametersInput.get().getValue(index));
+				++dim;
+			}
+		}
+		for (; dim < maxIndex; ++dim) {
+			out.putDouble(Double.NaN);
+		}
+	}
+
 
 }
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package correlated.select.splitandmerge;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Operator;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+import correlated.util.PhaseTimer;
+
+@Description("Add or remove the dependency of one component on another in a single step:"
+		+ " Pick an ordered pair of components A, B. If the rates of A do not depend on B, split every group of"
+		+ " A's rates into one group per value of B (adding the edge A←B). If every group of A's rates"
+		+ " contains only one value of B, and the groups for the different values of B mirror each other, merge"
+		+ " them (removing the edge). Other configurations are left to the split and merge operators."
+		+ " The groupings must index the rates of a non-reversible CorrelatedSubstitutionModel directly.")
+public class DependencyEdgeOperator extends Operator {
+	// Inputs that are changed by the operator
+	public Input<RealParameter> parametersInput = new Input<RealParameter>("parameters",
+			"individual parameters that the actual value is chosen from", Validate.REQUIRED);
+	public Input<IntegerParameter> groupingsInput = new Input<IntegerParameter>("groupings",
+			"parameter selection indices", Validate.REQUIRED);
+	public Input<IntegerParameter> sizesInput = new Input<IntegerParameter>("sizes",
+			"stores how many indices are pointing to each parameter", Validate.REQUIRED);
+	// Inputs that describe the structure
+	public Input<CorrelatedSubstitutionModel> modelInput = new Input<CorrelatedSubstitutionModel>(
+			"substitutionModel", "the model whose rates the groupings select", Validate.REQUIRED);
+
+	protected Integer[] shape;
+	protected int nrOfStates;
+	protected int nonzeroTransitions;
+	/** For each component, the offset of its slots within a state */
+	protected int[] componentOffset;
+	/** For each component, the distance between states differing by one in it */
+	protected int[] stride;
+
+	@Override
+	public void initAndValidate() {
+		CorrelatedSubstitutionModel model = modelInput.get();
+		if (model.isReversible()) {
+			throw new IllegalArgumentException("DependencyEdgeOperator does not support reversible models");
+		}
+		shape = model.getShape();
+		nrOfStates = RateSlots.stateCount(shape);
+		nonzeroTransitions = RateSlots.nonzeroTransitions(shape);
+		if (groupingsInput.get().getDimension() != nrOfStates * nonzeroTransitions) {
+			throw new IllegalArgumentException("groupings must have one entry per rate of the substitution model, "
+					+ nrOfStates * nonzeroTransitions + " in total");
+		}
+		if (sizesInput.get().getDimension() != parametersInput.get().getDimension()) {
+			throw new IllegalArgumentException("sizes must correspond to parameters in dimension");
+		}
+		componentOffset = new int[shape.length];
+		stride = new int[shape.length];
+		int s = 1;
+		for (int c = shape.length - 1; c >= 0; --c) {
+			stride[c] = s;
+			s *= shape[c];
+		}
+		for (int c = 1; c < shape.length; ++c) {
+			componentOffset[c] = componentOffset[c - 1] + shape[c - 1] - 1;
+		}
+	}
+
+	/** @return the value of component `c` in the source state of `slot` */
+	protected int valueOf(int slot, int c) {
+		return (slot / nonzeroTransitions / stride[c]) % shape[c];
+	}
+
+	/**
+	 * @return the slot describing the same transition as `slot`, from the
+	 *         state where component `c` has value `value` instead
+	 */
+	protected int translate(int slot, int c, int value) {
+		return slot + (value - valueOf(slot, c)) * stride[c] * nonzeroTransitions;
+	}
+
+	/** @return the slots of the transitions of component `a`, in order */
+	protected int[] slotsOf(int a) {
+		int perState = shape[a] - 1;
+		int[] slots = new int[nrOfStates * perState];
+		int next = 0;
+		for (int from = 0; from < nrOfStates; ++from) {
+			for (int i = 0; i < perState; ++i) {
+				slots[next] = from * nonzeroTransitions + componentOffset[a] + i;
+				++next;
+			}
+		}
+		return slots;
+	}
+
+	@Override
+	public double proposal() {
+		final long start = PhaseTimer.start();
+		final double logHastingsRatio = toggleEdge();
+		PhaseTimer.stop(PhaseTimer.Phase.SPLIT_MERGE, start);
+		return logHastingsRatio;
+	}
+
+	/**
+	 * Change the parameters and return the log of the Hastings ratio.
+	 */
+	protected double toggleEdge() {
+		if (shape.length < 2) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		// Every ordered pair is picked with the same probability, and which
+		// way the edge is toggled is determined by the state, so the choice
+		// cancels from the Hastings ratio.
+		int a = Randomizer.nextInt(shape.length);
+		int b = Randomizer.nextInt(shape.length - 1);
+		if (b >= a) {
+			++b;
+		}
+
+		IntegerParameter groupings = groupingsInput.get(this);
+		IntegerParameter sizes = sizesInput.get(this);
+		int[] slots = slotsOf(a);
+
+		// The groups of A's rates must not contain anything else.
+		int[] count = new int[sizes.getDimension()];
+		for (int slot : slots) {
+			int group = groupings.getValue(slot);
+			if (group < 0) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			++count[group];
+		}
+		for (int group = 0; group < count.length; ++group) {
+			if (count[group] > 0 && count[group] != sizes.getValue(group)) {
+				return Double.NEGATIVE_INFINITY;
+			}
+		}
+
+		// The edge A←B is absent if every group is invariant under changing
+		// the value of B. It can be removed if every group contains only one
+		// value of B, and changing B maps each group onto exactly one other.
+		int m = shape[b];
+		boolean invariant = true;
+		boolean mirrored = true;
+		int[] valueOfGroup = new int[count.length];
+		int[][] image = new int[count.length][];
+		for (int slot : slots) {
+			int group = groupings.getValue(slot);
+			int value = valueOf(slot, b);
+			if (image[group] == null) {
+				valueOfGroup[group] = value;
+				image[group] = new int[m];
+				for (int w = 0; w < m; ++w) {
+					image[group][w] = groupings.getValue(translate(slot, b, w));
+				}
+			} else if (valueOfGroup[group] != value) {
+				mirrored = false;
+			}
+			for (int w = 0; w < m; ++w) {
+				int other = groupings.getValue(translate(slot, b, w));
+				if (other != group) {
+					invariant = false;
+				}
+				if (other != image[group][w]) {
+					mirrored = false;
+				}
+			}
+		}
+		if (mirrored) {
+			for (int group = 0; group < count.length; ++group) {
+				if (image[group] != null) {
+					for (int w = 0; w < m; ++w) {
+						if (count[image[group][w]] != count[group]) {
+							mirrored = false;
+						}
+					}
+				}
+			}
+		}
+
+		if (invariant) {
+			return addEdge(slots, count, b, m);
+		} else if (mirrored) {
+			return removeEdge(slots, count, image, m);
+		}
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * The log density of the split of one group of rate `rate` into `m`
+	 * groups of equal size: The new rates are m·rate·u for u ~ Dirichlet(1,
+	 * …, 1), which has density (m-1)!, and the Jacobian of (rate, u) ↦ new
+	 * rates is m^m·rate^(m-1).
+	 */
+	static double logSplitTerm(double rate, int m) {
+		double logFactorial = 0;
+		for (int k = 2; k < m; ++k) {
+			logFactorial += Math.log(k);
+		}
+		return m * Math.log(m) + (m - 1) * Math.log(rate) - logFactorial;
+	}
+
+	protected double addEdge(int[] slots, int[] count, int b, int m) {
+		RealParameter parameters = parametersInput.get(this);
+		IntegerParameter groupings = groupingsInput.get(this);
+		IntegerParameter sizes = sizesInput.get(this);
+
+		int groups = 0;
+		for (int c : count) {
+			if (c > 0) {
+				++groups;
+			}
+		}
+		// New groups take the lowest free indices, in order.
+		int[] free = new int[groups * (m - 1)];
+		int nFree = 0;
+		for (int i = 0; i < count.length && nFree < free.length; ++i) {
+			if (sizes.getValue(i) == 0) {
+				free[nFree] = i;
+				++nFree;
+			}
+		}
+		if (nFree < free.length) {
+			// Parameter space exhausted
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		double logHastingsRatio = 0.0;
+		int nextFree = 0;
+		int[][] newIndex = new int[count.length][];
+		for (int group = 0; group < count.length; ++group) {
+			if (count[group] == 0) {
+				continue;
+			}
+			double rate = parameters.getValue(group);
+			double[] u = new double[m];
+			double sum = 0.0;
+			for (int value = 0; value < m; ++value) {
+				// Exponential variates, normalised, are Dirichlet(1, …, 1)
+				u[value] = -Math.log(1.0 - Randomizer.nextDouble());
+				sum += u[value];
+			}
+			newIndex[group] = new int[m];
+			for (int value = 0; value < m; ++value) {
+				// The part with B=0 keeps the old index.
+				int index = value == 0 ? group : free[nextFree++];
+				newIndex[group][value] = index;
+				double newRate = m * rate * u[value] / sum;
+				if (newRate < parameters.getLower() || newRate > parameters.getUpper()) {
+					return Double.NEGATIVE_INFINITY;
+				}
+				parameters.setValue(index, newRate);
+				sizes.setValue(index, count[group] / m);
+			}
+			logHastingsRatio += logSplitTerm(rate, m);
+		}
+		for (int slot : slots) {
+			int group = groupings.getValue(slot);
+			groupings.setValue(slot, newIndex[group][valueOf(slot, b)]);
+		}
+		return logHastingsRatio;
+	}
+
+	protected double removeEdge(int[] slots, int[] count, int[][] image, int m) {
+		RealParameter parameters = parametersInput.get(this);
+		IntegerParameter groupings = groupingsInput.get(this);
+		IntegerParameter sizes = sizesInput.get(this);
+
+		// Each family is represented by its member with B=0, which keeps its
+		// index.
+		int[] family = new int[count.length];
+		for (int group = 0; group < count.length; ++group) {
+			if (count[group] > 0) {
+				family[group] = image[group][0];
+			}
+		}
+		double[] sum = new double[count.length];
+		int[] members = new int[count.length];
+		for (int group = 0; group < count.length; ++group) {
+			if (count[group] > 0) {
+				sum[family[group]] += parameters.getValue(group);
+				++members[family[group]];
+			}
+		}
+
+		double logHastingsRatio = 0.0;
+		for (int group = 0; group < count.length; ++group) {
+			if (members[group] == 0) {
+				continue;
+			}
+			if (members[group] != m) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			// All members have the same size, so the mean conserves the sum of
+			// rates.
+			double rate = sum[group] / m;
+			parameters.setValue(group, rate);
+			logHastingsRatio -= logSplitTerm(rate, m);
+		}
+		for (int group = 0; group < count.length; ++group) {
+			if (count[group] > 0) {
+				if (family[group] == group) {
+					sizes.setValue(group, count[group] * m);
+				} else {
+					sizes.setValue(group, 0);
+				}
+			}
+		}
+		for (int slot : slots) {
+			groupings.setValue(slot, family[groupings.getValue(slot)]);
+		}
+		return logHastingsRatio;
+	}
+}
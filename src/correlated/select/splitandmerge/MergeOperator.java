@@ -19,8 +19,6 @@
 
 package correlated.select.splitandmerge;
 
-import java.util.HashSet;
-
 import beast.core.Citation;
 import beast.core.Description;
 import beast.core.Input;
@@ -30,6 +28,8 @@ import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.math.Binomial;
 import beast.util.Randomizer;
+import correlated.util.Metrics;
+import correlated.util.PhaseTimer;
 
 @Description("Randomly merge two groups of parameters")
 @Citation("Huelsenbeck, J.P., Larget, B., Alfaro, M.E., 2004. "
@@ -48,10 +48,20 @@ public class MergeOperator extends Operator {
 			(IntegerParameter) null);
 
 	Integer maxIndex;
+	/** Buffer for proposals, so that they do not allocate */
+	protected int[] trueGroupIndices;
+
+	static final String[] METRIC_COUNTERS = { "impossibleProposals" };
+	static final int IMPOSSIBLE = 0;
+	static final String[] METRIC_TIMERS = { "proposals" };
+	static final int PROPOSALS = 0;
+	/** Counters and latencies for JMX, or null if metrics are disabled */
+	protected Metrics metrics;
 
 	@Override
 	public void initAndValidate() {
 		maxIndex = parametersInput.get().getDimension();
+		trueGroupIndices = new int[maxIndex];
 		// Array-like RealParameters do not implement java.lang.iterable, so we
 		// must do the iteration by hand.
 		for (int groupIndex = groupingsInput.get().getDimension() - 1; groupIndex >= 0; --groupIndex) {
@@ -65,14 +75,29 @@ public class MergeOperator extends Operator {
 			throw new RuntimeException(
 					"sizes must correspond to parameters in dimension");
 		}
+		metrics = Metrics.register(this, METRIC_COUNTERS, METRIC_TIMERS);
+	}
+
+	@Override
+	public double proposal() {
+		final long start = PhaseTimer.start();
+		final long metricsStart = metrics == null ? 0L : metrics.start();
+		final double logHastingsRatio = merge();
+		PhaseTimer.stop(PhaseTimer.Phase.SPLIT_MERGE, start);
+		if (metrics != null) {
+			metrics.stop(PROPOSALS, metricsStart);
+			if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+				metrics.count(IMPOSSIBLE);
+			}
+		}
+		return logHastingsRatio;
 	}
 
 	/**
 	 * Change the parameter and return the log of the Hastings ratio: Merge two
 	 * groups of joined parameters, averaging the parameter.
 	 */
-	@Override
-	public double proposal() {
+	protected double merge() {
 
 		// Find the composition of groups
 
@@ -80,9 +105,9 @@ public class MergeOperator extends Operator {
 
 		int nGroups = 0;
 		int groupsOfSizeAtLeastTwo = 0;
-		int[] trueGroupIndices = new int[parametersInput.get().getDimension()];
-		int i = 0;
-		for (int size : sizesInput.get(this).getValues()) {
+		IntegerParameter sizes = sizesInput.get(this);
+		for (int i = 0; i < sizes.getDimension(); ++i) {
+			int size = sizes.getNativeValue(i);
 			if (size > 0) {
 				trueGroupIndices[nGroups] = i;
 				++nGroups;
@@ -90,7 +115,6 @@ public class MergeOperator extends Operator {
 					++groupsOfSizeAtLeastTwo;
 				}
 			}
-			++i;
 		}
 
 		if (nGroups < 2) {
@@ -107,29 +131,23 @@ public class MergeOperator extends Operator {
 		int removeIndex = trueGroupIndices[rawRemoveIndex];
 		int mergeIndex = trueGroupIndices[rawMergeIndex];
 
-		HashSet<Integer> mergeGroup = new HashSet<Integer>();
-		HashSet<Integer> removeGroup = new HashSet<Integer>();
-		i = 0;
-		for (int index : groupingsInput.get(this).getValues()) {
+		// Generate the MERGE
+		IntegerParameter groupings = groupingsInput.get(this);
+		int mergeGroupSize = 0;
+		int removeGroupSize = 0;
+		for (int i = 0; i < groupings.getDimension(); ++i) {
+			int index = groupings.getNativeValue(i);
 			if (index == mergeIndex) {
-				mergeGroup.add(i);
+				++mergeGroupSize;
 			}
 			if (index == removeIndex) {
-				removeGroup.add(i);
+				// groupings[toBeMerged] = mergeIndex
+				groupings.setValue(i, mergeIndex);
+				++removeGroupSize;
 			}
-			++i;
-		}
-
-		// Generate the MERGE
-		Integer mergeGroupSize = mergeGroup.size();
-		Integer removeGroupSize = removeGroup.size();
-
-		for (Integer toBeMerged : removeGroup) {
-			// groupings[toBeMerged] = mergeIndex
-			groupingsInput.get(this).setValue(toBeMerged, mergeIndex);
 		}
 
-		Double logJacobian = Math.log(mergeGroupSize)
+		double logJacobian = Math.log(mergeGroupSize)
 				+ Math.log(removeGroupSize)
 				- Math.log(mergeGroupSize + removeGroupSize);
 
@@ -148,9 +166,8 @@ public class MergeOperator extends Operator {
 				* (mergeGroupSize + removeGroupSize));
 
 		// Update the group size caches
-		sizesInput.get(this).setValue(removeIndex, 0);
-		sizesInput.get(this).setValue(mergeIndex,
-				(mergeGroupSize + removeGroupSize));
+		sizes.setValue(removeIndex, 0);
+		sizes.setValue(mergeIndex, mergeGroupSize + removeGroupSize);
 
 		// System.out.printf("Merge %d into %d\n", removeIndex, mergeIndex);
 		// Now we calculate the Hastings ratio.
@@ -182,7 +199,7 @@ public class MergeOperator extends Operator {
 		// [ P_s(M') 1/N(M') 1/(2^(n'_i+n'_j-1)-1) 1/(q' (n'_i+n'_j)) ]/[
 		// P_m(M) 1/(k nCr 2) ]
 
-		Double p = -Math.log(groupsOfSizeAtLeastTwo)
+		double p = -Math.log(groupsOfSizeAtLeastTwo)
 				- Math.log(Math.pow(2, mergeGroupSize + removeGroupSize - 1) - 1)
 				- bijectionDensity + Binomial.logChoose(nGroups, 2)
 				+ logJacobian;
@@ -19,8 +19,6 @@
 
 package correlated.select.splitandmerge;
 
-import java.util.HashSet;
-
 import beast.core.Citation;
 import beast.core.Description;
 import beast.core.Input;
@@ -30,6 +28,8 @@ import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.math.Binomial;
 import beast.util.Randomizer;
+import correlated.util.Metrics;
+import correlated.util.PhaseTimer;
 
 @Description("Randomly split a group of parameters in two")
 @Citation("Huelsenbeck, J.P., Larget, B., Alfaro, M.E., 2004. "
@@ -49,10 +49,22 @@ public class SplitOperator extends Operator {
 			(IntegerParameter) null);
 
 	Integer maxIndex;
+	/** Buffers for proposals, so that they do not allocate */
+	protected int[] trueGroupIndices;
+	protected int[] splitGroup;
+
+	static final String[] METRIC_COUNTERS = { "impossibleProposals" };
+	static final int IMPOSSIBLE = 0;
+	static final String[] METRIC_TIMERS = { "proposals" };
+	static final int PROPOSALS = 0;
+	/** Counters and latencies for JMX, or null if metrics are disabled */
+	protected Metrics metrics;
 
 	@Override
 	public void initAndValidate() {
 		maxIndex = parametersInput.get().getDimension();
+		trueGroupIndices = new int[maxIndex];
+		splitGroup = new int[groupingsInput.get().getDimension()];
 		// RealParameter does not implement java.lang.iterable, so we must do
 		// the iteration by hand.
 		for (int groupIndex = groupingsInput.get().getDimension() - 1; groupIndex >= 0; --groupIndex) {
@@ -61,14 +73,29 @@ public class SplitOperator extends Operator {
 						"All entries in groupings must be valid indices of parameters");
 			}
 		}
+		metrics = Metrics.register(this, METRIC_COUNTERS, METRIC_TIMERS);
+	}
+
+	@Override
+	public double proposal() {
+		final long start = PhaseTimer.start();
+		final long metricsStart = metrics == null ? 0L : metrics.start();
+		final double logHastingsRatio = split();
+		PhaseTimer.stop(PhaseTimer.Phase.SPLIT_MERGE, start);
+		if (metrics != null) {
+			metrics.stop(PROPOSALS, metricsStart);
+			if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+				metrics.count(IMPOSSIBLE);
+			}
+		}
+		return logHastingsRatio;
 	}
 
 	/**
 	 * Change the parameter and return the log of the Hastings ratio. Split a
 	 * class of joined parameters in two.
 	 */
-	@Override
-	public double proposal() {
+	protected double split() {
 		// Find the composition of groups, in particular which ones can be
 		// split.
 
@@ -77,10 +104,10 @@ public class SplitOperator extends Operator {
 		// is 1/2.
 		int nGroups = 0;
 		int nGroupsOfSizeAtLeastTwo = 0;
-		int[] trueGroupIndices = new int[parametersInput.get().getDimension()];
-		int i = 0;
-		Integer newIndex = null;
-		for (int size : sizesInput.get(this).getValues()) {
+		IntegerParameter sizes = sizesInput.get(this);
+		int newIndex = -1;
+		for (int i = 0; i < sizes.getDimension(); ++i) {
+			int size = sizes.getNativeValue(i);
 			if (size > 0) {
 				++nGroups;
 				if (size > 1) {
@@ -88,14 +115,13 @@ public class SplitOperator extends Operator {
 					++nGroupsOfSizeAtLeastTwo;
 				}
 			} else {
-				if (newIndex == null) {
+				if (newIndex == -1) {
 					newIndex = i;
 				}
 			}
-			++i;
 		}
 		
-		if (newIndex == null) {
+		if (newIndex == -1) {
 			// System.out.printf("Split: Parameter space exhausted\n");
 			return Double.NEGATIVE_INFINITY;
 		}
@@ -108,13 +134,13 @@ public class SplitOperator extends Operator {
 		int rawSplitIndex = Randomizer.nextInt(nGroupsOfSizeAtLeastTwo);
 		int splitIndex = trueGroupIndices[rawSplitIndex];
 
-		HashSet<Integer> splitGroup = new HashSet<Integer>();
-		i = 0;
-		for (int index : groupingsInput.get(this).getValues()) {
-			if (index == splitIndex) {
-				splitGroup.add(i);
+		IntegerParameter groupings = groupingsInput.get(this);
+		int splitGroupSize = 0;
+		for (int i = 0; i < groupings.getDimension(); ++i) {
+			if (groupings.getNativeValue(i) == splitIndex) {
+				splitGroup[splitGroupSize] = i;
+				++splitGroupSize;
 			}
-			++i;
 		}
 
 		int newGroupSize;
@@ -123,20 +149,21 @@ public class SplitOperator extends Operator {
 			// System.out.printf("Split: Generating a valid split...\n");
 			// Generate the SPLIT
 			newGroupSize = 0;
-			oldGroupSize = splitGroup.size();
+			oldGroupSize = splitGroupSize;
 
 			// Go through the old list from the end, and either move or keep
 			// entries. Note that index 0 is definitely staying in the old
 			// group, so we only iterate while index > 0.
-			for (int j : splitGroup) {
+			for (int k = 0; k < splitGroupSize; ++k) {
+				int j = splitGroup[k];
 				if (Randomizer.nextBoolean()) {
-					groupingsInput.get(this).setValue(j, newIndex);
+					groupings.setValue(j, newIndex);
 					++newGroupSize;
 					--oldGroupSize;
 				} else {
 					// In case we run into this twice, make sure to reset the
 					// split index
-					groupingsInput.get(this).setValue(j, splitIndex);
+					groupings.setValue(j, splitIndex);
 				}
 			}
 
@@ -166,8 +193,8 @@ public class SplitOperator extends Operator {
 				.log(rate * (oldGroupSize + newGroupSize));
 
 		// Update the group size caches
-		sizesInput.get(this).setValue(newIndex, newGroupSize);
-		sizesInput.get(this).setValue(splitIndex, oldGroupSize);
+		sizes.setValue(newIndex, newGroupSize);
+		sizes.setValue(splitIndex, oldGroupSize);
 
 		// System.out.printf("Split %d into %d\n", splitIndex, newIndex);
 		// Now we calculate the Hastings ratio.
@@ -190,7 +217,7 @@ public class SplitOperator extends Operator {
 		// (n_i+n_j)) ]
 		// NOTE: The reference states (k nCr 2), but that seems to be a typo. We
 		// use k' = k+1 after a split.
-		Double p = -Binomial.logChoose(nGroups + 1, 2)
+		double p = -Binomial.logChoose(nGroups + 1, 2)
 				+ Math.log(nGroupsOfSizeAtLeastTwo)
 				+ Math.log(Math.pow(2, newGroupSize + oldGroupSize - 1) - 1)
 				+ bijectionDensity + logJacobian;
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import correlated.util.BinaryTrace;
+
+/**
+ * Converts a trace written by BinaryTraceLogger into the tab-separated layout
+ * of a BEAST Logger, with a `Sample` column followed by one column per value,
+ * so that it can be read by Tracer and similar tools.
+ *
+ * Usage:
+ *
+ * <pre>
+ * BinaryTraceToText trace.bin trace.log
+ * </pre>
+ */
+public class BinaryTraceToText {
+	public static void convert(BinaryTrace.Reader in, Writer output) {
+		PrintWriter out = new PrintWriter(output);
+		BinaryTrace.Columns columns = in.getColumns();
+		StringBuilder line = new StringBuilder("Sample\t");
+		for (int c = 0; c < columns.size(); ++c) {
+			line.append(columns.getName(c)).append('\t');
+		}
+		out.println(line);
+		while (in.next()) {
+			line.setLength(0);
+			line.append(in.getSample()).append('\t');
+			for (int c = 0; c < columns.size(); ++c) {
+				line.append(in.format(c)).append('\t');
+			}
+			out.println(line);
+		}
+		out.flush();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: BinaryTraceToText trace.bin trace.log");
+			System.exit(1);
+		}
+		BinaryTrace.Reader in = new BinaryTrace.Reader(new File(args[0]));
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+		convert(in, out);
+		out.close();
+	}
+}
@@ -0,0 +1,736 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import beast.core.BEASTInterface;
+import beast.core.Distribution;
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.Log;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.datatype.DataType;
+import beast.evolution.datatype.StandardData;
+import beast.evolution.datatype.UserDataType;
+import beast.evolution.likelihood.TreeLikelihood;
+import beast.evolution.operators.DeltaExchangeOperator;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.Frequencies;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.Prior;
+import beast.util.NexusParser;
+import beast.util.Randomizer;
+import beast.util.TreeParser;
+import correlated.mcmc.Chain;
+import correlated.mcmc.CoupledChains;
+import correlated.mcmc.SteppingStone;
+import correlated.polycharacter.CompoundAlignment;
+import correlated.polycharacter.CompoundDataType;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+import correlated.select.Selector;
+import correlated.select.helpers.RescaledDirichlet;
+import correlated.select.splitandmerge.MergeOperator;
+import correlated.select.splitandmerge.SplitOperator;
+import correlated.util.Metrics;
+
+/**
+ * Screen all pairs (or triples, …) of characters of a morphological alignment
+ * for correlated evolution.
+ *
+ * For every tuple of characters, two analyses are run on the fixed tree (or
+ * on each tree of a tree sample, pooling the samples): One where all
+ * components evolve independently, and one where the rates are partitioned
+ * by split and merge moves as in examples/commented_example_2x3x4.xml,
+ * starting from the independent partition. All analyses run concurrently on a
+ * bounded pool of worker threads. Every analysis is admitted only when its
+ * estimated memory use fits in the remaining memory budget, and skipped if it
+ * exceeds the per-task limit.
+ *
+ * Every chain picks operators and accepts moves with its own generator,
+ * seeded from -seed and the index of the tuple, so that it does not share a
+ * lock with the other workers for these draws. The operators' proposals
+ * still draw from BEAST's global Randomizer, seeded with -seed. With more
+ * than one thread, the order of those draws depends on the timing of the
+ * workers, so only runs with -threads 1 are exactly reproducible.
+ *
+ * One row per tuple is written to the summary file as soon as both analyses
+ * have finished. It contains the mean log likelihoods, the AICM (Raftery et
+ * al. 2007) of both models, the resulting log Bayes factor proxy in favour of
+ * dependence, and the posterior probability of every dependency edge in the
+ * dependent analysis.
+ *
+ * With -chains n, the dependent analysis runs n Metropolis-coupled chains
+ * (see CoupledChains) on the same pool of workers, proposing a swap of temperatures
+ * every -swapEvery steps, and the summary also contains their swap
+ * acceptance.
+ *
+ * With -steps K, both analyses also estimate their marginal likelihood by
+ * stepping stones over K+1 power posteriors (see SteppingStone), which
+ * sample concurrently on the same pool of workers and are warm-started from
+ * each other. The chain at β = 1 burns in for -burnin steps, every other one
+ * for -stepBurnin steps, and every β gets the same number of samples as a
+ * normal analysis. The summary then contains both log marginal likelihoods
+ * and their log Bayes factor.
+ *
+ * Usage:
+ *
+ * <pre>
+ * CorrelationScreening -data alignment.nex [-trees file.trees [-treeCount n] | -newick tree]
+ *                      [-tupleSize 2] [-columns 1-20,25] [-threads n] [-memory MB] [-taskMemory MB]
+ *                      [-chainLength n] [-burnin n] [-sampleEvery n] [-seed n] [-out summary.tsv]
+ *                      [-chains n [-heating 0.1] [-swapEvery 10]]
+ *                      [-steps K [-stepAlpha 0.3] [-stepBurnin n]]
+ * </pre>
+ */
+public class CorrelationScreening {
+	Alignment data;
+	List<UserDataType> labels = null;
+	List<Tree> trees = new ArrayList<Tree>();
+	int[] columnShape;
+	int[] columnSizesIncludingAmbiguities;
+
+	int tupleSize = 2;
+	int[] columns = null;
+	int threads = Runtime.getRuntime().availableProcessors();
+	long memoryMB = Runtime.getRuntime().maxMemory() * 3 / 4 / (1024 * 1024);
+	long taskMemoryMB = Long.MAX_VALUE;
+	int treeCount = 1;
+	int chainLength = 100000;
+	int burnin = 10000;
+	int sampleEvery = 100;
+	long seed = 127;
+	int chains = 1;
+	double heating = 0.1;
+	int swapEvery = 10;
+	int steps = 0;
+	double stepAlpha = 0.3;
+	int stepBurnin = 1000;
+	String out = "screening.tsv";
+	/** The bounded pool that runs the analyses, and the chains within them */
+	ExecutorService workers;
+
+	/** The parts of one analysis that the driver needs to look at */
+	static class Analysis {
+		State state;
+		Distribution posterior;
+		Distribution likelihood;
+		List<Operator> operators = new ArrayList<Operator>();
+		CorrelatedSubstitutionModel model;
+		/** The objects that may have registered metrics */
+		List<BEASTInterface> instrumented = new ArrayList<BEASTInterface>();
+
+		/** Let go of the metrics, so that the analysis can be collected. */
+		void release() {
+			for (BEASTInterface object : instrumented) {
+				Metrics.unregister(object);
+			}
+		}
+	}
+
+	/** What is kept of the samples of one analysis */
+	static class Summary {
+		double[] logLikelihoods = new double[64];
+		int samples = 0;
+		long[] edgeCounts;
+		double swapAcceptance = Double.NaN;
+		double logMarginalLikelihood = Double.NaN;
+
+		Summary(int tupleSize) {
+			edgeCounts = new long[tupleSize * tupleSize];
+		}
+
+		void record(double logLikelihood, CorrelatedSubstitutionModel model) {
+			if (samples == logLikelihoods.length) {
+				logLikelihoods = Arrays.copyOf(logLikelihoods, 2 * samples);
+			}
+			logLikelihoods[samples] = logLikelihood;
+			++samples;
+			int components = model.getShape().length;
+			for (int component = 0; component < components; ++component) {
+				for (int dependsOn = 0; dependsOn < components; ++dependsOn) {
+					if (component != dependsOn && model.depends(component, dependsOn)) {
+						++edgeCounts[component * components + dependsOn];
+					}
+				}
+			}
+		}
+
+		double mean() {
+			double sum = 0;
+			for (int i = 0; i < samples; ++i) {
+				sum += logLikelihoods[i];
+			}
+			return sum / samples;
+		}
+
+		double variance() {
+			double mean = mean();
+			double sum = 0;
+			for (int i = 0; i < samples; ++i) {
+				sum += (logLikelihoods[i] - mean) * (logLikelihoods[i] - mean);
+			}
+			return sum / (samples - 1);
+		}
+
+		/** Raftery et al.'s AIC through MCMC: 2 s² - 2 mean(log L) */
+		double aicm() {
+			return 2 * variance() - 2 * mean();
+		}
+	}
+
+	void parseArguments(String[] args) throws Exception {
+		String dataFile = null;
+		String treeFile = null;
+		String newick = null;
+		String columnSpec = null;
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-data")) {
+				dataFile = args[++i];
+			} else if (arg.equals("-trees")) {
+				treeFile = args[++i];
+			} else if (arg.equals("-newick")) {
+				newick = args[++i];
+			} else if (arg.equals("-treeCount")) {
+				treeCount = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-tupleSize")) {
+				tupleSize = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-columns")) {
+				columnSpec = args[++i];
+			} else if (arg.equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-memory")) {
+				memoryMB = Long.parseLong(args[++i]);
+			} else if (arg.equals("-taskMemory")) {
+				taskMemoryMB = Long.parseLong(args[++i]);
+			} else if (arg.equals("-chainLength")) {
+				chainLength = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-burnin")) {
+				burnin = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-sampleEvery")) {
+				sampleEvery = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-seed")) {
+				seed = Long.parseLong(args[++i]);
+			} else if (arg.equals("-chains")) {
+				chains = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-heating")) {
+				heating = Double.parseDouble(args[++i]);
+			} else if (arg.equals("-swapEvery")) {
+				swapEvery = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-steps")) {
+				steps = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-stepAlpha")) {
+				stepAlpha = Double.parseDouble(args[++i]);
+			} else if (arg.equals("-stepBurnin")) {
+				stepBurnin = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-out")) {
+				out = args[++i];
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+		if (dataFile == null) {
+			throw new IllegalArgumentException("-data must be specified");
+		}
+
+		NexusParser parser = new NexusParser();
+		parser.parseFile(new File(dataFile));
+		data = parser.m_alignment;
+		if (data.getDataType() instanceof StandardData) {
+			labels = ((StandardData) data.getDataType()).charStateLabelsInput.get();
+		}
+
+		if (newick != null) {
+			TreeParser tree = new TreeParser();
+			tree.initByName("newick", newick, "IsLabelledNewick", true, "adjustTipHeights", false);
+			trees.add(tree);
+		} else {
+			NexusParser treeParser = parser;
+			if (treeFile != null) {
+				treeParser = new NexusParser();
+				treeParser.parseFile(new File(treeFile));
+			}
+			if (treeParser.trees == null || treeParser.trees.isEmpty()) {
+				throw new IllegalArgumentException("No tree given: Use -trees or -newick, or a trees block in -data");
+			}
+			// Use trees spread evenly over the sample.
+			int available = treeParser.trees.size();
+			treeCount = Math.min(treeCount, available);
+			for (int i = 0; i < treeCount; ++i) {
+				trees.add(treeParser.trees.get(available - 1 - i * available / treeCount));
+			}
+		}
+
+		if (columnSpec == null) {
+			columns = new int[data.getSiteCount()];
+			for (int i = 0; i < columns.length; ++i) {
+				columns[i] = i;
+			}
+		} else {
+			columns = parseColumns(columnSpec);
+		}
+		if (columns.length < tupleSize) {
+			throw new IllegalArgumentException("Need at least " + tupleSize + " columns to screen");
+		}
+
+		// Derive the shape of every column once, the same way CompoundAlignment
+		// does.
+		Integer[] guessed = CompoundAlignment.guessSizes(data);
+		columnShape = new int[data.getSiteCount()];
+		columnSizesIncludingAmbiguities = new int[data.getSiteCount()];
+		for (int site = 0; site < columnShape.length; ++site) {
+			if (labels != null && site < labels.size()) {
+				columnShape[site] = labels.get(site).getStateCount();
+			} else {
+				columnShape[site] = guessed[site];
+			}
+			columnSizesIncludingAmbiguities[site] = Math.max(guessed[site], columnShape[site]);
+		}
+	}
+
+	/** Parse a 1-based list of columns like "1-4,7" */
+	static int[] parseColumns(String spec) {
+		List<Integer> list = new ArrayList<Integer>();
+		for (String part : spec.split(",")) {
+			String[] range = part.trim().split("-");
+			int from = Integer.parseInt(range[0].trim());
+			int to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+			for (int c = from; c <= to; ++c) {
+				list.add(c - 1);
+			}
+		}
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = list.get(i);
+		}
+		return result;
+	}
+
+	Integer[] shape(int[] tuple) {
+		Integer[] shape = new Integer[tuple.length];
+		for (int i = 0; i < tuple.length; ++i) {
+			shape[i] = columnShape[tuple[i]];
+		}
+		return shape;
+	}
+
+	/**
+	 * A rough upper bound of the memory an analysis of this tuple needs: the
+	 * partials and transition matrices of the tree likelihood, plus the rate
+	 * matrix and eigen system of the substitution model.
+	 */
+	long estimateMemoryMB(int[] tuple) {
+		long nrOfStates = RateSlots.stateCount(shape(tuple));
+		long nodes = 2L * data.getTaxonCount() - 1;
+		long bytes = 8L * (2 * nodes * nrOfStates * nrOfStates + 4 * nrOfStates * nrOfStates + 4 * nodes
+				* nrOfStates + 2 * nrOfStates * RateSlots.nonzeroTransitions(shape(tuple)));
+		return bytes / (1024 * 1024) + 1;
+	}
+
+	static String join(Object[] values) {
+		StringBuilder result = new StringBuilder();
+		for (Object value : values) {
+			result.append(value).append(' ');
+		}
+		return result.toString().trim();
+	}
+
+	Analysis build(int[] tuple, Tree tree, boolean dependent) {
+		Integer[] shape = shape(tuple);
+		Analysis analysis = new Analysis();
+
+		FilteredAlignment filtered = new FilteredAlignment();
+		CompoundDataType datatype = new CompoundDataType();
+		Tree ownTree;
+		// The shared alignment, data types and tree learn about their new
+		// outputs here, which is not thread-safe.
+		synchronized (data) {
+			StringBuilder filter = new StringBuilder();
+			for (int column : tuple) {
+				filter.append(filter.length() == 0 ? "" : ",").append(column + 1);
+			}
+			filtered.initByName("data", data, "filter", filter.toString());
+
+			List<DataType> components = new ArrayList<DataType>(tuple.length);
+			Integer[] sizesIncludingAmbiguities = new Integer[tuple.length];
+			for (int i = 0; i < tuple.length; ++i) {
+				if (labels != null && tuple[i] < labels.size()) {
+					components.add(labels.get(tuple[i]));
+				} else {
+					StandardData component = new StandardData();
+					component.initByName("nrOfStates", shape[i]);
+					components.add(component);
+				}
+				sizesIncludingAmbiguities[i] = columnSizesIncludingAmbiguities[tuple[i]];
+			}
+			datatype.initByName("components", components, "componentSizesIncludingAmbiguities",
+					new IntegerParameter(sizesIncludingAmbiguities));
+			ownTree = (Tree) tree.copy();
+		}
+
+		CompoundAlignment compound = new CompoundAlignment();
+		compound.initByName("alignment", filtered, "userDataType", datatype);
+
+		int nrOfStates = RateSlots.stateCount(shape);
+		Double[] equal = new Double[nrOfStates];
+		Arrays.fill(equal, 1.0 / nrOfStates);
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", new RealParameter(equal), "estimate", false);
+
+		// Both analyses start in the independent partition. The dependent one
+		// has room for every slot to get its own rate.
+		int[] independent = RateSlots.independentGroupings(shape);
+		int nrOfParameters = dependent ? independent.length : RateSlots.independentGroupCount(shape);
+		Integer[] groupings = new Integer[independent.length];
+		Integer[] sizes = new Integer[nrOfParameters];
+		Double[] values = new Double[nrOfParameters];
+		Arrays.fill(sizes, 0);
+		Arrays.fill(values, 1.0);
+		for (int i = 0; i < independent.length; ++i) {
+			groupings[i] = independent[i];
+			++sizes[independent[i]];
+		}
+		RealParameter rawRates = new RealParameter();
+		rawRates.initByName("value", join(values), "lower", 0.0);
+		IntegerParameter groupingsParameter = new IntegerParameter();
+		groupingsParameter.initByName("value", join(groupings));
+		IntegerParameter sizesParameter = new IntegerParameter();
+		sizesParameter.initByName("value", join(sizes));
+
+		Selector rates = new Selector();
+		rates.initByName("parameters", rawRates, "groupings", groupingsParameter);
+		analysis.model = new CorrelatedSubstitutionModel();
+		analysis.model.initByName("rates", rates, "frequencies", frequencies, "shape", new IntegerParameter(shape));
+
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", analysis.model);
+		TreeLikelihood treeLikelihood = new TreeLikelihood();
+		treeLikelihood.initByName("data", compound, "tree", ownTree, "siteModel", siteModel);
+		analysis.likelihood = new CompoundDistribution();
+		analysis.likelihood.initByName("distribution", treeLikelihood);
+
+		RescaledDirichlet dirichlet = new RescaledDirichlet();
+		dirichlet.initByName("sizes", sizesParameter);
+		Prior prior = new Prior();
+		prior.initByName("x", rates, "distr", dirichlet);
+		analysis.posterior = new CompoundDistribution();
+		analysis.posterior.initByName("distribution", prior, "distribution", analysis.likelihood);
+
+		DeltaExchangeOperator heaper = new DeltaExchangeOperator();
+		heaper.initByName("parameter", rawRates, "delta", 0.1, "weightvector", sizesParameter, "weight", 3.0);
+		analysis.operators.add(heaper);
+		analysis.state = new State();
+		if (dependent) {
+			SplitOperator splitter = new SplitOperator();
+			splitter.initByName("parameters", rawRates, "groupings", groupingsParameter, "sizes", sizesParameter,
+					"weight", 3.0);
+			MergeOperator merger = new MergeOperator();
+			merger.initByName("parameters", rawRates, "groupings", groupingsParameter, "sizes", sizesParameter,
+					"weight", 3.0);
+			analysis.operators.add(splitter);
+			analysis.operators.add(merger);
+			analysis.instrumented.add(splitter);
+			analysis.instrumented.add(merger);
+			analysis.state.initByName("stateNode", rawRates, "stateNode", groupingsParameter, "stateNode",
+					sizesParameter);
+		} else {
+			analysis.state.initByName("stateNode", rawRates);
+		}
+		analysis.instrumented.add(rates);
+		analysis.instrumented.add(analysis.model);
+		return analysis;
+	}
+
+	/**
+	 * @return the generator for the seeds of the chains of one analysis,
+	 *         which only depends on -seed, the tuple and the model
+	 */
+	SplittableRandom seeds(int index, boolean dependent) {
+		return new SplittableRandom(seed ^ (2L * index + (dependent ? 1 : 0)) * 0x9E3779B97F4A7C15L);
+	}
+
+	Summary run(int index, int[] tuple, boolean dependent) {
+		SplittableRandom seeds = seeds(index, dependent);
+		if (steps > 0) {
+			return runSteppingStone(tuple, dependent, seeds);
+		}
+		if (dependent && chains > 1) {
+			return runCoupled(tuple, seeds);
+		}
+		Summary summary = new Summary(tuple.length);
+		int perTree = chainLength / trees.size();
+		for (Tree tree : trees) {
+			Analysis analysis = build(tuple, tree, dependent);
+			try {
+				Chain chain = new Chain(analysis.state, analysis.posterior, analysis.likelihood,
+						analysis.operators, seeds.nextLong());
+				chain.initialise();
+				chain.run(burnin);
+				for (int i = 1; i <= perTree; ++i) {
+					chain.step();
+					if (i % sampleEvery == 0) {
+						summary.record(chain.getLogLikelihood(), analysis.model);
+					}
+				}
+			} finally {
+				analysis.release();
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Run the dependent analysis as Metropolis-coupled chains, recording the
+	 * samples of whichever chain is cold at the time.
+	 */
+	Summary runCoupled(int[] tuple, SplittableRandom seeds) {
+		Summary summary = new Summary(tuple.length);
+		int perTree = chainLength / trees.size();
+		long proposed = 0;
+		long accepted = 0;
+		for (Tree tree : trees) {
+			List<Analysis> analyses = new ArrayList<Analysis>(chains);
+			try {
+				List<Chain> heated = new ArrayList<Chain>(chains);
+				for (int c = 0; c < chains; ++c) {
+					Analysis analysis = build(tuple, tree, true);
+					analyses.add(analysis);
+					heated.add(new Chain(analysis.state, analysis.posterior, analysis.likelihood,
+							analysis.operators, seeds.nextLong()));
+				}
+				CoupledChains coupled = new CoupledChains(heated, heating, seeds.nextLong());
+				coupled.initialise();
+				for (int i = 0; i < burnin; i += swapEvery) {
+					coupled.round(workers, swapEvery);
+				}
+				int nextSample = sampleEvery;
+				for (int i = swapEvery; i <= perTree; i += swapEvery) {
+					coupled.round(workers, swapEvery);
+					while (nextSample <= i) {
+						summary.record(coupled.getColdChain().getLogLikelihood(),
+								analyses.get(coupled.getColdChainIndex()).model);
+						nextSample += sampleEvery;
+					}
+				}
+				proposed += coupled.getSwapsProposed();
+				accepted += coupled.getSwapsAccepted();
+				Log.info.print(coupled.report());
+			} finally {
+				for (Analysis analysis : analyses) {
+					analysis.release();
+				}
+			}
+		}
+		summary.swapAcceptance = proposed == 0 ? 0.0 : accepted / (double) proposed;
+		return summary;
+	}
+
+	/**
+	 * Run the analysis as stepping stones, recording the samples of the chain
+	 * at β = 1. With several trees, the marginal likelihood is the mean of the
+	 * marginal likelihoods given each tree.
+	 */
+	Summary runSteppingStone(int[] tuple, boolean dependent, SplittableRandom seeds) {
+		final Summary summary = new Summary(tuple.length);
+		int perTree = chainLength / trees.size();
+		double[] logMLs = new double[trees.size()];
+		for (int t = 0; t < trees.size(); ++t) {
+			List<Analysis> analyses = new ArrayList<Analysis>(steps + 1);
+			try {
+				List<Chain> powered = new ArrayList<Chain>(steps + 1);
+				Analysis analysis = null;
+				for (int k = 0; k <= steps; ++k) {
+					analysis = build(tuple, trees.get(t), dependent);
+					analyses.add(analysis);
+					powered.add(new Chain(analysis.state, analysis.posterior, analysis.likelihood,
+							analysis.operators, seeds.nextLong()));
+				}
+				final CorrelatedSubstitutionModel coldModel = analysis.model;
+				SteppingStone steppingStone = new SteppingStone(powered, stepAlpha);
+				steppingStone.setColdSampler(chain -> summary.record(chain.getLogLikelihood(), coldModel));
+				logMLs[t] = steppingStone.run(workers, burnin, stepBurnin, perTree / sampleEvery, sampleEvery);
+			} finally {
+				for (Analysis built : analyses) {
+					built.release();
+				}
+			}
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		for (double logML : logMLs) {
+			max = Math.max(max, logML);
+		}
+		double sum = 0.0;
+		for (double logML : logMLs) {
+			sum += Math.exp(logML - max);
+		}
+		summary.logMarginalLikelihood = max + Math.log(sum / logMLs.length);
+		return summary;
+	}
+
+	String header() {
+		StringBuilder header = new StringBuilder(
+				"tuple\tcolumns\tstatus\tsamples\tmeanLogL_independent\tmeanLogL_dependent"
+						+ "\tAICM_independent\tAICM_dependent\tlogBF_proxy\tswapAcceptance"
+						+ "\tlogML_independent\tlogML_dependent\tlogBF_steppingStone");
+		for (int component = 0; component < tupleSize; ++component) {
+			for (int dependsOn = 0; dependsOn < tupleSize; ++dependsOn) {
+				if (component != dependsOn) {
+					header.append(String.format("\tP_%d_depends_on_%d", component, dependsOn));
+				}
+			}
+		}
+		return header.toString();
+	}
+
+	String row(int index, int[] tuple, Summary independent, Summary dependent, Throwable error) {
+		StringBuilder row = new StringBuilder();
+		row.append(index).append('\t');
+		for (int i = 0; i < tuple.length; ++i) {
+			row.append(i == 0 ? "" : ",").append(tuple[i] + 1);
+		}
+		if (error != null) {
+			Throwable cause = error.getCause() == null ? error : error.getCause();
+			row.append("\tfailed: ").append(String.valueOf(cause.getMessage()).replace('\t', ' '));
+			return row.toString();
+		}
+		row.append("\tok\t").append(dependent.samples);
+		row.append(String.format(Locale.ROOT, "\t%.4f\t%.4f\t%.4f\t%.4f\t%.4f", independent.mean(), dependent.mean(),
+				independent.aicm(), dependent.aicm(), (independent.aicm() - dependent.aicm()) / 2));
+		row.append(Double.isNaN(dependent.swapAcceptance) ? "\tNA"
+				: String.format(Locale.ROOT, "\t%.4f", dependent.swapAcceptance));
+		if (Double.isNaN(dependent.logMarginalLikelihood)) {
+			row.append("\tNA\tNA\tNA");
+		} else {
+			row.append(String.format(Locale.ROOT, "\t%.4f\t%.4f\t%.4f", independent.logMarginalLikelihood,
+					dependent.logMarginalLikelihood,
+					dependent.logMarginalLikelihood - independent.logMarginalLikelihood));
+		}
+		for (int component = 0; component < tuple.length; ++component) {
+			for (int dependsOn = 0; dependsOn < tuple.length; ++dependsOn) {
+				if (component != dependsOn) {
+					row.append(String.format(Locale.ROOT, "\t%.4f",
+							dependent.edgeCounts[component * tuple.length + dependsOn] / (double) dependent.samples));
+				}
+			}
+		}
+		return row.toString();
+	}
+
+	/**
+	 * Advance `tuple` to the next combination of `columns` indices.
+	 *
+	 * @return false if there is none
+	 */
+	static boolean next(int[] tuple, int n) {
+		int k = tuple.length;
+		for (int i = k - 1; i >= 0; --i) {
+			if (tuple[i] < n - k + i) {
+				++tuple[i];
+				for (int j = i + 1; j < k; ++j) {
+					tuple[j] = tuple[j - 1] + 1;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void screen() throws Exception {
+		final PrintStream summary = new PrintStream(new FileOutputStream(out), true, "UTF-8");
+		summary.println(header());
+
+		workers = Executors.newFixedThreadPool(threads);
+		// Keep enough tuples in flight to keep all workers busy, without
+		// queueing up thousands of them at once.
+		final Semaphore inFlight = new Semaphore(threads);
+		final Semaphore memory = new Semaphore((int) Math.min(memoryMB, Integer.MAX_VALUE));
+
+		int[] positions = new int[tupleSize];
+		for (int i = 0; i < tupleSize; ++i) {
+			positions[i] = i;
+		}
+		int index = 0;
+		do {
+			final int[] tuple = new int[tupleSize];
+			for (int i = 0; i < tupleSize; ++i) {
+				tuple[i] = columns[positions[i]];
+			}
+			final int tupleIndex = index;
+			++index;
+			inFlight.acquire();
+			CompletableFuture<Summary> independent = CompletableFuture
+					.supplyAsync(() -> runWithinBudget(tupleIndex, tuple, false, memory), workers);
+			CompletableFuture<Summary> dependent = CompletableFuture
+					.supplyAsync(() -> runWithinBudget(tupleIndex, tuple, true, memory), workers);
+			independent.thenCombine(dependent, (ind, dep) -> row(tupleIndex, tuple, ind, dep, null))
+					.whenComplete((row, error) -> {
+						synchronized (summary) {
+							summary.println(error == null ? row : row(tupleIndex, tuple, null, null, error));
+						}
+						inFlight.release();
+					});
+		} while (next(positions, columns.length));
+
+		// Wait for the last rows to be written. The workers must keep running
+		// until then, because the analyses queue their chains on them.
+		inFlight.acquire(threads);
+		workers.shutdown();
+		workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		summary.close();
+	}
+
+	Summary runWithinBudget(int index, int[] tuple, boolean dependent, Semaphore memory) {
+		long estimate = estimateMemoryMB(tuple) * (steps > 0 ? steps + 1 : dependent ? chains : 1);
+		if (estimate > taskMemoryMB || estimate > memoryMB) {
+			throw new IllegalStateException("estimated " + estimate + "MB exceed the per-task memory limit");
+		}
+		memory.acquireUninterruptibly((int) estimate);
+		try {
+			return run(index, tuple, dependent);
+		} finally {
+			memory.release((int) estimate);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Log.setLevel(Log.Level.warning);
+		CorrelationScreening screening = new CorrelationScreening();
+		screening.parseArguments(args);
+		Randomizer.setSeed(screening.seed);
+		screening.screen();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.tools;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import correlated.select.CompactSelectorLog;
+
+/**
+ * Rewrites a trace log that contains compact Selector columns (`id.values`
+ * and `id.groupings`) into the usual format with one column `id0`, `id1`, …
+ * per entry, so that it can be read by Tracer and similar tools. All other
+ * columns and comment lines are copied unchanged.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ExpandSelectorLog compact.log expanded.log
+ * </pre>
+ */
+public class ExpandSelectorLog {
+	public static void expand(Reader input, Writer output) throws IOException {
+		BufferedReader in = new BufferedReader(input);
+		PrintWriter out = new PrintWriter(output);
+
+		String[] header = null;
+		// For every column, the decoder of the Selector it belongs to, or null
+		CompactSelectorLog.Decoder[] decoders = null;
+		// For every values column, the index of its groupings column, or -1
+		int[] partner = null;
+		boolean headerWritten = false;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("#") || line.trim().isEmpty()) {
+				out.println(line);
+				continue;
+			}
+			String[] fields = line.split("\t", -1);
+			if (header == null) {
+				header = fields;
+				decoders = new CompactSelectorLog.Decoder[header.length];
+				partner = new int[header.length];
+				for (int c = 0; c < header.length; ++c) {
+					partner[c] = -1;
+					if (header[c].endsWith(CompactSelectorLog.VALUES)) {
+						String id = header[c].substring(0, header[c].length() - CompactSelectorLog.VALUES.length());
+						for (int d = 0; d < header.length; ++d) {
+							if (header[d].equals(id + CompactSelectorLog.GROUPINGS)) {
+								partner[c] = d;
+								decoders[c] = new CompactSelectorLog.Decoder();
+							}
+						}
+					}
+				}
+				continue;
+			}
+			if (fields.length < header.length) {
+				throw new IOException("Line has " + fields.length + " columns, expected " + header.length);
+			}
+
+			List<String> expanded = new ArrayList<String>();
+			List<String> names = new ArrayList<String>();
+			for (int c = 0; c < header.length; ++c) {
+				if (decoders[c] != null) {
+					double[] values = decoders[c].decode(fields[c], fields[partner[c]]);
+					String id = header[c].substring(0, header[c].length() - CompactSelectorLog.VALUES.length());
+					for (int i = 0; i < values.length; ++i) {
+						names.add(id + i);
+						expanded.add(Double.toString(values[i]));
+					}
+				} else if (!isPartner(partner, c)) {
+					names.add(header[c]);
+					expanded.add(fields[c]);
+				}
+			}
+			if (!headerWritten) {
+				out.println(join(names));
+				headerWritten = true;
+			}
+			out.println(join(expanded));
+		}
+		if (header != null && !headerWritten) {
+			// A log without samples: the number of entries is unknown.
+			out.println(join(header));
+		}
+		out.flush();
+	}
+
+	static boolean isPartner(int[] partner, int column) {
+		for (int p : partner) {
+			if (p == column) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static String join(List<String> fields) {
+		return join(fields.toArray(new String[fields.size()]));
+	}
+
+	static String join(String[] fields) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < fields.length; ++i) {
+			if (i > 0) {
+				builder.append('\t');
+			}
+			builder.append(fields[i]);
+		}
+		return builder.toString();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: ExpandSelectorLog compact.log expanded.log");
+			System.exit(1);
+		}
+		Reader in = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+		Writer out = new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8");
+		expand(in, out);
+		in.close();
+		out.close();
+	}
+}
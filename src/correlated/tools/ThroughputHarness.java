@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.State;
+import beast.core.util.CompoundDistribution;
+import beast.core.util.ESS;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+import correlated.polycharacter.TransitionMatrixCache;
+import correlated.util.PhaseTimer;
+
+/**
+ * Headless end-to-end benchmark. Runs the shipped example analyses and
+ * generated larger variants with a fixed seed and without their own loggers,
+ * and reports samples per second, posterior ESS per minute, the share of time
+ * spent in tree likelihoods, rebuilding substitution models and in split/merge
+ * proposals, and the peak heap. Compared against a stored baseline, the harness
+ * exits with status 1 if any run regressed by more than the configured
+ * tolerance.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ThroughputHarness [-examples dir] [-variant CHARACTERSxSTATES]... [-taxa n]
+ *                   [-seed n] [-chainLength n] [-logEvery n]
+ *                   [-baseline file] [-writeBaseline file]
+ *                   [-maxSlowdown fraction] [-maxEssLoss fraction]
+ *                   [-maxHeapGrowth fraction]
+ *                   [file.xml]...
+ * </pre>
+ */
+public class ThroughputHarness {
+	static final String[] EXAMPLES = { "minimal_two_binary_characters.xml", "commented_example_2x3x4.xml",
+			"uniform.xml" };
+
+	@Description("Keeps the trace of a single value in memory.")
+	public static class TraceCollector extends BEASTObject implements Loggable {
+		public Input<Function> valueInput = new Input<Function>("value", "the value to collect", Validate.REQUIRED);
+
+		protected List<Double> trace = new ArrayList<Double>();
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public void init(PrintStream out) {
+			trace.clear();
+		}
+
+		@Override
+		public void log(int sample, PrintStream out) {
+			trace.add(valueInput.get().getArrayValue());
+		}
+
+		@Override
+		public void close(PrintStream out) {
+			// nothing to do
+		}
+
+		public List<Double> getTrace() {
+			return trace;
+		}
+	}
+
+	@Description("Times the calculations of the wrapped distribution as PhaseTimer.Phase.LIKELIHOOD.")
+	public static class TimedDistribution extends Distribution {
+		public Input<Distribution> distributionInput = new Input<Distribution>("distribution",
+				"the distribution to time", Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			Distribution distribution = distributionInput.get();
+			if (distribution.isDirtyCalculation()) {
+				final long start = PhaseTimer.start();
+				logP = distribution.calculateLogP();
+				PhaseTimer.stop(PhaseTimer.Phase.LIKELIHOOD, start);
+			} else {
+				logP = distribution.getCurrentLogP();
+			}
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return distributionInput.get().getArguments();
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return distributionInput.get().getConditions();
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+			distributionInput.get().sample(state, random);
+		}
+	}
+
+	/**
+	 * Samples the used heap, garbage included, at a fixed interval and keeps
+	 * the maximum. Unlike the sum of the per-pool peaks, which the pools reach
+	 * at different times, this is a total the heap actually had.
+	 */
+	static class HeapSampler extends Thread {
+		static final long INTERVAL_MILLIS = 5;
+
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		volatile boolean running = true;
+		volatile long peak = 0L;
+
+		HeapSampler() {
+			setDaemon(true);
+		}
+
+		void sample() {
+			peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				sample();
+				try {
+					Thread.sleep(INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return the highest used heap seen since the sampler started
+		 */
+		long finish() throws InterruptedException {
+			running = false;
+			interrupt();
+			join();
+			sample();
+			return peak;
+		}
+	}
+
+	static class Result {
+		String name;
+		int samples;
+		double seconds;
+		double ess;
+		double likelihoodSeconds;
+		double substitutionModelSeconds;
+		double splitMergeSeconds;
+		double transitionCacheHitRate;
+		long peakHeap;
+
+		double samplesPerSecond() {
+			return samples / seconds;
+		}
+
+		double essPerMinute() {
+			return ess / (seconds / 60.0);
+		}
+	}
+
+	String examples = "examples";
+	List<String> files = new ArrayList<String>();
+	List<int[]> variants = new ArrayList<int[]>();
+	int taxa = 32;
+	long seed = 127;
+	int chainLength = 20000;
+	int logEvery = 10;
+	String baseline = null;
+	String writeBaseline = null;
+	double maxSlowdown = 0.25;
+	double maxEssLoss = 0.25;
+	double maxHeapGrowth = 0.25;
+
+	void parseArguments(String[] args) {
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-examples")) {
+				examples = args[++i];
+			} else if (arg.equals("-variant")) {
+				String[] parts = args[++i].toLowerCase(Locale.ROOT).split("x");
+				variants.add(new int[] { Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) });
+			} else if (arg.equals("-taxa")) {
+				taxa = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-seed")) {
+				seed = Long.parseLong(args[++i]);
+			} else if (arg.equals("-chainLength")) {
+				chainLength = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-logEvery")) {
+				logEvery = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-baseline")) {
+				baseline = args[++i];
+			} else if (arg.equals("-writeBaseline")) {
+				writeBaseline = args[++i];
+			} else if (arg.equals("-maxSlowdown")) {
+				maxSlowdown = Double.parseDouble(args[++i]);
+			} else if (arg.equals("-maxEssLoss")) {
+				maxEssLoss = Double.parseDouble(args[++i]);
+			} else if (arg.equals("-maxHeapGrowth")) {
+				maxHeapGrowth = Double.parseDouble(args[++i]);
+			} else if (arg.startsWith("-")) {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			} else {
+				files.add(arg);
+			}
+		}
+		if (files.isEmpty()) {
+			for (String example : EXAMPLES) {
+				files.add(new File(examples, example).getPath());
+			}
+		}
+	}
+
+	/**
+	 * Replace every tree likelihood below the distribution by a
+	 * TimedDistribution wrapping it.
+	 */
+	static void timeLikelihoods(Distribution distribution) {
+		if (!(distribution instanceof CompoundDistribution)) {
+			return;
+		}
+		CompoundDistribution compound = (CompoundDistribution) distribution;
+		List<Distribution> distributions = compound.pDistributions.get();
+		for (int i = 0; i < distributions.size(); ++i) {
+			Distribution child = distributions.get(i);
+			if (child instanceof GenericTreeLikelihood) {
+				TimedDistribution timed = new TimedDistribution();
+				timed.initByName("distribution", child);
+				child.getOutputs().remove(compound);
+				timed.getOutputs().add(compound);
+				distributions.set(i, timed);
+			} else {
+				timeLikelihoods(child);
+			}
+		}
+	}
+
+	/**
+	 * Run one analysis with the harness' chain length, seed and in-memory
+	 * logger in place of the loggers specified in the file, and with its
+	 * tree likelihoods timed.
+	 */
+	Result run(String name, File xml) throws Exception {
+		Randomizer.setSeed(seed);
+		MCMC mcmc = (MCMC) new XMLParser().parseFile(xml);
+
+		File trace = File.createTempFile("throughput", ".log");
+		trace.deleteOnExit();
+		File stateFile = File.createTempFile("throughput", ".state");
+		stateFile.deleteOnExit();
+		mcmc.setStateFile(stateFile.getPath(), false);
+
+		TraceCollector collector = new TraceCollector();
+		collector.initByName("value", mcmc.posteriorInput.get());
+		Logger logger = new Logger();
+		logger.initByName("fileName", trace.getPath(), "logEvery", logEvery, "log", collector);
+		mcmc.loggersInput.get().clear();
+		mcmc.loggersInput.get().add(logger);
+		mcmc.chainLengthInput.setValue(Integer.toString(chainLength), mcmc);
+		timeLikelihoods(mcmc.posteriorInput.get());
+
+		System.gc();
+		HeapSampler heap = new HeapSampler();
+		PhaseTimer.reset();
+		PhaseTimer.setEnabled(true);
+		TransitionMatrixCache.resetTotals();
+
+		heap.start();
+		long start = System.nanoTime();
+		mcmc.run();
+		long elapsed = System.nanoTime() - start;
+		long peakHeap = heap.finish();
+
+		Result result = new Result();
+		result.name = name;
+		result.samples = chainLength;
+		result.seconds = elapsed / 1e9;
+		result.likelihoodSeconds = PhaseTimer.getNanos(PhaseTimer.Phase.LIKELIHOOD) / 1e9;
+		result.substitutionModelSeconds = PhaseTimer.getNanos(PhaseTimer.Phase.SUBSTITUTION_MODEL) / 1e9;
+		result.splitMergeSeconds = PhaseTimer.getNanos(PhaseTimer.Phase.SPLIT_MERGE) / 1e9;
+		result.transitionCacheHitRate = TransitionMatrixCache.getTotalHitRate();
+		result.peakHeap = peakHeap;
+		List<Double> values = collector.getTrace();
+		// Discard 10% burn-in, as Tracer does by default.
+		values = values.subList(values.size() / 10, values.size());
+		result.ess = values.size() > 1 ? ESS.calcESS(values, 1) : 0.0;
+		return result;
+	}
+
+	/**
+	 * Generate an analysis of `characters` correlated characters with
+	 * `states` states each, on a random tree over `taxa` taxa with random
+	 * tip data, set up like examples/commented_example_2x3x4.xml.
+	 */
+	static String generateVariant(int characters, int states, int taxa, Random random) {
+		int nrOfStates = 1;
+		for (int c = 0; c < characters; ++c) {
+			nrOfStates *= states;
+		}
+		int nrOfRates = nrOfStates * characters * (states - 1);
+
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+		xml.append("<beast version='2.0' namespace='beast.core:beast.core.util:beast.evolution.alignment'>\n");
+		xml.append("<map name='prior'>beast.math.distributions.Prior</map>\n");
+		xml.append("<obj id='characters' spec='correlated.polycharacter.CompoundAlignment'>\n");
+		xml.append("<alignment id='characters1' dataType='user defined' spec='Alignment'>\n");
+		xml.append("<userDataType spec='beast.evolution.datatype.StandardData' nrOfStates='" + states + "'>\n");
+		StringBuilder codeMap = new StringBuilder();
+		StringBuilder all = new StringBuilder();
+		for (int s = 0; s < states; ++s) {
+			codeMap.append(s).append('=').append(s).append(", ");
+			all.append(s == 0 ? "" : " ").append(s);
+		}
+		codeMap.append("?=").append(all);
+		for (int c = 0; c < characters; ++c) {
+			xml.append("<charstatelabels spec='beast.evolution.datatype.UserDataType' characterName='c" + c
+					+ "' codeMap='" + codeMap + "' states='" + states + "'/>\n");
+		}
+		xml.append("</userDataType>\n");
+		for (int t = 0; t < taxa; ++t) {
+			StringBuilder value = new StringBuilder();
+			for (int c = 0; c < characters; ++c) {
+				// Make sure every state is observed, so that the sizes can be
+				// guessed from the data.
+				value.append(t < states ? t : random.nextInt(states));
+			}
+			xml.append("<sequence taxon='t" + t + "' value='" + value + "'/>\n");
+		}
+		xml.append("</alignment>\n</obj>\n");
+
+		xml.append("<obj id='frequencies' spec='beast.evolution.substitutionmodel.Frequencies' estimate='false'>\n");
+		xml.append("<parameter name='frequencies'>");
+		for (int i = 0; i < nrOfStates; ++i) {
+			xml.append(' ').append(1.0 / nrOfStates);
+		}
+		xml.append("</parameter>\n</obj>\n");
+
+		StringBuilder rawRates = new StringBuilder("1");
+		StringBuilder groupings = new StringBuilder();
+		StringBuilder sizes = new StringBuilder(Integer.toString(nrOfRates));
+		for (int i = 0; i < nrOfRates; ++i) {
+			if (i > 0) {
+				rawRates.append(" -1");
+				sizes.append(" 0");
+			}
+			groupings.append(" 0");
+		}
+		xml.append("<parameter id='rawRates' lower='0'>" + rawRates + "</parameter>\n");
+		xml.append("<parameter id='groupings' spec='beast.core.parameter.IntegerParameter'>" + groupings
+				+ "</parameter>\n");
+		xml.append("<parameter id='sizes' spec='beast.core.parameter.IntegerParameter'>" + sizes + "</parameter>\n");
+		xml.append("<obj id='rates' spec='correlated.select.Selector' parameters='@rawRates'"
+				+ " groupings='@groupings' minusOne='0'/>\n");
+		xml.append("<obj id='splitter' spec='correlated.select.splitandmerge.SplitOperator' parameters='@rawRates'"
+				+ " groupings='@groupings' sizes='@sizes' weight='3'/>\n");
+		xml.append("<obj id='merger' spec='correlated.select.splitandmerge.MergeOperator' parameters='@rawRates'"
+				+ " groupings='@groupings' sizes='@sizes' weight='3'/>\n");
+		xml.append("<obj id='heaper' spec='beast.evolution.operators.DeltaExchangeOperator' parameter='@rawRates'"
+				+ " delta='0.1' weightvector='@sizes' weight='3'/>\n");
+		xml.append("<obj id='subst' spec='correlated.polycharacter.CorrelatedSubstitutionModel' rates='@rates'"
+				+ " alignment='@characters' frequencies='@frequencies'/>\n");
+
+		xml.append("<run id='mcmc' spec='MCMC' chainLength='1' preBurnin='0'>\n");
+		xml.append("<state id='state' storeEvery='1000'>\n<stateNode idref='rawRates'/>\n"
+				+ "<stateNode idref='groupings'/>\n<stateNode idref='sizes'/>\n</state>\n");
+		xml.append("<init id='tree' spec='beast.util.TreeParser' IsLabelledNewick='true' newick='"
+				+ randomNewick(taxa, random) + "' taxa='@characters'/>\n");
+		xml.append("<operator idref='splitter'/>\n<operator idref='merger'/>\n<operator idref='heaper'/>\n");
+		xml.append("<distribution id='posterior' spec='CompoundDistribution'>\n");
+		xml.append("<distribution id='prior' spec='CompoundDistribution'>\n");
+		xml.append("<prior id='ratesPrior' name='distribution' x='@rates'>\n");
+		xml.append("<distr spec='correlated.select.helpers.RescaledDirichlet' sizes='@sizes'/>\n");
+		xml.append("</prior>\n</distribution>\n");
+		xml.append("<distribution id='likelihood' spec='CompoundDistribution'>\n");
+		xml.append("<distribution id='treelk' spec='beast.evolution.likelihood.TreeLikelihood' tree='@tree'"
+				+ " data='@characters'>\n");
+		xml.append("<siteModel spec='beast.evolution.sitemodel.SiteModel' substModel='@subst'/>\n");
+		xml.append("</distribution>\n</distribution>\n</distribution>\n</run>\n</beast>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * A random ultrametric tree, built by repeatedly joining two random
+	 * lineages.
+	 */
+	static String randomNewick(int taxa, Random random) {
+		List<String> lineages = new ArrayList<String>();
+		List<Double> heights = new ArrayList<Double>();
+		for (int t = 0; t < taxa; ++t) {
+			lineages.add("t" + t);
+			heights.add(0.0);
+		}
+		double height = 0.0;
+		while (lineages.size() > 1) {
+			int n = lineages.size();
+			height += -Math.log(random.nextDouble()) * 2.0 / (n * (n - 1));
+			int i = random.nextInt(n);
+			int j = random.nextInt(n - 1);
+			if (j >= i) {
+				++j;
+			}
+			String joined = String.format(Locale.ROOT, "(%s:%f,%s:%f)", lineages.get(i), height - heights.get(i),
+					lineages.get(j), height - heights.get(j));
+			lineages.remove(Math.max(i, j));
+			heights.remove(Math.max(i, j));
+			lineages.set(Math.min(i, j), joined);
+			heights.set(Math.min(i, j), height);
+		}
+		return lineages.get(0) + ";";
+	}
+
+	/**
+	 * Compare to the stored baseline.
+	 *
+	 * @return whether all runs stayed within the tolerances
+	 */
+	boolean check(List<Result> results, Properties stored) {
+		boolean ok = true;
+		for (Result result : results) {
+			String samplesPerSecond = stored.getProperty(result.name + ".samplesPerSecond");
+			if (samplesPerSecond != null
+					&& result.samplesPerSecond() < (1 - maxSlowdown) * Double.parseDouble(samplesPerSecond)) {
+				System.out.printf(Locale.ROOT, "REGRESSION %s: %.1f samples/s, baseline %s\n", result.name,
+						result.samplesPerSecond(), samplesPerSecond);
+				ok = false;
+			}
+			String essPerMinute = stored.getProperty(result.name + ".essPerMinute");
+			if (essPerMinute != null
+					&& result.essPerMinute() < (1 - maxEssLoss) * Double.parseDouble(essPerMinute)) {
+				System.out.printf(Locale.ROOT, "REGRESSION %s: %.1f ESS/min, baseline %s\n", result.name,
+						result.essPerMinute(), essPerMinute);
+				ok = false;
+			}
+			String peakHeap = stored.getProperty(result.name + ".peakHeap");
+			if (peakHeap != null && result.peakHeap > (1 + maxHeapGrowth) * Double.parseDouble(peakHeap)) {
+				System.out.printf(Locale.ROOT, "REGRESSION %s: peak heap %d bytes, baseline %s\n", result.name,
+						result.peakHeap, peakHeap);
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	static Properties toProperties(List<Result> results) {
+		Properties properties = new Properties();
+		for (Result result : results) {
+			properties.setProperty(result.name + ".samplesPerSecond", Double.toString(result.samplesPerSecond()));
+			properties.setProperty(result.name + ".essPerMinute", Double.toString(result.essPerMinute()));
+			properties.setProperty(result.name + ".peakHeap", Long.toString(result.peakHeap));
+		}
+		return properties;
+	}
+
+	/**
+	 * Print one line per run. The substitution model rebuilds are triggered
+	 * by the likelihoods, so subst% is part of likelihood%, and other% is what
+	 * neither the likelihoods nor the split/merge proposals account for.
+	 */
+	static void report(List<Result> results, PrintStream out) {
+		out.printf("%-40s %12s %12s %11s %9s %11s %9s %9s %10s\n", "analysis", "samples/s", "ESS/min",
+				"likelihood%", "subst%", "splitmerge%", "other%", "P(t)hit%", "peak MB");
+		for (Result result : results) {
+			double likelihood = 100 * result.likelihoodSeconds / result.seconds;
+			double subst = 100 * result.substitutionModelSeconds / result.seconds;
+			double splitMerge = 100 * result.splitMergeSeconds / result.seconds;
+			out.printf(Locale.ROOT, "%-40s %12.1f %12.1f %11.1f %9.1f %11.1f %9.1f %9.1f %10.1f\n", result.name,
+					result.samplesPerSecond(), result.essPerMinute(), likelihood, subst, splitMerge,
+					100 - likelihood - splitMerge, 100 * result.transitionCacheHitRate,
+					result.peakHeap / (1024.0 * 1024.0));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		ThroughputHarness harness = new ThroughputHarness();
+		harness.parseArguments(args);
+		Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+
+		List<Result> results = new ArrayList<Result>();
+		for (String file : harness.files) {
+			results.add(harness.run(new File(file).getName(), new File(file)));
+		}
+		for (int[] variant : harness.variants) {
+			String name = String.format("generated_%dx%d_%dtaxa", variant[0], variant[1], harness.taxa);
+			File xml = File.createTempFile(name, ".xml");
+			xml.deleteOnExit();
+			PrintWriter writer = new PrintWriter(xml, "UTF-8");
+			writer.print(generateVariant(variant[0], variant[1], harness.taxa, new Random(harness.seed)));
+			writer.close();
+			results.add(harness.run(name, xml));
+		}
+		PhaseTimer.setEnabled(false);
+
+		report(results, System.out);
+
+		if (harness.writeBaseline != null) {
+			OutputStream out = new FileOutputStream(harness.writeBaseline);
+			toProperties(results).store(out, "correlatedcharacters throughput baseline");
+			out.close();
+		}
+		if (harness.baseline != null) {
+			Properties stored = new Properties();
+			try {
+				InputStream in = new FileInputStream(harness.baseline);
+				stored.load(in);
+				in.close();
+			} catch (IOException e) {
+				System.err.println("Could not read baseline " + harness.baseline + ": " + e.getMessage());
+				System.exit(2);
+			}
+			if (!harness.check(results, stored)) {
+				System.exit(1);
+			}
+		}
+	}
+}
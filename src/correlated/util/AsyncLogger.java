@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+
+@Description("Logger that writes the same tab-separated trace as a file Logger, but formats and writes it on"
+		+ " a background thread. On the chain's thread, logging a sample only copies the values into a"
+		+ " preallocated slot. Accepts the same loggables as BinaryTraceLogger.")
+public class AsyncLogger extends Logger {
+	public Input<Integer> bufferInput = new Input<Integer>("buffer",
+			"number of samples that may wait to be written before the chain has to wait for the disk", 64);
+
+	protected BinaryTrace.Columns columns;
+	protected AsyncTextWriter writer;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		if (fileNameInput.get() == null) {
+			throw new IllegalArgumentException("AsyncLogger needs a fileName");
+		}
+		columns = new BinaryTrace.Columns();
+		for (Loggable loggable : loggerList) {
+			BinaryTraceLogger.addColumns(columns, loggable);
+		}
+	}
+
+	@Override
+	public void init() throws IOException {
+		writer = new AsyncTextWriter(columns, bufferInput.get(), new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(BinaryTraceLogger.newLogFile(fileNameInput.get())), "UTF-8")),
+				"log writer " + fileNameInput.get());
+	}
+
+	@Override
+	public void log(int sampleNr) {
+		if (sampleNr < 0 || sampleNr % every > 0) {
+			return;
+		}
+		BinaryTrace.Row row = writer.startRow(sampleNr);
+		for (Loggable loggable : loggerList) {
+			BinaryTraceLogger.logColumns(loggable, row);
+		}
+		writer.endRow();
+	}
+
+	@Override
+	public void close() {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write " + fileNameInput.get(), e);
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes rows of typed columns as a tab-separated log on a background thread.
+ *
+ * The rows are snapshots in a ring of preallocated slots: the logging thread
+ * takes a free slot, copies the values into its primitive arrays and hands it
+ * to the writer thread, which formats it, writes it and returns it to the
+ * free slots. If all slots are waiting to be written, startRow blocks until
+ * the writer thread has caught up, so a slow disk slows the chain down instead
+ * of filling the memory.
+ */
+public class AsyncTextWriter {
+	/**
+	 * The snapshot of one row.
+	 */
+	protected static class Slot implements BinaryTrace.Row {
+		long sample;
+		final double[] doubles;
+		final int[] ints;
+		final boolean[] bits;
+		int nextDouble, nextInt, nextBit;
+
+		Slot(int doubleColumns, int intColumns, int bitColumns) {
+			doubles = new double[doubleColumns];
+			ints = new int[intColumns];
+			bits = new boolean[bitColumns];
+		}
+
+		@Override
+		public void putDouble(double value) {
+			doubles[nextDouble++] = value;
+		}
+
+		@Override
+		public void putInt(int value) {
+			ints[nextInt++] = value;
+		}
+
+		@Override
+		public void putBit(boolean value) {
+			bits[nextBit++] = value;
+		}
+	}
+
+	/** Tells the writer thread that there are no more rows */
+	protected static final Slot END = new Slot(0, 0, 0);
+
+	protected final BinaryTrace.Columns columns;
+	protected final BinaryTrace.Type[] types;
+	protected final Writer out;
+	protected final BlockingQueue<Slot> free;
+	protected final BlockingQueue<Slot> filled;
+	protected final Thread thread;
+	protected Slot current;
+	protected volatile Throwable failure;
+
+	/**
+	 * Write the header, and start the writer thread.
+	 *
+	 * @param capacity
+	 *            the number of rows that can wait to be written
+	 */
+	public AsyncTextWriter(BinaryTrace.Columns columns, int capacity, Writer out, String name) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.columns = columns;
+		this.out = out;
+		types = new BinaryTrace.Type[columns.size()];
+		for (int c = 0; c < types.length; ++c) {
+			types[c] = columns.getType(c);
+		}
+		free = new ArrayBlockingQueue<Slot>(capacity);
+		filled = new ArrayBlockingQueue<Slot>(capacity + 1);
+		for (int i = 0; i < capacity; ++i) {
+			free.add(new Slot(columns.count(BinaryTrace.Type.FLOAT64), columns.count(BinaryTrace.Type.INT32),
+					columns.count(BinaryTrace.Type.BIT)));
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Take a free slot for the next row, waiting for one if necessary.
+	 *
+	 * @return the slot to put the values of the row into
+	 */
+	public BinaryTrace.Row startRow(long sample) {
+		if (failure != null) {
+			throw new RuntimeException("Writing the log failed", failure);
+		}
+		try {
+			current = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the log to be written", e);
+		}
+		current.sample = sample;
+		current.nextDouble = 0;
+		current.nextInt = 0;
+		current.nextBit = 0;
+		return current;
+	}
+
+	/**
+	 * Hand the row over to the writer thread.
+	 */
+	public void endRow() {
+		Slot slot = current;
+		current = null;
+		if (slot.nextDouble != slot.doubles.length || slot.nextInt != slot.ints.length
+				|| slot.nextBit != slot.bits.length) {
+			free.add(slot);
+			throw new IllegalStateException("Row does not match the columns: " + slot.nextDouble + " of "
+					+ slot.doubles.length + " float64, " + slot.nextInt + " of " + slot.ints.length + " int32, "
+					+ slot.nextBit + " of " + slot.bits.length + " bit values");
+		}
+		filled.add(slot);
+	}
+
+	protected void write() {
+		StringBuilder line = new StringBuilder("Sample\t");
+		for (int c = 0; c < columns.size(); ++c) {
+			line.append(columns.getName(c)).append('\t');
+		}
+		line.append('\n');
+		try {
+			out.write(line.toString());
+		} catch (Throwable e) {
+			failure = e;
+		}
+		while (true) {
+			Slot slot;
+			try {
+				slot = filled.take();
+			} catch (InterruptedException e) {
+				failure = e;
+				return;
+			}
+			if (slot == END) {
+				break;
+			}
+			if (failure == null) {
+				try {
+					line.setLength(0);
+					format(slot, line);
+					out.write(line.toString());
+					if (filled.isEmpty()) {
+						out.flush();
+					}
+				} catch (Throwable e) {
+					// Keep recycling slots, so the chain does not wait forever.
+					failure = e;
+				}
+			}
+			free.add(slot);
+		}
+		try {
+			out.flush();
+		} catch (Throwable e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+	}
+
+	protected void format(Slot slot, StringBuilder line) {
+		line.append(slot.sample).append('\t');
+		int nextDouble = 0, nextInt = 0, nextBit = 0;
+		for (BinaryTrace.Type type : types) {
+			switch (type) {
+			case FLOAT64:
+				line.append(slot.doubles[nextDouble++]);
+				break;
+			case INT32:
+				line.append(slot.ints[nextInt++]);
+				break;
+			case BIT:
+				line.append(slot.bits[nextBit++]);
+				break;
+			}
+			line.append('\t');
+		}
+		line.append('\n');
+	}
+
+	/**
+	 * Wait until all rows are written, and close the output.
+	 */
+	public void close() throws IOException {
+		filled.add(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the log to be written", e);
+		}
+		out.close();
+		if (failure != null) {
+			throw new IOException("Writing the log failed", failure);
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary columnar trace files. A trace consists of a header (magic number,
+ * format version, the index, the block size and the typed columns) followed
+ * by blocks of up to `blockRows` samples. Within a block, the sample numbers
+ * and then every column are stored contiguously: float64 and int32 columns as
+ * little-endian arrays, bit columns packed into 64-bit words.
+ *
+ * The index consists of the number of rows and bytes in complete blocks. It
+ * is rewritten after every block, so a reader sees every block written up to
+ * then even while the chain is still running or after it was killed.
+ */
+public final class BinaryTrace {
+	static final int MAGIC = 0x43435452; // "CCTR"
+	public static final int FORMAT_VERSION = 1;
+	/** Offset of the index within the header */
+	static final int INDEX_OFFSET = 8;
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	public enum Type {
+		FLOAT64, INT32, BIT
+	}
+
+	private BinaryTrace() {
+	}
+
+	/**
+	 * The typed columns of a trace, in order.
+	 */
+	public static class Columns {
+		protected final List<String> names = new ArrayList<String>();
+		protected final List<Type> types = new ArrayList<Type>();
+
+		public void add(Type type, String name) {
+			types.add(type);
+			names.add(name);
+		}
+
+		public int size() {
+			return names.size();
+		}
+
+		public String getName(int column) {
+			return names.get(column);
+		}
+
+		public Type getType(int column) {
+			return types.get(column);
+		}
+
+		int count(Type type) {
+			int count = 0;
+			for (Type t : types) {
+				if (t == type) {
+					++count;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Receives the values of one row, one put for every column, in the order
+	 * of the columns.
+	 */
+	public interface Row {
+		void putDouble(double value);
+
+		void putInt(int value);
+
+		void putBit(boolean value);
+	}
+
+	/**
+	 * Appends rows to a trace file through a memory mapping. A row is the
+	 * sample number, given to startRow, followed by one put for every column,
+	 * in the order of the columns.
+	 */
+	public static class Writer implements Row {
+		/** Size of the region mapped at once, unless a block needs more */
+		static final long MAP_CHUNK = 1L << 24;
+
+		protected final Columns columns;
+		protected final int blockRows;
+		protected final int doubleColumns;
+		protected final int intColumns;
+		protected final int bitColumns;
+		protected final int words;
+
+		protected final long[] samples;
+		protected final double[] doubles;
+		protected final int[] ints;
+		protected final long[] bits;
+		protected int rows;
+		protected int nextDouble, nextInt, nextBit;
+
+		protected final RandomAccessFile file;
+		protected final FileChannel channel;
+		protected final MappedByteBuffer index;
+		protected MappedByteBuffer region;
+		protected long regionStart;
+		protected long committedRows;
+		protected long committedBytes;
+
+		public Writer(File target, Columns columns, int blockRows) throws IOException {
+			if (blockRows < 1) {
+				throw new IllegalArgumentException("blockRows must be positive");
+			}
+			this.columns = columns;
+			this.blockRows = blockRows;
+			doubleColumns = columns.count(Type.FLOAT64);
+			intColumns = columns.count(Type.INT32);
+			bitColumns = columns.count(Type.BIT);
+			words = (blockRows + 63) / 64;
+			samples = new long[blockRows];
+			doubles = new double[doubleColumns * blockRows];
+			ints = new int[intColumns * blockRows];
+			bits = new long[bitColumns * words];
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.writeInt(MAGIC);
+			header.writeInt(FORMAT_VERSION);
+			header.writeLong(0);
+			header.writeLong(0);
+			header.writeInt(blockRows);
+			header.writeInt(columns.size());
+			for (int c = 0; c < columns.size(); ++c) {
+				header.writeByte(columns.getType(c).ordinal());
+				header.writeUTF(columns.getName(c));
+			}
+			header.close();
+			byte[] headerBytes = bytes.toByteArray();
+
+			file = new RandomAccessFile(target, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			index = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes.length);
+			index.put(headerBytes);
+			committedBytes = headerBytes.length;
+			writeIndex();
+			regionStart = committedBytes;
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(MAP_CHUNK, blockBytes()));
+			region.order(ORDER);
+		}
+
+		/** @return the size of a full block in the file */
+		long blockBytes() {
+			return 4 + 8L * blockRows + (8L * doubleColumns + 4L * intColumns) * blockRows + 8L * bitColumns * words;
+		}
+
+		protected void writeIndex() {
+			index.order(ByteOrder.BIG_ENDIAN);
+			index.putLong(INDEX_OFFSET, committedRows);
+			index.putLong(INDEX_OFFSET + 8, committedBytes);
+		}
+
+		public void startRow(long sample) {
+			samples[rows] = sample;
+			nextDouble = 0;
+			nextInt = 0;
+			nextBit = 0;
+		}
+
+		@Override
+		public void putDouble(double value) {
+			doubles[nextDouble++ * blockRows + rows] = value;
+		}
+
+		@Override
+		public void putInt(int value) {
+			ints[nextInt++ * blockRows + rows] = value;
+		}
+
+		@Override
+		public void putBit(boolean value) {
+			if (value) {
+				bits[nextBit * words + (rows >>> 6)] |= 1L << (rows & 63);
+			}
+			++nextBit;
+		}
+
+		public void endRow() throws IOException {
+			if (nextDouble != doubleColumns || nextInt != intColumns || nextBit != bitColumns) {
+				throw new IllegalStateException("Row does not match the columns: " + nextDouble + " of "
+						+ doubleColumns + " float64, " + nextInt + " of " + intColumns + " int32, " + nextBit
+						+ " of " + bitColumns + " bit values");
+			}
+			++rows;
+			if (rows == blockRows) {
+				flush();
+			}
+		}
+
+		/**
+		 * Write the rows collected so far as a block, and update the index.
+		 */
+		public void flush() throws IOException {
+			if (rows == 0) {
+				return;
+			}
+			final int rowWords = (rows + 63) / 64;
+			final long size = 4 + 8L * rows + (8L * doubleColumns + 4L * intColumns) * rows + 8L * bitColumns
+					* rowWords;
+			if (committedBytes + size > regionStart + region.capacity()) {
+				regionStart = committedBytes;
+				region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(MAP_CHUNK, size));
+				region.order(ORDER);
+			}
+			ByteBuffer out = region;
+			out.position((int) (committedBytes - regionStart));
+			out.putInt(rows);
+			out.asLongBuffer().put(samples, 0, rows);
+			out.position(out.position() + 8 * rows);
+			for (int c = 0; c < doubleColumns; ++c) {
+				out.asDoubleBuffer().put(doubles, c * blockRows, rows);
+				out.position(out.position() + 8 * rows);
+			}
+			for (int c = 0; c < intColumns; ++c) {
+				out.asIntBuffer().put(ints, c * blockRows, rows);
+				out.position(out.position() + 4 * rows);
+			}
+			for (int c = 0; c < bitColumns; ++c) {
+				out.asLongBuffer().put(bits, c * words, rowWords);
+				out.position(out.position() + 8 * rowWords);
+			}
+			Arrays.fill(bits, 0L);
+			committedRows += rows;
+			committedBytes += size;
+			rows = 0;
+			writeIndex();
+		}
+
+		public long getRowCount() {
+			return committedRows + rows;
+		}
+
+		public void close() throws IOException {
+			flush();
+			region.force();
+			index.force();
+			region = null;
+			// Drop the unused tail of the last mapped region.
+			channel.truncate(committedBytes);
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * Reads the rows of a trace file, up to the last complete block recorded
+	 * in the index.
+	 */
+	public static class Reader {
+		protected final Columns columns = new Columns();
+		protected final int[] slot;
+		protected final int[] typeCounts = new int[Type.values().length];
+		protected final ByteBuffer data;
+		protected final long rowCount;
+
+		protected int blockStart = -1;
+		protected int blockRows;
+		protected int row;
+		protected int[] columnOffsets;
+		protected int sampleOffset;
+
+		public Reader(File source) throws IOException {
+			try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+				FileChannel channel = file.getChannel();
+				ByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 24));
+				if (start.capacity() < 24 || start.getInt(0) != MAGIC) {
+					throw new IOException(source + " is not a binary trace");
+				}
+				if (start.getInt(4) != FORMAT_VERSION) {
+					throw new IOException(source + " has unsupported format version " + start.getInt(4));
+				}
+				rowCount = start.getLong(INDEX_OFFSET);
+				long bytes = start.getLong(INDEX_OFFSET + 8);
+				if (bytes > Integer.MAX_VALUE) {
+					throw new IOException(source + " is too large to be read at once");
+				}
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+			}
+			data.position(24);
+			data.getInt(); // the block size the trace was written with
+			int count = data.getInt();
+			slot = new int[count];
+			for (int c = 0; c < count; ++c) {
+				Type type = Type.values()[data.get()];
+				int length = data.getShort() & 0xffff;
+				byte[] name = new byte[length];
+				data.get(name);
+				// writeUTF only differs from UTF-8 for NUL and supplementary
+				// characters, which do not occur in BEAST IDs.
+				columns.add(type, new String(name, StandardCharsets.UTF_8));
+				slot[c] = typeCounts[type.ordinal()]++;
+			}
+			data.order(ORDER);
+			blockStart = data.position();
+			blockRows = 0;
+			row = -1;
+		}
+
+		public Columns getColumns() {
+			return columns;
+		}
+
+		public long getRowCount() {
+			return rowCount;
+		}
+
+		/**
+		 * Advance to the next row.
+		 *
+		 * @return false if there are no more rows
+		 */
+		public boolean next() {
+			++row;
+			if (row < blockRows) {
+				return true;
+			}
+			int next = blockStart + (blockRows == 0 ? 0 : blockSize(blockRows));
+			if (next >= data.limit()) {
+				return false;
+			}
+			blockStart = next;
+			blockRows = data.getInt(blockStart);
+			row = 0;
+			sampleOffset = blockStart + 4;
+			columnOffsets = new int[columns.size()];
+			int[] typeStart = new int[Type.values().length];
+			typeStart[Type.FLOAT64.ordinal()] = sampleOffset + 8 * blockRows;
+			typeStart[Type.INT32.ordinal()] = typeStart[Type.FLOAT64.ordinal()] + 8
+					* typeCounts[Type.FLOAT64.ordinal()] * blockRows;
+			typeStart[Type.BIT.ordinal()] = typeStart[Type.INT32.ordinal()] + 4 * typeCounts[Type.INT32.ordinal()]
+					* blockRows;
+			final int rowWords = (blockRows + 63) / 64;
+			for (int c = 0; c < columns.size(); ++c) {
+				switch (columns.getType(c)) {
+				case FLOAT64:
+					columnOffsets[c] = typeStart[Type.FLOAT64.ordinal()] + 8 * slot[c] * blockRows;
+					break;
+				case INT32:
+					columnOffsets[c] = typeStart[Type.INT32.ordinal()] + 4 * slot[c] * blockRows;
+					break;
+				case BIT:
+					columnOffsets[c] = typeStart[Type.BIT.ordinal()] + 8 * slot[c] * rowWords;
+					break;
+				}
+			}
+			return true;
+		}
+
+		int blockSize(int rows) {
+			return 4 + 8 * rows + (8 * typeCounts[Type.FLOAT64.ordinal()] + 4 * typeCounts[Type.INT32.ordinal()])
+					* rows + 8 * typeCounts[Type.BIT.ordinal()] * ((rows + 63) / 64);
+		}
+
+		public long getSample() {
+			return data.getLong(sampleOffset + 8 * row);
+		}
+
+		public double getDouble(int column) {
+			return data.getDouble(columnOffsets[column] + 8 * row);
+		}
+
+		public int getInt(int column) {
+			return data.getInt(columnOffsets[column] + 4 * row);
+		}
+
+		public boolean getBit(int column) {
+			return (data.getLong(columnOffsets[column] + 8 * (row >>> 6)) & (1L << (row & 63))) != 0;
+		}
+
+		/** @return the value in the given column of the current row, formatted as in a text log */
+		public String format(int column) {
+			switch (columns.getType(column)) {
+			case FLOAT64:
+				return Double.toString(getDouble(column));
+			case INT32:
+				return Integer.toString(getInt(column));
+			default:
+				return Boolean.toString(getBit(column));
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.core.Description;
+import beast.core.Function;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.Logger;
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.IntegerParameter;
+
+@Description("Logger that writes the values of its loggables into a binary columnar trace, through a memory"
+		+ " mapping, instead of formatting them as text. Loggables that implement ColumnarLoggable write"
+		+ " typed columns; other Functions are logged as one float64 column per dimension, integer parameters"
+		+ " as int32 and boolean parameters as bit columns. Use correlated.tools.BinaryTraceToText to get"
+		+ " the usual tab-separated log.")
+public class BinaryTraceLogger extends Logger {
+	public Input<Integer> blockRowsInput = new Input<Integer>("blockRows",
+			"number of samples per block; the index of the file is updated after every block", 256);
+
+	protected BinaryTrace.Columns columns;
+	protected BinaryTrace.Writer writer;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		if (fileNameInput.get() == null) {
+			throw new IllegalArgumentException("BinaryTraceLogger needs a fileName");
+		}
+		columns = new BinaryTrace.Columns();
+		for (Loggable loggable : loggerList) {
+			addColumns(columns, loggable);
+		}
+	}
+
+	/**
+	 * Add the columns of any Loggable we know how to write.
+	 */
+	static void addColumns(BinaryTrace.Columns columns, Loggable loggable) {
+		if (loggable instanceof ColumnarLoggable) {
+			((ColumnarLoggable) loggable).addColumns(columns);
+			return;
+		}
+		if (!(loggable instanceof Function)) {
+			throw new IllegalArgumentException("Cannot write " + loggable.getClass().getName()
+					+ " into a binary trace");
+		}
+		BinaryTrace.Type type = BinaryTrace.Type.FLOAT64;
+		if (loggable instanceof IntegerParameter) {
+			type = BinaryTrace.Type.INT32;
+		} else if (loggable instanceof BooleanParameter) {
+			type = BinaryTrace.Type.BIT;
+		}
+		List<String> names = headerOf(loggable);
+		if (names.size() != ((Function) loggable).getDimension()) {
+			throw new IllegalArgumentException("Cannot write " + loggable.getClass().getName()
+					+ " into a binary trace: its log has " + names.size() + " columns for "
+					+ ((Function) loggable).getDimension() + " dimensions");
+		}
+		for (String name : names) {
+			columns.add(type, name);
+		}
+	}
+
+	/**
+	 * Put the values of a Loggable accepted by addColumns.
+	 */
+	static void logColumns(Loggable loggable, BinaryTrace.Row out) {
+		if (loggable instanceof ColumnarLoggable) {
+			((ColumnarLoggable) loggable).logColumns(out);
+		} else if (loggable instanceof IntegerParameter) {
+			IntegerParameter parameter = (IntegerParameter) loggable;
+			for (int i = 0; i < parameter.getDimension(); ++i) {
+				out.putInt(parameter.getNativeValue(i));
+			}
+		} else if (loggable instanceof BooleanParameter) {
+			BooleanParameter parameter = (BooleanParameter) loggable;
+			for (int i = 0; i < parameter.getDimension(); ++i) {
+				out.putBit(parameter.getValue(i));
+			}
+		} else {
+			Function function = (Function) loggable;
+			for (int i = 0; i < function.getDimension(); ++i) {
+				out.putDouble(function.getArrayValue(i));
+			}
+		}
+	}
+
+	/**
+	 * @return the column names of the text log of a loggable
+	 */
+	static List<String> headerOf(Loggable loggable) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes);
+		loggable.init(out);
+		out.close();
+		List<String> names = new ArrayList<String>();
+		for (String name : bytes.toString().split("\t")) {
+			if (!name.trim().isEmpty()) {
+				names.add(name.trim());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @return the file to log into, if the file mode allows to create it
+	 */
+	static File newLogFile(String fileName) {
+		if (Logger.FILE_MODE == Logger.LogFileMode.resume) {
+			throw new IllegalArgumentException("Cannot resume " + fileName);
+		}
+		File file = new File(fileName);
+		if (file.exists() && Logger.FILE_MODE != Logger.LogFileMode.overwrite) {
+			throw new IllegalArgumentException("Trying to write file " + file
+					+ " but the file already exists. Use overwrite mode to replace it.");
+		}
+		return file;
+	}
+
+	@Override
+	public void init() throws IOException {
+		writer = new BinaryTrace.Writer(newLogFile(fileNameInput.get()), columns, blockRowsInput.get());
+	}
+
+	@Override
+	public void log(int sampleNr) {
+		if (sampleNr < 0 || sampleNr % every > 0) {
+			return;
+		}
+		writer.startRow(sampleNr);
+		for (Loggable loggable : loggerList) {
+			logColumns(loggable, writer);
+		}
+		try {
+			writer.endRow();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not write to " + fileNameInput.get(), e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not close " + fileNameInput.get(), e);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+/**
+ * A Loggable that can write its values into a BinaryTrace without
+ * formatting them as text. The columns should correspond to those of its text
+ * log, so that a converted trace reads like one written by a Logger.
+ */
+public interface ColumnarLoggable {
+	/**
+	 * Add the columns of this loggable. Their number must not change during
+	 * the run.
+	 */
+	void addColumns(BinaryTrace.Columns columns);
+
+	/**
+	 * Put one value for each of the columns added by addColumns, in order.
+	 */
+	void logColumns(BinaryTrace.Row out);
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import beast.core.BEASTInterface;
+import beast.core.util.Log;
+
+/**
+ * Counters and latency histograms of one BEAST object, published as an MBean
+ * named <code>correlated:type=Class,id=ID</code>, so that long runs can be
+ * watched with JConsole, VisualVM or any other JMX client.
+ *
+ * Metrics are off by default, in which case register returns null and the
+ * instrumented code pays for one null check per call. Switch them on using
+ * the system property <code>correlated.metrics=true</code> or
+ * {@link #setEnabled(boolean)}, before the objects are initialised.
+ *
+ * The MBean keeps the metrics, and everything their gauges refer to, alive
+ * until it is unregistered. Drivers that create many objects in one JVM, like
+ * CorrelationScreening, should call {@link #unregister(BEASTInterface)} when
+ * an analysis is done.
+ *
+ * Latencies go into histograms with one bucket per power of two nanoseconds,
+ * so percentiles are reported as the upper bound of their bucket, ie. they
+ * are accurate to a factor of two.
+ */
+public final class Metrics implements DynamicMBean {
+	public static final String DOMAIN = "correlated";
+	static final int BUCKETS = 64;
+
+	private static volatile boolean enabled = Boolean.getBoolean("correlated.metrics");
+	/** The metrics of every object that is registered */
+	private static final Map<BEASTInterface, Metrics> registered = new IdentityHashMap<BEASTInterface, Metrics>();
+	/** The number of objects registered so far under every name */
+	private static final Map<String, AtomicInteger> instances = new ConcurrentHashMap<String, AtomicInteger>();
+
+	protected final BEASTInterface owner;
+	protected final String type;
+	protected final String[] counterNames;
+	protected final LongAdder[] counters;
+	protected final String[] timerNames;
+	protected final LongAdder[] timerNanos;
+	protected final AtomicLongArray[] histograms;
+	protected final AtomicLong[] maxNanos;
+	protected final List<String> gaugeNames = new CopyOnWriteArrayList<String>();
+	protected final List<LongSupplier> gauges = new CopyOnWriteArrayList<LongSupplier>();
+	protected volatile long resetTime = System.nanoTime();
+	protected ObjectName name;
+
+	Metrics(BEASTInterface owner, String[] counterNames, String[] timerNames) {
+		this.owner = owner;
+		type = owner.getClass().getSimpleName();
+		this.counterNames = counterNames.clone();
+		this.timerNames = timerNames.clone();
+		counters = new LongAdder[counterNames.length];
+		for (int i = 0; i < counters.length; ++i) {
+			counters[i] = new LongAdder();
+		}
+		timerNanos = new LongAdder[timerNames.length];
+		histograms = new AtomicLongArray[timerNames.length];
+		maxNanos = new AtomicLong[timerNames.length];
+		for (int i = 0; i < timerNames.length; ++i) {
+			timerNanos[i] = new LongAdder();
+			histograms[i] = new AtomicLongArray(BUCKETS);
+			maxNanos[i] = new AtomicLong();
+		}
+	}
+
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Create the metrics of a BEAST object and register them with the
+	 * platform MBean server, replacing any the object registered before, eg.
+	 * when it is initialised again.
+	 *
+	 * @param counters
+	 *            the names of the counters, addressed by their index in count
+	 * @param timers
+	 *            the names of the timed operations, addressed by their index
+	 *            in stop
+	 * @return the metrics, or null if metrics are disabled
+	 */
+	public static Metrics register(BEASTInterface owner, String[] counters, String[] timers) {
+		if (!enabled) {
+			return null;
+		}
+		unregister(owner);
+		Metrics metrics = new Metrics(owner, counters, timers);
+		String id = owner.getID() == null ? "anonymous" : owner.getID();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String base = DOMAIN + ":type=" + metrics.type + ",id=" + ObjectName.quote(id);
+		// The same XML may be run by several chains in one JVM.
+		AtomicInteger counter = instances.computeIfAbsent(base, name -> new AtomicInteger());
+		try {
+			while (true) {
+				int instance = counter.getAndIncrement();
+				ObjectName name = new ObjectName(instance == 0 ? base : base + ",instance=" + instance);
+				try {
+					server.registerMBean(metrics, name);
+					metrics.name = name;
+					break;
+				} catch (InstanceAlreadyExistsException e) {
+					// Registered by someone else; take the next number.
+				}
+			}
+		} catch (JMException e) {
+			Log.warning.println("Could not register metrics of " + id + ": " + e.getMessage());
+			return metrics;
+		}
+		synchronized (registered) {
+			registered.put(owner, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Remove the MBean of a BEAST object, if it has one.
+	 */
+	public static void unregister(BEASTInterface owner) {
+		Metrics metrics;
+		synchronized (registered) {
+			metrics = registered.get(owner);
+		}
+		if (metrics != null) {
+			metrics.unregister();
+		}
+	}
+
+	/** Remove the MBean, eg. when the object is no longer used. */
+	public void unregister() {
+		synchronized (registered) {
+			if (registered.get(owner) == this) {
+				registered.remove(owner);
+			}
+		}
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException e) {
+				// Already gone
+			}
+			name = null;
+		}
+	}
+
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+	/** Publish a value that is counted elsewhere, eg. the hits of a cache. */
+	public void addGauge(String name, LongSupplier value) {
+		gaugeNames.add(name);
+		gauges.add(value);
+	}
+
+	public void count(int counter) {
+		counters[counter].increment();
+	}
+
+	public long getCount(int counter) {
+		return counters[counter].sum();
+	}
+
+	/**
+	 * @return a time stamp to be passed to stop
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void stop(int timer, long start) {
+		final long nanos = Math.max(1L, System.nanoTime() - start);
+		timerNanos[timer].add(nanos);
+		histograms[timer].incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+		final AtomicLong max = maxNanos[timer];
+		long previous = max.get();
+		while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+			previous = max.get();
+		}
+	}
+
+	public long getTimerCount(int timer) {
+		long count = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			count += histograms[timer].get(b);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the upper bound of the bucket containing the given quantile of
+	 *         the latencies, in microseconds, or 0 if nothing was timed yet
+	 */
+	public double getPercentileMicros(int timer, double quantile) {
+		long count = getTimerCount(timer);
+		if (count == 0) {
+			return 0.0;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			seen += histograms[timer].get(b);
+			if (seen >= rank && seen > 0) {
+				return Math.pow(2, b + 1) / 1000.0;
+			}
+		}
+		return maxNanos[timer].get() / 1000.0;
+	}
+
+	public void reset() {
+		for (LongAdder counter : counters) {
+			counter.reset();
+		}
+		for (int i = 0; i < timerNames.length; ++i) {
+			timerNanos[i].reset();
+			maxNanos[i].set(0L);
+			for (int b = 0; b < BUCKETS; ++b) {
+				histograms[i].set(b, 0L);
+			}
+		}
+		resetTime = System.nanoTime();
+	}
+
+	/**
+	 * DynamicMBean interface implementation follows *
+	 */
+
+	protected double seconds() {
+		return Math.max(1e-9, (System.nanoTime() - resetTime) / 1e9);
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		for (int i = 0; i < counterNames.length; ++i) {
+			if (attribute.equals(counterNames[i])) {
+				return getCount(i);
+			}
+			if (attribute.equals(counterNames[i] + "PerSecond")) {
+				return getCount(i) / seconds();
+			}
+		}
+		for (int i = 0; i < timerNames.length; ++i) {
+			String timer = timerNames[i];
+			if (attribute.equals(timer + "Count")) {
+				return getTimerCount(i);
+			}
+			if (attribute.equals(timer + "PerSecond")) {
+				return getTimerCount(i) / seconds();
+			}
+			if (attribute.equals(timer + "MeanMicros")) {
+				long count = getTimerCount(i);
+				return count == 0 ? 0.0 : timerNanos[i].sum() / 1000.0 / count;
+			}
+			if (attribute.equals(timer + "P50Micros")) {
+				return getPercentileMicros(i, 0.5);
+			}
+			if (attribute.equals(timer + "P95Micros")) {
+				return getPercentileMicros(i, 0.95);
+			}
+			if (attribute.equals(timer + "P99Micros")) {
+				return getPercentileMicros(i, 0.99);
+			}
+			if (attribute.equals(timer + "MaxMicros")) {
+				return maxNanos[i].get() / 1000.0;
+			}
+		}
+		for (int i = 0; i < gaugeNames.size(); ++i) {
+			if (attribute.equals(gaugeNames.get(i))) {
+				return gauges.get(i).getAsLong();
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the interface asks for
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("All metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName) && (params == null || params.length == 0)) {
+			reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String counter : counterNames) {
+			attributes.add(attribute(counter, "long", "Number of " + counter + " since the last reset"));
+			attributes.add(attribute(counter + "PerSecond", "double", "Average rate of " + counter
+					+ " since the last reset"));
+		}
+		for (String timer : timerNames) {
+			attributes.add(attribute(timer + "Count", "long", "Number of timed " + timer));
+			attributes.add(attribute(timer + "PerSecond", "double", "Average rate of " + timer));
+			attributes.add(attribute(timer + "MeanMicros", "double", "Mean latency of " + timer));
+			attributes.add(attribute(timer + "P50Micros", "double", "Median latency of " + timer));
+			attributes.add(attribute(timer + "P95Micros", "double", "95th percentile latency of " + timer));
+			attributes.add(attribute(timer + "P99Micros", "double", "99th percentile latency of " + timer));
+			attributes.add(attribute(timer + "MaxMicros", "double", "Maximum latency of " + timer));
+		}
+		for (String gauge : gaugeNames) {
+			attributes.add(attribute(gauge, "long", gauge));
+		}
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Set all counters and histograms to zero",
+				null, "void", MBeanOperationInfo.ACTION);
+		return new MBeanInfo(getClass().getName(), "Metrics of a " + type,
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+				new MBeanOperationInfo[] { reset }, null);
+	}
+
+	static MBeanAttributeInfo attribute(String name, String type, String description) {
+		return new MBeanAttributeInfo(name, type, description, true, false, false);
+	}
+}
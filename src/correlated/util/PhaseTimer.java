@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide accumulator of the wall-clock time spent in the expensive
+ * phases of this package. Timing is off by default, in which case the
+ * instrumented code pays for one volatile read per call. Switch it on using
+ * the system property <code>correlated.timing=true</code> or
+ * {@link #setEnabled(boolean)}.
+ */
+public final class PhaseTimer {
+	public enum Phase {
+		/** Rebuilding and decomposing the rate matrix of a CorrelatedSubstitutionModel */
+		SUBSTITUTION_MODEL,
+		/** Proposals of the split and merge operators */
+		SPLIT_MERGE,
+		/**
+		 * Tree likelihood calculations, including the substitution model
+		 * rebuilds they trigger. Only recorded by
+		 * correlated.tools.ThroughputHarness, which wraps the likelihoods.
+		 */
+		LIKELIHOOD
+	}
+
+	private static volatile boolean enabled = Boolean.getBoolean("correlated.timing");
+	private static final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+	private static final AtomicLongArray calls = new AtomicLongArray(Phase.values().length);
+
+	private PhaseTimer() {
+	}
+
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return a time stamp to be passed to {@link #stop(Phase, long)}, or 0 if
+	 *         timing is disabled.
+	 */
+	public static long start() {
+		if (enabled) {
+			return System.nanoTime();
+		}
+		return 0L;
+	}
+
+	public static void stop(Phase phase, long start) {
+		if (enabled && start != 0L) {
+			nanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+			calls.incrementAndGet(phase.ordinal());
+		}
+	}
+
+	public static long getNanos(Phase phase) {
+		return nanos.get(phase.ordinal());
+	}
+
+	public static long getCalls(Phase phase) {
+		return calls.get(phase.ordinal());
+	}
+
+	public static void reset() {
+		for (int i = 0; i < nanos.length(); ++i) {
+			nanos.set(i, 0L);
+			calls.set(i, 0L);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Gereon Kaiping <gereon.kaiping@soton.ac.uk>
+ *
+ * This file is part of the BEAST2 package correlatedcharacters.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package correlated.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import beast.core.util.Log;
+
+/**
+ * Binary snapshot files, which let expensive initialisation results survive
+ * a restart. A snapshot consists of a header (magic number, format version,
+ * kind, payload length), the payload, and the CRC32 of the payload.
+ *
+ * Readers get null for a missing, foreign, outdated or damaged snapshot, and
+ * are expected to fall back to a full initialisation.
+ */
+public final class Snapshot {
+	static final int MAGIC = 0x43435350; // "CCSP"
+	public static final int FORMAT_VERSION = 1;
+
+	private Snapshot() {
+	}
+
+	/**
+	 * Write a snapshot, replacing the file only once it is complete.
+	 */
+	public static void write(File file, String kind, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		File temporary = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(kind);
+			out.writeInt(payload.length);
+			out.write(payload);
+			out.writeLong(crc.getValue());
+		}
+		Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return the payload of the snapshot in `file`, or null if there is no
+	 *         valid snapshot of this kind
+	 */
+	public static DataInputStream read(File file, String kind) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+			if (in.readInt() != MAGIC) {
+				Log.warning.println(file + " is not a snapshot, ignoring it");
+				return null;
+			}
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) {
+				Log.warning.println(file + " has snapshot format " + version + " instead of " + FORMAT_VERSION
+						+ ", ignoring it");
+				return null;
+			}
+			if (!in.readUTF().equals(kind)) {
+				Log.warning.println(file + " is not a snapshot of a " + kind + ", ignoring it");
+				return null;
+			}
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if (in.readLong() != crc.getValue()) {
+				Log.warning.println(file + " is damaged (checksum mismatch), ignoring it");
+				return null;
+			}
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		} catch (IOException | RuntimeException e) {
+			Log.warning.println("Could not read snapshot " + file + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	public static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	public static double[] readDoubles(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+}
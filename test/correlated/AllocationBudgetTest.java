@@ -0,0 +1,254 @@
+package correlated;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.datatype.DataType;
+import beast.util.Randomizer;
+import correlated.polycharacter.CompoundDataType;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+import correlated.select.SelectorSet;
+import correlated.select.splitandmerge.MergeOperator;
+import correlated.select.splitandmerge.SplitOperator;
+
+/**
+ * Bytes allocated per call of the hot paths, measured with the allocation
+ * counters of the current thread after a warm-up, less those of an empty
+ * call. The budgets allow for a copy of the frequencies, which
+ * Frequencies.getFreqs may hand out, and for boxing of indices beyond the
+ * Integer cache when operators set parameter values. Scale all budgets with -Dcorrelated.allocationBudgetScale=… on
+ * slower JITs.
+ */
+public class AllocationBudgetTest extends TestCase {
+	static final Integer[][] SHAPES = { { 2, 2 }, { 2, 3, 4 }, { 3, 3, 3 } };
+	static final int WARMUP = 20000;
+	static final int CALLS = 20000;
+	static final double SCALE = Double.parseDouble(System.getProperty("correlated.allocationBudgetScale", "1"));
+	/** Budget for code that must not allocate at all; less than one object per call */
+	static final double NOTHING = 0.5;
+	/** Slack on top of exact budgets, less than the smallest array */
+	static final int SLACK = 16;
+
+	com.sun.management.ThreadMXBean threads;
+
+	@Override
+	protected void setUp() throws Exception {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			threads = (com.sun.management.ThreadMXBean) bean;
+			threads.setThreadAllocatedMemoryEnabled(true);
+		}
+	}
+
+	/**
+	 * @return the bytes allocated per call of `body`, after a warm-up,
+	 *         including what reading the counters allocates
+	 */
+	double measure(Runnable body) {
+		for (int i = 0; i < WARMUP; ++i) {
+			body.run();
+		}
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < CALLS; ++i) {
+			body.run();
+		}
+		return (threads.getThreadAllocatedBytes(thread) - before) / (double) CALLS;
+	}
+
+	/**
+	 * @return the bytes allocated per call of `body`, after a warm-up, less
+	 *         those of an empty body
+	 */
+	double bytesPerCall(Runnable body) {
+		// Reading the counter allocates, eg. its argument arrays on Java 8.
+		double baseline = measure(new Runnable() {
+			@Override
+			public void run() {
+			}
+		});
+		return measure(body) - baseline;
+	}
+
+	void assertWithinBudget(String what, double budget, Runnable body) {
+		double bytes = bytesPerCall(body);
+		assertTrue(what + " allocates " + bytes + " bytes per call, the budget is " + budget * SCALE,
+				bytes <= budget * SCALE);
+	}
+
+	static class ExposedModel extends CorrelatedSubstitutionModel {
+		void rebuild() {
+			setupRateMatrix();
+		}
+	}
+
+	static ExposedModel model(Integer[] shape) throws Exception {
+		Double[] rates = new Double[ModelFixtures.slots(shape)];
+		for (int i = 0; i < rates.length; ++i) {
+			rates[i] = 1.0 + (i % 5) / 10.0;
+		}
+		return ModelFixtures.model(new ExposedModel(), shape, rates);
+	}
+
+	public void testRebuildingTheRateMatrix() throws Exception {
+		if (threads == null) {
+			return;
+		}
+		for (Integer[] shape : SHAPES) {
+			final ExposedModel model = model(shape);
+			assertWithinBudget("setupRateMatrix for " + shape.length + " components",
+					64 + 8 * RateSlots.stateCount(shape), new Runnable() {
+						@Override
+						public void run() {
+							model.rebuild();
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return the size of a double[n], ie. a copy of the frequencies, with a
+	 *         16 byte header and rounded up to 8 bytes
+	 */
+	static int frequencyCopy(int n) {
+		return 16 + 8 * n;
+	}
+
+	public void testDepends() throws Exception {
+		if (threads == null) {
+			return;
+		}
+		for (final Integer[] shape : SHAPES) {
+			final CorrelatedSubstitutionModel model = model(shape);
+			// Any further array, eg. a boolean[stateCount], exceeds this.
+			assertWithinBudget("depends for " + shape.length + " components",
+					frequencyCopy(RateSlots.stateCount(shape)) + SLACK, new Runnable() {
+						@Override
+						public void run() {
+							model.depends(shape.length - 1, 0);
+						}
+					});
+		}
+	}
+
+	public void testSplitAndMergeProposals() throws Exception {
+		if (threads == null) {
+			return;
+		}
+		for (Integer[] shape : SHAPES) {
+			int slots = RateSlots.stateCount(shape) * RateSlots.nonzeroTransitions(shape);
+			int[] independent = RateSlots.independentGroupings(shape);
+			Double[] values = new Double[slots];
+			Integer[] indices = new Integer[slots];
+			Integer[] counts = new Integer[slots];
+			for (int i = 0; i < slots; ++i) {
+				values[i] = 1.0;
+				indices[i] = independent[i];
+				counts[i] = 0;
+			}
+			for (int i : independent) {
+				++counts[i];
+			}
+			RealParameter parameters = new RealParameter(values);
+			IntegerParameter groupings = new IntegerParameter(indices);
+			IntegerParameter sizes = new IntegerParameter(counts);
+			final State state = new State();
+			state.initByName("stateNode", parameters, "stateNode", groupings, "stateNode", sizes);
+			state.initialise();
+
+			final SplitOperator split = new SplitOperator();
+			split.initByName("parameters", parameters, "groupings", groupings, "sizes", sizes, "weight", 1.);
+			final MergeOperator merge = new MergeOperator();
+			merge.initByName("parameters", parameters, "groupings", groupings, "sizes", sizes, "weight", 1.);
+			Randomizer.setSeed(17);
+			// Every proposal is rejected, so the state stays the same.
+			final int[] sample = new int[1];
+			Runnable proposals = new Runnable() {
+				@Override
+				public void run() {
+					state.store(sample[0]++);
+					split.proposal();
+					state.restore();
+					state.store(sample[0]++);
+					merge.proposal();
+					state.restore();
+				}
+			};
+			// Setting a grouping may box an index beyond the Integer cache.
+			assertWithinBudget("split and merge for " + shape.length + " components", 256 + 16 * slots, proposals);
+		}
+	}
+
+	public void testSelectorSet() throws Exception {
+		if (threads == null) {
+			return;
+		}
+		int slots = 144;
+		Double[] values = new Double[slots];
+		Integer[] indices = new Integer[slots];
+		Integer[] counts = new Integer[slots];
+		for (int i = 0; i < slots; ++i) {
+			values[i] = 1.0 + i;
+			indices[i] = i % 12;
+			counts[i] = i < 12 ? 12 : 0;
+		}
+		final SelectorSet selector = new SelectorSet();
+		selector.initByName("parameters", new RealParameter(values), "groupings", new IntegerParameter(indices),
+				"sizes", new IntegerParameter(counts));
+		assertWithinBudget("SelectorSet values", NOTHING, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < selector.getDimension(); ++i) {
+					selector.getArrayValue(i);
+				}
+			}
+		});
+	}
+
+	public void testCompoundEncodeAndDecode() throws Exception {
+		if (threads == null) {
+			return;
+		}
+		List<List<DataType>> compounds = new ArrayList<List<DataType>>();
+		compounds.add(Arrays.asList(CompoundDataTypeTest.datatype0(), CompoundDataTypeTest.datatype1()));
+		compounds.add(Arrays.asList(CompoundDataTypeTest.datatype1(), CompoundDataTypeTest.datatype1(),
+				CompoundDataTypeTest.datatype1()));
+		compounds.add(Arrays.asList(CompoundDataTypeTest.datatype0(), CompoundDataTypeTest.datatype0(),
+				CompoundDataTypeTest.datatype1()));
+		for (List<DataType> components : compounds) {
+			Integer[] sizes = new Integer[components.size()];
+			for (int c = 0; c < sizes.length; ++c) {
+				sizes[c] = components.get(c).getStateCount();
+			}
+			final CompoundDataType compound = new CompoundDataType(components, sizes, sizes);
+			final Integer[] shape = compound.getStateCounts();
+			final int[] componentStates = new int[shape.length];
+			final boolean[] stateSet = new boolean[compound.getStateCount()];
+			assertWithinBudget("encode and decode for " + shape.length + " components", NOTHING,
+					new Runnable() {
+						@Override
+						public void run() {
+							for (int state = 0; state < compound.getStateCount(); ++state) {
+								for (int c = 0; c < shape.length; ++c) {
+									componentStates[c] = CompoundDataType.compoundState2componentState(shape,
+											state, c);
+								}
+								if (CompoundDataType.componentState2compoundState(shape, componentStates) != state) {
+									throw new AssertionError("Round trip failed for " + state);
+								}
+								compound.isAmbiguousState(state);
+								compound.getStateSet(state, stateSet);
+							}
+						}
+					});
+		}
+	}
+}
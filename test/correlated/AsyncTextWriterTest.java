@@ -0,0 +1,91 @@
+package correlated;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+import correlated.util.AsyncTextWriter;
+import correlated.util.BinaryTrace;
+
+public class AsyncTextWriterTest extends TestCase {
+	/** A writer that takes its time, so that the slots fill up. */
+	static class SlowWriter extends StringWriter {
+		@Override
+		public void write(String text) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			super.write(text);
+		}
+	}
+
+	BinaryTrace.Columns columns() {
+		BinaryTrace.Columns columns = new BinaryTrace.Columns();
+		columns.add(BinaryTrace.Type.FLOAT64, "rate0");
+		columns.add(BinaryTrace.Type.BIT, "edge");
+		columns.add(BinaryTrace.Type.INT32, "grouping0");
+		return columns;
+	}
+
+	public void testWritesAllRowsInOrder() throws Exception {
+		SlowWriter out = new SlowWriter();
+		// Far fewer slots than rows, so the chain has to wait.
+		AsyncTextWriter writer = new AsyncTextWriter(columns(), 4, out, "test");
+		int rows = 50;
+		for (int i = 0; i < rows; ++i) {
+			BinaryTrace.Row row = writer.startRow(i * 10);
+			row.putDouble(i / 4.0);
+			row.putBit(i % 2 == 0);
+			row.putInt(-i);
+			writer.endRow();
+		}
+		writer.close();
+		String[] lines = out.toString().split("\n");
+		assertEquals(rows + 1, lines.length);
+		assertEquals("Sample\trate0\tedge\tgrouping0\t", lines[0]);
+		for (int i = 0; i < rows; ++i) {
+			assertEquals((i * 10) + "\t" + (i / 4.0) + "\t" + (i % 2 == 0) + "\t" + (-i) + "\t", lines[i + 1]);
+		}
+	}
+
+	public void testRowMustMatchColumns() throws Exception {
+		AsyncTextWriter writer = new AsyncTextWriter(columns(), 2, new StringWriter(), "test");
+		writer.startRow(0).putDouble(1.0);
+		try {
+			writer.endRow();
+			fail("An incomplete row must be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.close();
+	}
+
+	public void testFailureReachesClose() throws Exception {
+		StringWriter broken = new StringWriter() {
+			@Override
+			public void write(String text) {
+				throw new RuntimeException("disk full");
+			}
+		};
+		AsyncTextWriter writer = new AsyncTextWriter(columns(), 2, broken, "test");
+		try {
+			for (int i = 0; i < 10; ++i) {
+				BinaryTrace.Row row = writer.startRow(i);
+				row.putDouble(0.0);
+				row.putBit(false);
+				row.putInt(0);
+				writer.endRow();
+			}
+		} catch (RuntimeException e) {
+			// The chain may notice before close.
+		}
+		try {
+			writer.close();
+			fail("A failed write must be reported");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package correlated;
+
+import junit.framework.TestCase;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+
+public class BatchedTransitionProbabilitiesTest extends TestCase {
+	CorrelatedSubstitutionModel model(Integer[] shape, int cacheSize, String exponential) throws Exception {
+		return ModelFixtures.model(shape, ModelFixtures.randomRates(shape, 43), "transitionCacheSize", cacheSize,
+				"exponential", exponential);
+	}
+
+	public void testBatchMatchesSingleCalls() throws Exception {
+		Integer[] shape = new Integer[] { 4, 3, 2 };
+		int n = RateSlots.stateCount(shape);
+		// Branches times rate categories, with a repeated length
+		double[] distances = new double[] { 0.01, 0.1, 0.5, 1.2, 0.1, 3.0, 0.02, 0.7, 0.33, 2.5, 0.01, 0.05 };
+		for (String exponential : new String[] { "eigen", "pade" }) {
+			for (int cacheSize : new int[] { 0, 128 }) {
+				CorrelatedSubstitutionModel model = model(shape, cacheSize, exponential);
+				double[][] batch = new double[distances.length][n * n];
+				model.getTransitionProbabilities(distances, batch);
+				double[] single = new double[n * n];
+				for (int i = 0; i < distances.length; ++i) {
+					model.getTransitionProbabilities(null, distances[i], 0.0, 1.0, single);
+					for (int j = 0; j < n * n; ++j) {
+						assertEquals(exponential + ", cache " + cacheSize, single[j], batch[i][j], 1e-12);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package correlated;
+
+import java.io.File;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+import correlated.tools.BinaryTraceToText;
+import correlated.util.BinaryTrace;
+
+public class BinaryTraceTest extends TestCase {
+	File file;
+
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("trace", ".bin");
+		file.deleteOnExit();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	BinaryTrace.Columns columns() {
+		BinaryTrace.Columns columns = new BinaryTrace.Columns();
+		columns.add(BinaryTrace.Type.FLOAT64, "rate0");
+		columns.add(BinaryTrace.Type.INT32, "grouping0");
+		columns.add(BinaryTrace.Type.BIT, "edge");
+		columns.add(BinaryTrace.Type.FLOAT64, "rate1");
+		return columns;
+	}
+
+	void writeRow(BinaryTrace.Writer writer, int i) throws Exception {
+		writer.startRow(i * 1000L);
+		writer.putDouble(i * 0.5);
+		writer.putInt(i % 7 - 1);
+		writer.putBit(i % 3 == 0);
+		writer.putDouble(-i);
+		writer.endRow();
+	}
+
+	public void testRoundTripOverSeveralBlocks() throws Exception {
+		BinaryTrace.Writer writer = new BinaryTrace.Writer(file, columns(), 64);
+		// Two full blocks and a partial one
+		int rows = 150;
+		for (int i = 0; i < rows; ++i) {
+			writeRow(writer, i);
+		}
+		writer.close();
+
+		BinaryTrace.Reader reader = new BinaryTrace.Reader(file);
+		assertEquals(rows, reader.getRowCount());
+		assertEquals(4, reader.getColumns().size());
+		assertEquals("grouping0", reader.getColumns().getName(1));
+		assertEquals(BinaryTrace.Type.BIT, reader.getColumns().getType(2));
+		for (int i = 0; i < rows; ++i) {
+			assertTrue(reader.next());
+			assertEquals(i * 1000L, reader.getSample());
+			assertEquals(i * 0.5, reader.getDouble(0));
+			assertEquals(i % 7 - 1, reader.getInt(1));
+			assertEquals(i % 3 == 0, reader.getBit(2));
+			assertEquals((double) -i, reader.getDouble(3));
+		}
+		assertFalse(reader.next());
+	}
+
+	public void testIndexOnlyCoversCompleteBlocks() throws Exception {
+		BinaryTrace.Writer writer = new BinaryTrace.Writer(file, columns(), 16);
+		for (int i = 0; i < 40; ++i) {
+			writeRow(writer, i);
+		}
+		// A reader of the running trace sees two blocks.
+		BinaryTrace.Reader reader = new BinaryTrace.Reader(file);
+		assertEquals(32, reader.getRowCount());
+		int count = 0;
+		while (reader.next()) {
+			++count;
+		}
+		assertEquals(32, count);
+		writer.close();
+		assertEquals(40, new BinaryTrace.Reader(file).getRowCount());
+	}
+
+	public void testRowMustMatchColumns() throws Exception {
+		BinaryTrace.Writer writer = new BinaryTrace.Writer(file, columns(), 16);
+		writer.startRow(0);
+		writer.putDouble(1.0);
+		try {
+			writer.endRow();
+			fail("An incomplete row must be rejected");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		writer.close();
+	}
+
+	public void testConvertToText() throws Exception {
+		BinaryTrace.Writer writer = new BinaryTrace.Writer(file, columns(), 16);
+		writeRow(writer, 0);
+		writeRow(writer, 1);
+		writer.close();
+		StringWriter out = new StringWriter();
+		BinaryTraceToText.convert(new BinaryTrace.Reader(file), out);
+		String[] lines = out.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("Sample\trate0\tgrouping0\tedge\trate1\t", lines[0]);
+		assertEquals("0\t0.0\t-1\ttrue\t0.0\t", lines[1]);
+		assertEquals("1000\t0.5\t0\tfalse\t-1.0\t", lines[2]);
+	}
+}
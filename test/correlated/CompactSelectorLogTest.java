@@ -0,0 +1,101 @@
+package correlated;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import correlated.select.CompactSelectorLog;
+import correlated.select.Selector;
+import correlated.tools.ExpandSelectorLog;
+
+public class CompactSelectorLogTest extends TestCase {
+	public void testEncoderRanksByFirstOccurrence() {
+		CompactSelectorLog.Encoder encoder = new CompactSelectorLog.Encoder();
+		int[] groups = new int[] { 3, 3, 3, -1, 0, 0, 3 };
+		assertEquals(3, encoder.rank(groups, groups.length, 4));
+		assertEquals(3, encoder.groupAt(0));
+		assertEquals(-1, encoder.groupAt(1));
+		assertEquals(0, encoder.groupAt(2));
+		assertEquals("0*3,1,2*2,0", encoder.groupings());
+		// Different groups, but the same partition
+		encoder.rank(new int[] { 1, 1, 1, 2, 0, 0, 1 }, groups.length, 4);
+		assertEquals(CompactSelectorLog.UNCHANGED, encoder.groupings());
+		encoder.rank(new int[] { 1, 1, 1, 1, 1, 1, 1 }, groups.length, 4);
+		assertEquals("0*7", encoder.groupings());
+	}
+
+	public void testDecoderRoundTrip() {
+		CompactSelectorLog.Decoder decoder = new CompactSelectorLog.Decoder();
+		double[] values = decoder.decode("0.5,1.0,2.5", "0*3,1,2*2,0");
+		assertEquals(7, values.length);
+		assertEquals(0.5, values[0]);
+		assertEquals(1.0, values[3]);
+		assertEquals(2.5, values[5]);
+		assertEquals(0.5, values[6]);
+		values = decoder.decode("0.25,4.0,2.5", CompactSelectorLog.UNCHANGED);
+		assertEquals(0.25, values[2]);
+		assertEquals(4.0, values[3]);
+	}
+
+	public void testExpand() throws Exception {
+		String log = "# comment\n"
+				+ "Sample\trates.values\trates.groupings\tposterior\t\n"
+				+ "0\t1.0\t0*3\t-10.0\t\n"
+				+ "1000\t1.5,0.5\t0,1*2\t-9.0\t\n"
+				+ "2000\t1.25,0.75\t=\t-8.0\t\n";
+		StringWriter out = new StringWriter();
+		ExpandSelectorLog.expand(new StringReader(log), out);
+		String[] lines = out.toString().split("\n");
+		assertEquals("# comment", lines[0]);
+		assertEquals("Sample\trates0\trates1\trates2\tposterior\t", lines[1]);
+		assertEquals("0\t1.0\t1.0\t1.0\t-10.0\t", lines[2]);
+		assertEquals("1000\t1.5\t0.5\t0.5\t-9.0\t", lines[3]);
+		assertEquals("2000\t1.25\t0.75\t0.75\t-8.0\t", lines[4]);
+	}
+
+	public void testTwoLoggersKeepTheirOwnGroupings() throws Exception {
+		IntegerParameter before = new IntegerParameter(new Integer[] { 0, 0, 1 });
+		IntegerParameter after = new IntegerParameter(new Integer[] { 0, 1, 1 });
+		Selector selector = new Selector();
+		selector.initByName("parameters", new RealParameter(new Double[] { 0.5, 2.0 }), "groupings", before,
+				"compact", true);
+		ByteArrayOutputStream every = new ByteArrayOutputStream();
+		ByteArrayOutputStream sparse = new ByteArrayOutputStream();
+		PrintStream everyOut = new PrintStream(every);
+		PrintStream sparseOut = new PrintStream(sparse);
+		selector.init(everyOut);
+		selector.init(sparseOut);
+		everyOut.println();
+		sparseOut.println();
+
+		// Sample 0 goes to both logs, sample 1 only to the first one, and
+		// sample 2 to both again, with the groupings of sample 1.
+		selector.log(0, everyOut);
+		selector.log(0, sparseOut);
+		everyOut.println();
+		sparseOut.println();
+		selector.groupingsInput.setValue(after, selector);
+		selector.log(1, everyOut);
+		everyOut.println();
+		selector.log(2, everyOut);
+		selector.log(2, sparseOut);
+		everyOut.println();
+		sparseOut.println();
+
+		String[] rows = sparse.toString().split("\n");
+		assertEquals(3, rows.length);
+		CompactSelectorLog.Decoder decoder = new CompactSelectorLog.Decoder();
+		String[] columns = rows[1].split("\t");
+		assertEquals(0.5, decoder.decode(columns[0], columns[1])[1], 0.0);
+		columns = rows[2].split("\t");
+		assertFalse(CompactSelectorLog.UNCHANGED.equals(columns[1]));
+		assertEquals(2.0, decoder.decode(columns[0], columns[1])[1], 0.0);
+
+		rows = every.toString().split("\n");
+		assertEquals(CompactSelectorLog.UNCHANGED, rows[3].split("\t")[1]);
+	}
+}
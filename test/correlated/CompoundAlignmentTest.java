@@ -2,7 +2,10 @@ package correlated;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import beast.evolution.alignment.Alignment;
@@ -11,6 +14,7 @@ import beast.evolution.datatype.DataType;
 import beast.evolution.datatype.StandardData;
 import correlated.polycharacter.CompoundAlignment;
 import correlated.polycharacter.CompoundDataType;
+import correlated.polycharacter.TraitMatrix;
 
 public class CompoundAlignmentTest extends TestCase {
 	static public Alignment alignment0() {
@@ -102,4 +106,60 @@ public class CompoundAlignmentTest extends TestCase {
 			}
 		}
 	}
+
+	public void testMatrixGivesSameStatesAsAlignment() throws Exception {
+		// The same data as alignment0, as a CSV file
+		File csv = File.createTempFile("matrix", ".csv");
+		csv.deleteOnExit();
+		PrintWriter out = new PrintWriter(csv);
+		out.println("taxon,a,b,c,d");
+		out.println("zer,1,0,1,1");
+		out.println("one,0,0,0,0");
+		out.println("two,0,1,0,1");
+		out.println("thr,0,1,0,1");
+		out.println("fou,1,0,0,1");
+		out.close();
+		TraitMatrix matrix = new TraitMatrix();
+		matrix.initByName("fileName", csv.getPath());
+
+		CompoundAlignment fromMatrix = new CompoundAlignment();
+		fromMatrix.initByName("matrix", matrix, "dataType", "userDataType", "userDataType", datatype0());
+		CompoundAlignment fromAlignment = new CompoundAlignment();
+		fromAlignment.initByName("alignment", alignment0(), "dataType", "userDataType", "userDataType", datatype0());
+
+		assertEquals(fromAlignment.getTaxaNames(), fromMatrix.getTaxaNames());
+		for (int taxon = 0; taxon < fromAlignment.getTaxonCount(); ++taxon) {
+			assertEquals(fromAlignment.getPattern(taxon, 0), fromMatrix.getPattern(taxon, 0));
+		}
+	}
+
+	public void testMatrixKeepsMissingDataAmbiguous() throws Exception {
+		File csv = File.createTempFile("matrix", ".csv");
+		csv.deleteOnExit();
+		PrintWriter out = new PrintWriter(csv);
+		out.println("taxon,a,b");
+		out.println("second,0,?");
+		out.println("first,?,0");
+		out.println("none,1,1");
+		out.println("all,-,?");
+		out.close();
+		TraitMatrix matrix = new TraitMatrix();
+		matrix.initByName("fileName", csv.getPath());
+
+		CompoundAlignment compound = new CompoundAlignment();
+		compound.initByName("matrix", matrix);
+		CompoundDataType dataType = (CompoundDataType) compound.getDataType();
+		assertEquals(4, dataType.getStateCount());
+
+		// Compound states (a,b) are numbered 2a+b.
+		String[] taxa = { "second", "first", "none", "all" };
+		boolean[][] expected = { { true, true, false, false }, { true, false, true, false },
+				{ false, false, false, true }, { true, true, true, true } };
+		for (int t = 0; t < taxa.length; ++t) {
+			int code = compound.getPattern(compound.getTaxonIndex(taxa[t]), 0);
+			assertEquals(taxa[t], !taxa[t].equals("none"), dataType.isAmbiguousState(code));
+			assertTrue(taxa[t] + ": " + Arrays.toString(dataType.getStateSet(code)),
+					Arrays.equals(expected[t], dataType.getStateSet(code)));
+		}
+	}
 }
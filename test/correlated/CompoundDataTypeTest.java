@@ -94,4 +94,18 @@ public class CompoundDataTypeTest extends TestCase {
 			}
 		}
 	}
+
+	public void testString2StateHonoursSplit() {
+		CompoundDataType compound = new CompoundDataType();
+		DataType d0 = datatype0();
+		DataType d1 = datatype1();
+		compound.initByName("components", d0, "components", d1, "split", "|");
+		int expected = compound.componentState2compoundState(new int[] { 1, 1 });
+		assertEquals(expected, (int) compound.string2state("C|1").get(0));
+
+		int[] states = new int[2];
+		compound.string2states(new String[] { "C|1", "A|0" }, states);
+		assertEquals(expected, states[0]);
+		assertEquals(0, states[1]);
+	}
 }
@@ -0,0 +1,125 @@
+package correlated;
+
+import junit.framework.TestCase;
+import beast.evolution.likelihood.TreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.tree.Node;
+import beast.util.TreeParser;
+import correlated.polycharacter.CompoundAlignment;
+import correlated.polycharacter.CompoundTreeLikelihood;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+
+public class CompoundTreeLikelihoodTest extends TestCase {
+	CompoundAlignment data;
+	TreeParser tree;
+	SiteModel siteModel;
+	Double[] rates;
+
+	@Override
+	protected void setUp() throws Exception {
+		data = new CompoundAlignment();
+		data.initByName("alignment", CompoundAlignmentTest.alignment0());
+		tree = new TreeParser();
+		tree.initByName("newick", "((zer:1.0,one:1.0):1.0,(two:1.5,(thr:0.5,fou:0.5):1.0):0.5);",
+				"IsLabelledNewick", true, "adjustTipHeights", false);
+
+		Integer[] shape = new Integer[] { 2, 2, 2, 2 };
+		rates = ModelFixtures.randomRates(shape, 7);
+		CorrelatedSubstitutionModel model = ModelFixtures.model(shape, rates);
+		siteModel = new SiteModel();
+		siteModel.initByName("substModel", model, "gammaCategoryCount", 4, "shape", "0.5");
+	}
+
+	public void testMatchesTreeLikelihood() throws Exception {
+		TreeLikelihood reference = new TreeLikelihood();
+		reference.initByName("data", data, "tree", tree, "siteModel", siteModel, "useAmbiguities", true);
+		double expected = reference.calculateLogP();
+
+		for (int forkThreshold : new int[] { 0, 1 << 16 }) {
+			// With a threshold of 0, every subtree is its own task.
+			CompoundTreeLikelihood likelihood = new CompoundTreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "forkThreshold",
+					forkThreshold);
+			assertEquals(expected, likelihood.calculateLogP(), 1e-9);
+			// Nothing is dirty, so nothing should change.
+			likelihood.store();
+			assertEquals(expected, likelihood.calculateLogP(), 1e-9);
+		}
+	}
+
+	double reference() throws Exception {
+		TreeLikelihood reference = new TreeLikelihood();
+		reference.initByName("data", data, "tree", tree, "siteModel", siteModel, "useAmbiguities", true);
+		return reference.calculateLogP();
+	}
+
+	public void testHeightChangesOnlyUpdateDirtyNodes() throws Exception {
+		for (int forkThreshold : new int[] { 0, 1 << 16 }) {
+			setUp();
+			CompoundTreeLikelihood likelihood = new CompoundTreeLikelihood();
+			likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "forkThreshold",
+					forkThreshold);
+			likelihood.calculateLogP();
+			Node root = tree.getRoot();
+			// (zer,one) from 1.0 to 1.3, then (thr,fou) from 0.5 to 1.2
+			Node[] nodes = { root.getLeft(), root.getRight().getRight() };
+			double[] heights = { 1.3, 1.2 };
+			for (int k = 0; k < nodes.length; ++k) {
+				// Accept the previous state, as the MCMC would.
+				likelihood.store();
+				tree.setEverythingDirty(false);
+				nodes[k].setHeight(heights[k]);
+				assertEquals("threshold " + forkThreshold + ", move " + k, reference(), likelihood.calculateLogP(),
+						1e-9);
+			}
+		}
+	}
+
+	public void testRestoreBringsBackTheStoredLikelihood() throws Exception {
+		CompoundTreeLikelihood likelihood = new CompoundTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		double before = likelihood.calculateLogP();
+		likelihood.store();
+		tree.setEverythingDirty(false);
+
+		Node node = tree.getRoot().getRight();
+		node.setHeight(1.8);
+		double after = likelihood.calculateLogP();
+		assertEquals(reference(), after, 1e-9);
+		assertTrue(before != after);
+
+		// Reject: the tree and the likelihood go back to the stored state.
+		node.setHeight(1.5);
+		likelihood.restore();
+		tree.setEverythingDirty(false);
+		assertEquals(before, likelihood.getCurrentLogP(), 0.0);
+		// Nothing is dirty, so this only uses the restored matrices and
+		// partials.
+		assertEquals(before, likelihood.calculateLogP(), 1e-12);
+		assertEquals(reference(), before, 1e-9);
+	}
+
+	public void testGradientMatchesFiniteDifferences() throws Exception {
+		CompoundTreeLikelihood likelihood = new CompoundTreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		double[] values = new double[rates.length];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = rates[i];
+		}
+		double[] gradient = new double[values.length];
+		double logLikelihood = likelihood.logLikelihoodGradient(values, gradient);
+		assertEquals(likelihood.calculateLogP(), logLikelihood, 1e-9);
+
+		double h = 1e-6;
+		double[] ignored = new double[values.length];
+		for (int i = 0; i < values.length; i += 7) {
+			double[] plus = values.clone();
+			double[] minus = values.clone();
+			plus[i] += h;
+			minus[i] -= h;
+			double expected = (likelihood.logLikelihoodGradient(plus, ignored)
+					- likelihood.logLikelihoodGradient(minus, ignored)) / (2 * h);
+			assertEquals("rate " + i, expected, gradient[i], 1e-5);
+		}
+	}
+}
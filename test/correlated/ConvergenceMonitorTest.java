@@ -0,0 +1,41 @@
+package correlated;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import correlated.mcmc.ConvergenceMonitor;
+
+public class ConvergenceMonitorTest extends TestCase {
+	public void testIndependentSamples() {
+		Random random = new Random(3);
+		double[] trace = new double[10000];
+		for (int i = 0; i < trace.length; ++i) {
+			trace[i] = random.nextGaussian();
+		}
+		double ess = ConvergenceMonitor.batchMeansESS(trace, 0, trace.length);
+		assertTrue("ESS " + ess, ess > 6000 && ess < 16000);
+		assertEquals(1.0, ConvergenceMonitor.splitRHat(trace, 0, trace.length), 0.01);
+	}
+
+	public void testAutocorrelatedSamples() {
+		// AR(1) with coefficient 0.9 has an ESS of n (1-0.9)/(1+0.9).
+		Random random = new Random(5);
+		double[] trace = new double[40000];
+		for (int i = 1; i < trace.length; ++i) {
+			trace[i] = 0.9 * trace[i - 1] + random.nextGaussian();
+		}
+		double ess = ConvergenceMonitor.batchMeansESS(trace, 0, trace.length);
+		assertTrue("ESS " + ess, ess > 1200 && ess < 3200);
+	}
+
+	public void testDriftIsNotConverged() {
+		double[] trace = new double[1000];
+		for (int i = 0; i < trace.length; ++i) {
+			trace[i] = i;
+		}
+		assertTrue(ConvergenceMonitor.splitRHat(trace, 0, trace.length) > 1.5);
+		double[] constant = new double[1024];
+		assertEquals(1024.0, ConvergenceMonitor.batchMeansESS(constant, 0, constant.length));
+		assertEquals(1.0, ConvergenceMonitor.splitRHat(constant, 0, constant.length));
+	}
+}
@@ -0,0 +1,39 @@
+package correlated;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import beast.core.Operator;
+import correlated.mcmc.Chain;
+import correlated.mcmc.CoupledChains;
+
+public class CoupledChainsTest extends TestCase {
+	/** A chain that stays at a fixed likelihood */
+	static class FixedChain extends Chain {
+		FixedChain(double logLikelihood) {
+			super(null, null, null, new ArrayList<Operator>());
+			this.logLikelihood = logLikelihood;
+		}
+	}
+
+	public void testSwapExchangesTemperaturesOnly() {
+		FixedChain cold = new FixedChain(-100.0);
+		FixedChain hot = new FixedChain(-10.0);
+		CoupledChains coupled = new CoupledChains(Arrays.<Chain> asList(cold, hot), 1.0);
+		assertEquals(1.0, cold.getBeta());
+		assertEquals(0.5, hot.getBeta());
+		assertSame(cold, coupled.getColdChain());
+
+		// The hot chain has the much better likelihood, so the swap is
+		// always accepted.
+		assertTrue(coupled.proposeSwap(0));
+		assertEquals(0.5, cold.getBeta());
+		assertEquals(1.0, hot.getBeta());
+		assertSame(hot, coupled.getColdChain());
+		assertEquals(1, coupled.getColdChainIndex());
+		assertEquals(-10.0, hot.getLogLikelihood());
+		assertEquals(1, coupled.getSwapsAccepted());
+		assertEquals(1.0, coupled.getSwapAcceptance(), 0.0);
+	}
+}
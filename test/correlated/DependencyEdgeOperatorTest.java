@@ -0,0 +1,121 @@
+package correlated;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import beast.core.State;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.util.Randomizer;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+import correlated.select.splitandmerge.DependencyEdgeOperator;
+
+public class DependencyEdgeOperatorTest extends TestCase {
+	Integer[] shape = new Integer[] { 2, 3 };
+	int slots;
+	RealParameter parameters;
+	IntegerParameter groupings;
+	IntegerParameter sizes;
+	State state;
+	DependencyEdgeOperator operator;
+
+	/**
+	 * Independent groupings, and an operator on them.
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		slots = ModelFixtures.slots(shape);
+		int[] independent = RateSlots.independentGroupings(shape);
+		Double[] m_parameters = new Double[slots];
+		Integer[] m_indices = new Integer[slots];
+		Integer[] m_sizes = new Integer[slots];
+		for (int i = 0; i < slots; ++i) {
+			m_parameters[i] = 1.0 + i;
+			m_indices[i] = independent[i];
+			m_sizes[i] = 0;
+		}
+		for (int i : independent) {
+			++m_sizes[i];
+		}
+		parameters = new RealParameter(m_parameters);
+		groupings = new IntegerParameter(m_indices);
+		sizes = new IntegerParameter(m_sizes);
+		state = new State();
+		state.initByName("stateNode", parameters, "stateNode", groupings, "stateNode", sizes);
+		state.initialise();
+
+		Double[] rates = new Double[slots];
+		for (int i = 0; i < slots; ++i) {
+			rates[i] = 1.0;
+		}
+		CorrelatedSubstitutionModel model = ModelFixtures.model(shape, rates);
+
+		operator = new DependencyEdgeOperator();
+		operator.initByName("parameters", parameters, "groupings", groupings, "sizes", sizes, "substitutionModel",
+				model, "weight", 1.);
+	}
+
+	public void testProposalsKeepGroupingsConsistent() throws Exception {
+		double total = weightedSum(parameters, sizes);
+		Randomizer.setSeed(42);
+		int changes = 0;
+		for (int sample = 0; sample < 200; ++sample) {
+			state.store(sample);
+			double logHastingsRatio = operator.proposal();
+			if (logHastingsRatio == Double.NEGATIVE_INFINITY) {
+				continue;
+			}
+			++changes;
+			int[] count = new int[slots];
+			for (int i = 0; i < slots; ++i) {
+				++count[groupings.getValue(i)];
+			}
+			for (int group = 0; group < slots; ++group) {
+				assertEquals(count[group], (int) sizes.getValue(group));
+			}
+			// Splits and merges conserve the total rate of every transition.
+			assertEquals(total, weightedSum(parameters, sizes), 1e-8 * total);
+		}
+		assertTrue(changes > 0);
+	}
+
+	public void testRemovingAnEdgeReversesAddingIt() throws Exception {
+		Integer[] independentGroupings = groupings.getValues();
+		Double[] independentRates = parameters.getValues();
+		Randomizer.setSeed(17);
+		state.store(0);
+		// Every edge is absent, so the first proposal adds one.
+		double added = operator.proposal();
+		assertTrue(added != Double.NEGATIVE_INFINITY);
+		assertFalse(Arrays.equals(independentGroupings, groupings.getValues()));
+
+		boolean removed = false;
+		for (int attempt = 1; attempt < 100 && !removed; ++attempt) {
+			state.store(attempt);
+			double logHastingsRatio = operator.proposal();
+			if (logHastingsRatio != Double.NEGATIVE_INFINITY
+					&& Arrays.equals(independentGroupings, groupings.getValues())) {
+				// The same edge, removed again
+				removed = true;
+				assertEquals(-added, logHastingsRatio, 1e-10);
+				for (int i = 0; i < slots; ++i) {
+					if (sizes.getValue(i) > 0) {
+						assertEquals(independentRates[i], parameters.getValue(i), 1e-10);
+					}
+				}
+			} else {
+				state.restore();
+			}
+		}
+		assertTrue(removed);
+	}
+
+	private double weightedSum(RealParameter parameters, IntegerParameter sizes) {
+		double sum = 0.0;
+		for (int i = 0; i < parameters.getDimension(); ++i) {
+			sum += parameters.getValue(i) * sizes.getValue(i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,148 @@
+package correlated;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+
+/**
+ * The transition probabilities of a CorrelatedSubstitutionModel must be
+ * exp(tQ), whichever way the exponential is calculated.
+ */
+public class ExponentialModesTest extends TestCase {
+	static final String[] MODES = { "auto", "eigen", "pade" };
+
+	static class ExposedModel extends CorrelatedSubstitutionModel {
+		/** The rate matrix, built without decomposing it */
+		double[][] rates() {
+			setupRateMatrix();
+			double[][] q = getRateMatrix();
+			double[][] copy = new double[q.length][];
+			for (int i = 0; i < q.length; ++i) {
+				copy[i] = q[i].clone();
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * @return exp(tQ) from its Taylor series, scaled and squared
+	 */
+	static double[][] series(double[][] q, double t) {
+		final int n = q.length;
+		final int squarings = 10;
+		double scale = t / (1 << squarings);
+		double[][] result = new double[n][n];
+		double[][] term = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			result[i][i] = 1.0;
+			term[i][i] = 1.0;
+		}
+		for (int k = 1; k <= 20; ++k) {
+			term = product(term, q);
+			for (int i = 0; i < n; ++i) {
+				for (int j = 0; j < n; ++j) {
+					term[i][j] *= scale / k;
+					result[i][j] += term[i][j];
+				}
+			}
+		}
+		for (int s = 0; s < squarings; ++s) {
+			result = product(result, result);
+		}
+		return result;
+	}
+
+	static double[][] product(double[][] a, double[][] b) {
+		final int n = a.length;
+		double[][] c = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			for (int k = 0; k < n; ++k) {
+				for (int j = 0; j < n; ++j) {
+					c[i][j] += a[i][k] * b[k][j];
+				}
+			}
+		}
+		return c;
+	}
+
+	public void testModesMatchSeries() throws Exception {
+		Integer[] shape = new Integer[] { 2, 3 };
+		int n = RateSlots.stateCount(shape);
+		// Equal rates both ways make Q symmetric under uniform frequencies, so
+		// its eigen values are real and its eigen vectors orthogonal. The
+		// model still takes the general, non-reversible route.
+		int[] targets = RateSlots.targets(shape);
+		int nonzero = RateSlots.nonzeroTransitions(shape);
+		Double[] rates = new Double[targets.length];
+		for (int slot = 0; slot < targets.length; ++slot) {
+			int from = slot / nonzero;
+			int to = targets[slot];
+			rates[slot] = 0.2 + new Random(Math.min(from, to) * n + Math.max(from, to)).nextDouble();
+		}
+		double[][] q = ModelFixtures.model(new ExposedModel(), shape, rates).rates();
+
+		for (String mode : MODES) {
+			CorrelatedSubstitutionModel model = ModelFixtures.model(shape, rates, "exponential", mode,
+					"transitionCacheSize", 0);
+			// Q is well conditioned, so auto must trust its eigen decomposition.
+			assertEquals(mode, "pade".equals(mode), model.usesPade());
+			double[] matrix = new double[n * n];
+			for (double t : new double[] { 0.05, 0.4, 1.5 }) {
+				model.getTransitionProbabilities(null, t, 0.0, 1.0, matrix);
+				double[][] expected = series(q, t);
+				for (int i = 0; i < n; ++i) {
+					for (int j = 0; j < n; ++j) {
+						assertEquals(mode + ", t=" + t + ", entry " + i + "," + j, expected[i][j],
+								matrix[i * n + j], 1e-10);
+					}
+				}
+			}
+		}
+	}
+
+	public void testReversibleModelMatchesFullRates() throws Exception {
+		Integer[] shape = new Integer[] { 2, 3 };
+		int n = RateSlots.stateCount(shape);
+		Double[] freqs = new Double[n];
+		for (int i = 0; i < n; ++i) {
+			// 1/21, 2/21, …, 6/21
+			freqs[i] = (i + 1) / (n * (n + 1) / 2.0);
+		}
+		int[] indices = RateSlots.reversibleRateIndices(shape);
+		Double[] reduced = ModelFixtures.randomRates(shape, 11);
+		reduced = Arrays.copyOf(reduced, reduced.length / 2);
+		Double[] full = new Double[indices.length];
+		for (int slot = 0; slot < indices.length; ++slot) {
+			full[slot] = reduced[indices[slot]];
+		}
+
+		try {
+			ModelFixtures.model(new CorrelatedSubstitutionModel(), shape, full, ModelFixtures.frequencies(freqs),
+					"reversible", true);
+			fail("A reversible model must take half as many rates");
+		} catch (RuntimeException e) {
+			// expected
+		}
+
+		// Q is not symmetric, so this exercises the Π^½ symmetrisation and
+		// the back-transformation.
+		double[][] q = ModelFixtures.model(new ExposedModel(), shape, full, ModelFixtures.frequencies(freqs))
+				.rates();
+		CorrelatedSubstitutionModel reversible = ModelFixtures.model(new CorrelatedSubstitutionModel(), shape,
+				reduced, ModelFixtures.frequencies(freqs), "reversible", true, "transitionCacheSize", 0);
+		assertTrue(reversible.isReversible());
+		double[] matrix = new double[n * n];
+		for (double t : new double[] { 0.05, 0.4, 1.5 }) {
+			reversible.getTransitionProbabilities(null, t, 0.0, 1.0, matrix);
+			double[][] expected = series(q, t);
+			for (int i = 0; i < n; ++i) {
+				for (int j = 0; j < n; ++j) {
+					assertEquals("t=" + t + ", entry " + i + "," + j, expected[i][j], matrix[i * n + j], 1e-10);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package correlated;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.MatrixStorage;
+import correlated.polycharacter.RateSlots;
+import correlated.polycharacter.SymmetricEigenSystem;
+import correlated.polycharacter.TransitionKernels;
+import correlated.polycharacter.TransitionMatrixCache;
+
+public class MatrixStorageTest extends TestCase {
+	static final String[] MODES = { MatrixStorage.DOUBLE, MatrixStorage.FLOAT, MatrixStorage.OFFHEAP };
+
+	public void testRoundTrip() {
+		double[] values = new double[] { 0.0, 1.0, -0.5, Math.PI, 1e-30 };
+		for (String mode : MODES) {
+			MatrixStorage storage = MatrixStorage.allocate(mode, values.length);
+			storage.copyFrom(values);
+			double[] back = storage.toArray();
+			for (int i = 0; i < values.length; ++i) {
+				double tolerance = mode.equals(MatrixStorage.DOUBLE) ? 0.0 : 1e-7 * Math.abs(values[i]);
+				assertEquals(mode, values[i], back[i], tolerance);
+			}
+		}
+	}
+
+	public void testUnknownMode() {
+		try {
+			MatrixStorage.allocate("half", 4);
+			fail("Unknown storage modes must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	/** A symmetric rate matrix with rows summing to zero */
+	static double[][] randomRateMatrix(Random random, int n) {
+		double[][] q = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = i + 1; j < n; ++j) {
+				q[i][j] = q[j][i] = random.nextDouble() / n;
+			}
+		}
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				if (i != j) {
+					q[i][i] -= q[i][j];
+				}
+			}
+		}
+		return q;
+	}
+
+	public void testCompactKernelAgreesWithDouble() {
+		int n = TransitionKernels.BLOCK + 5;
+		EigenDecomposition decomposition = new SymmetricEigenSystem().decomposeMatrix(randomRateMatrix(
+				new Random(31), n));
+		double[] expected = new double[n * n];
+		TransitionKernels.transitionProbabilities(decomposition.getEigenVectors(), decomposition.getEigenValues(),
+				decomposition.getInverseEigenVectors(), n, 0.7, new double[n * n], expected);
+		for (String mode : MODES) {
+			MatrixStorage vectors = MatrixStorage.allocate(mode, n * n);
+			MatrixStorage inverse = MatrixStorage.allocate(mode, n * n);
+			vectors.copyFrom(decomposition.getEigenVectors());
+			inverse.copyFrom(decomposition.getInverseEigenVectors());
+			double[] matrix = new double[n * n];
+			TransitionKernels.transitionProbabilities(vectors, decomposition.getEigenValues(), inverse, n, 0.7,
+					new double[n * n], matrix);
+			for (int i = 0; i < n; ++i) {
+				double rowSum = 0.0;
+				for (int j = 0; j < n; ++j) {
+					assertEquals(mode, expected[i * n + j], matrix[i * n + j], 1e-5);
+					rowSum += matrix[i * n + j];
+				}
+				assertEquals(mode, 1.0, rowSum, 1e-5);
+			}
+		}
+	}
+
+	public void testFloatCache() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4, MatrixStorage.FLOAT);
+		cache.invalidate();
+		double[] matrix = new double[] { 0.9, 0.1, 0.2, 0.8 };
+		cache.put(cache.getVersion(), 0.5, matrix);
+		double[] back = new double[4];
+		assertTrue(cache.get(0.5, back));
+		for (int i = 0; i < 4; ++i) {
+			assertEquals(matrix[i], back[i], 1e-7);
+		}
+	}
+
+	public void testModelStorageModesAgree() throws Exception {
+		Integer[] shape = new Integer[] { 3, 4 };
+		int nrOfStates = RateSlots.stateCount(shape);
+		Double[] rates = ModelFixtures.randomRates(shape, 37);
+
+		double[][] results = new double[MODES.length][nrOfStates * nrOfStates];
+		for (int m = 0; m < MODES.length; ++m) {
+			// Padé approximants would bypass the eigen vector storage.
+			CorrelatedSubstitutionModel model = ModelFixtures.model(shape, rates, "storage", MODES[m],
+					"exponential", "eigen");
+			assertFalse(MODES[m], model.usesPade());
+			model.getTransitionProbabilities(null, 0.4, 0.0, 1.0, results[m]);
+			// A second call is answered from the cache.
+			model.getTransitionProbabilities(null, 0.4, 0.0, 1.0, results[m]);
+		}
+		for (int m = 1; m < MODES.length; ++m) {
+			for (int i = 0; i < results[0].length; ++i) {
+				assertEquals(MODES[m], results[0][i], results[m][i], 1e-5);
+			}
+		}
+	}
+}
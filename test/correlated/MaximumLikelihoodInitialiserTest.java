@@ -0,0 +1,60 @@
+package correlated;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import correlated.polycharacter.RateSlots;
+import correlated.select.MaximumLikelihoodInitialiser;
+
+public class MaximumLikelihoodInitialiserTest extends TestCase {
+	public void testCandidateSplitsOfIndependentGroup() {
+		Integer[] shape = new Integer[] { 2, 3 };
+		int[] groupings = RateSlots.independentGroupings(shape);
+		// Group 0 is component 0 changing from 0 to 1, in the three states
+		// where component 1 has value 0, 1 or 2.
+		int size = 0;
+		for (int group : groupings) {
+			if (group == 0) {
+				++size;
+			}
+		}
+		assertEquals(3, size);
+		List<int[]> candidates = MaximumLikelihoodInitialiser.candidateSplits(shape, groupings, 0);
+		// Splitting by component 0 is trivial, by component 1 there are three
+		// ways.
+		assertEquals(3, candidates.size());
+		for (int[] candidate : candidates) {
+			assertEquals(1, candidate.length);
+			assertEquals(0, groupings[candidate[0]]);
+		}
+	}
+
+	public void testNoCandidatesForSingleSlot() {
+		Integer[] shape = new Integer[] { 2, 2 };
+		int[] groupings = new int[RateSlots.stateCount(shape) * RateSlots.nonzeroTransitions(shape)];
+		for (int s = 0; s < groupings.length; ++s) {
+			groupings[s] = s;
+		}
+		assertTrue(MaximumLikelihoodInitialiser.candidateSplits(shape, groupings, 5).isEmpty());
+	}
+
+	public void testFixedSlotsAreNeverSplit() {
+		Integer[] shape = new Integer[] { 2, 3 };
+		int[] groupings = RateSlots.independentGroupings(shape);
+		int fixed = -1;
+		for (int s = 0; s < groupings.length; ++s) {
+			if (groupings[s] == 0) {
+				fixed = s;
+				break;
+			}
+		}
+		// One of the three slots of group 0 gets the Selector's fixed rate.
+		groupings[fixed] = -1;
+		List<int[]> candidates = MaximumLikelihoodInitialiser.candidateSplits(shape, groupings, 0);
+		assertEquals(2, candidates.size());
+		for (int[] candidate : candidates) {
+			assertEquals(1, candidate.length);
+			assertFalse(candidate[0] == fixed);
+		}
+	}
+}
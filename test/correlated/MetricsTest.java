@@ -0,0 +1,111 @@
+package correlated;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import beast.core.parameter.RealParameter;
+import correlated.util.Metrics;
+
+public class MetricsTest extends TestCase {
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	boolean wasEnabled;
+
+	@Override
+	protected void setUp() {
+		wasEnabled = Metrics.isEnabled();
+	}
+
+	@Override
+	protected void tearDown() {
+		Metrics.setEnabled(wasEnabled);
+	}
+
+	RealParameter owner(String id) {
+		RealParameter owner = new RealParameter("1.0");
+		owner.setID(id);
+		return owner;
+	}
+
+	public void testDisabledMetricsAreNull() {
+		Metrics.setEnabled(false);
+		assertNull(Metrics.register(owner("off"), new String[] { "a" }, new String[] { "b" }));
+	}
+
+	public void testCountersAndTimersArePublished() throws Exception {
+		Metrics.setEnabled(true);
+		Metrics metrics = Metrics.register(owner("published"), new String[] { "reads" },
+				new String[] { "calls" });
+		try {
+			ObjectName name = metrics.getObjectName();
+			assertEquals(new ObjectName("correlated:type=RealParameter,id=\"published\""), name);
+			metrics.count(0);
+			metrics.count(0);
+			for (int i = 0; i < 10; ++i) {
+				metrics.stop(0, metrics.start());
+			}
+			metrics.addGauge("answer", () -> 42L);
+			assertEquals(2L, server.getAttribute(name, "reads"));
+			assertEquals(10L, server.getAttribute(name, "callsCount"));
+			assertEquals(42L, server.getAttribute(name, "answer"));
+			double p50 = (Double) server.getAttribute(name, "callsP50Micros");
+			double p99 = (Double) server.getAttribute(name, "callsP99Micros");
+			assertTrue(p50 > 0.0);
+			assertTrue(p50 <= p99);
+
+			server.invoke(name, "reset", null, null);
+			assertEquals(0L, server.getAttribute(name, "reads"));
+			assertEquals(0L, server.getAttribute(name, "callsCount"));
+			assertEquals(0.0, metrics.getPercentileMicros(0, 0.5));
+		} finally {
+			metrics.unregister();
+		}
+		assertNull(metrics.getObjectName());
+	}
+
+	public void testPercentilesAreBucketBounds() {
+		Metrics.setEnabled(true);
+		Metrics metrics = Metrics.register(owner("buckets"), new String[0], new String[] { "calls" });
+		try {
+			// A start time far in the past, so the latency is at least a second.
+			metrics.stop(0, System.nanoTime() - 1000000000L);
+			double p50 = metrics.getPercentileMicros(0, 0.5);
+			assertTrue(p50 >= 1e6);
+			assertTrue(p50 <= 2 * 1.1e6);
+		} finally {
+			metrics.unregister();
+		}
+	}
+
+	public void testDuplicateIdsGetInstanceNumbers() {
+		Metrics.setEnabled(true);
+		Metrics first = Metrics.register(owner("twice"), new String[0], new String[0]);
+		Metrics second = Metrics.register(owner("twice"), new String[0], new String[0]);
+		try {
+			assertFalse(first.getObjectName().equals(second.getObjectName()));
+			assertNull(first.getObjectName().getKeyProperty("instance"));
+			assertEquals("1", second.getObjectName().getKeyProperty("instance"));
+		} finally {
+			first.unregister();
+			second.unregister();
+		}
+	}
+
+	public void testRegisteringAgainReplacesTheMBean() throws Exception {
+		Metrics.setEnabled(true);
+		RealParameter owner = owner("again");
+		Metrics first = Metrics.register(owner, new String[0], new String[0]);
+		ObjectName name = first.getObjectName();
+		Metrics second = Metrics.register(owner, new String[0], new String[0]);
+		assertNull(first.getObjectName());
+		assertFalse(server.isRegistered(name));
+		ObjectName secondName = second.getObjectName();
+		assertTrue(server.isRegistered(secondName));
+
+		Metrics.unregister(owner);
+		assertNull(second.getObjectName());
+		assertFalse(server.isRegistered(secondName));
+	}
+}
@@ -0,0 +1,73 @@
+package correlated;
+
+import java.util.Random;
+
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.substitutionmodel.Frequencies;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+
+/**
+ * Correlated substitution models with uniform frequencies, shared by the tests.
+ */
+public class ModelFixtures {
+	/**
+	 * @return one rate per slot of the shape, uniform in [0.1, 1.1)
+	 */
+	static Double[] randomRates(Integer[] shape, long seed) {
+		Random random = new Random(seed);
+		Double[] rates = new Double[slots(shape)];
+		for (int i = 0; i < rates.length; ++i) {
+			rates[i] = 0.1 + random.nextDouble();
+		}
+		return rates;
+	}
+
+	static int slots(Integer[] shape) {
+		return RateSlots.stateCount(shape) * RateSlots.nonzeroTransitions(shape);
+	}
+
+	static Frequencies uniformFrequencies(int nrOfStates) throws Exception {
+		Double[] freqs = new Double[nrOfStates];
+		for (int i = 0; i < nrOfStates; ++i) {
+			freqs[i] = 1.0 / nrOfStates;
+		}
+		return frequencies(freqs);
+	}
+
+	static Frequencies frequencies(Double[] freqs) throws Exception {
+		Frequencies frequencies = new Frequencies();
+		frequencies.initByName("frequencies", new RealParameter(freqs), "estimate", false);
+		return frequencies;
+	}
+
+	static CorrelatedSubstitutionModel model(Integer[] shape, Double[] rates, Object... inputs) throws Exception {
+		return model(new CorrelatedSubstitutionModel(), shape, rates, inputs);
+	}
+
+	/**
+	 * Initialise a model with uniform frequencies.
+	 *
+	 * @param inputs
+	 *            further names and values of inputs, eg. "exponential", "pade"
+	 */
+	static <M extends CorrelatedSubstitutionModel> M model(M model, Integer[] shape, Double[] rates,
+			Object... inputs) throws Exception {
+		return model(model, shape, rates, uniformFrequencies(RateSlots.stateCount(shape)), inputs);
+	}
+
+	static <M extends CorrelatedSubstitutionModel> M model(M model, Integer[] shape, Double[] rates,
+			Frequencies frequencies, Object... inputs) throws Exception {
+		Object[] all = new Object[6 + inputs.length];
+		all[0] = "rates";
+		all[1] = new RealParameter(rates);
+		all[2] = "frequencies";
+		all[3] = frequencies;
+		all[4] = "shape";
+		all[5] = new IntegerParameter(shape);
+		System.arraycopy(inputs, 0, all, 6, inputs.length);
+		model.initByName(all);
+		return model;
+	}
+}
@@ -0,0 +1,64 @@
+package correlated;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import correlated.polycharacter.PadeExponential;
+import correlated.polycharacter.SymmetricEigenSystem;
+import correlated.polycharacter.TransitionKernels;
+
+public class PadeExponentialTest extends TestCase {
+	public void testDefectiveMatrix() {
+		// 0 → 1 → 2 at rate 1: the eigen value -1 has only one eigen vector.
+		double[][] q = new double[][] { { -1, 1, 0 }, { 0, -1, 1 }, { 0, 0, 0 } };
+		PadeExponential pade = new PadeExponential(q);
+		double[] matrix = new double[9];
+		for (double t : new double[] { 0.0, 0.001, 0.3, 2.0, 50.0 }) {
+			pade.exp(t, new PadeExponential.Workspace(3), matrix);
+			double e = Math.exp(-t);
+			double[] expected = new double[] { e, t * e, 1 - e - t * e, 0, e, 1 - e, 0, 0, 1 };
+			for (int i = 0; i < 9; ++i) {
+				assertEquals("t=" + t + ", entry " + i, expected[i], matrix[i], 1e-12);
+			}
+		}
+	}
+
+	public void testAgreesWithEigenRoute() {
+		int n = 24;
+		Random random = new Random(41);
+		double[][] q = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = i + 1; j < n; ++j) {
+				q[i][j] = q[j][i] = random.nextDouble();
+			}
+		}
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				if (i != j) {
+					q[i][i] -= q[i][j];
+				}
+			}
+		}
+		EigenDecomposition decomposition = new SymmetricEigenSystem().decomposeMatrix(q);
+		PadeExponential pade = new PadeExponential(q);
+		PadeExponential.Workspace workspace = new PadeExponential.Workspace(n);
+		double[] expected = new double[n * n];
+		double[] matrix = new double[n * n];
+		// From the lowest degree without scaling to many squarings
+		for (double t : new double[] { 1e-5, 0.005, 0.02, 0.07, 0.1, 1.0, 10.0 }) {
+			TransitionKernels.transitionProbabilities(decomposition.getEigenVectors(),
+					decomposition.getEigenValues(), decomposition.getInverseEigenVectors(), n, t, new double[n * n],
+					expected);
+			pade.exp(t, workspace, matrix);
+			for (int i = 0; i < n; ++i) {
+				double rowSum = 0.0;
+				for (int j = 0; j < n; ++j) {
+					assertEquals("t=" + t, expected[i * n + j], matrix[i * n + j], 1e-10);
+					rowSum += matrix[i * n + j];
+				}
+				assertEquals(1.0, rowSum, 1e-10);
+			}
+		}
+	}
+}
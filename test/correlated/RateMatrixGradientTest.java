@@ -0,0 +1,71 @@
+package correlated;
+
+import junit.framework.TestCase;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import correlated.polycharacter.PadeExponential;
+import correlated.polycharacter.RateMatrixGradient;
+import correlated.polycharacter.TransitionKernels;
+
+public class RateMatrixGradientTest extends TestCase {
+	static final int N = 3;
+	// Q = U·Λ·U⁻¹ with a triangular U, so the decomposition is known exactly
+	static final double[] U = { 1, 1, 0, 0, 1, 1, 0, 0, 1 };
+	static final double[] U_INVERSE = { 1, -1, 1, 0, 1, -1, 0, 0, 1 };
+	static final double[] LAMBDA = { 0.0, -1.0, -2.5 };
+	static final double[] G = { 0.3, -1.2, 0.5, 2.0, 0.1, -0.4, 0.7, 0.9, -1.5 };
+
+	static double[][] rateMatrix() {
+		double[] scaled = new double[N * N];
+		for (int k = 0; k < N; ++k) {
+			for (int j = 0; j < N; ++j) {
+				scaled[k * N + j] = LAMBDA[k] * U_INVERSE[k * N + j];
+			}
+		}
+		double[] flat = new double[N * N];
+		TransitionKernels.multiply(U, scaled, N, flat);
+		double[][] q = new double[N][N];
+		for (int i = 0; i < N; ++i) {
+			System.arraycopy(flat, i * N, q[i], 0, N);
+		}
+		return q;
+	}
+
+	/** ⟨G, exp(tQ)⟩ */
+	static double objective(double[][] q, double t) {
+		double[] p = new double[N * N];
+		new PadeExponential(q).expSigned(t, new PadeExponential.Workspace(N), p);
+		double sum = 0.0;
+		for (int u = 0; u < N * N; ++u) {
+			sum += G[u] * p[u];
+		}
+		return sum;
+	}
+
+	void checkAgainstFiniteDifferences(RateMatrixGradient system) {
+		double t = 0.7;
+		double[][] q = rateMatrix();
+		double[] gradient = new double[N * N];
+		system.addGradient(t, G, gradient);
+		double h = 1e-6;
+		for (int i = 0; i < N; ++i) {
+			for (int j = 0; j < N; ++j) {
+				double[][] plus = rateMatrix();
+				double[][] minus = rateMatrix();
+				plus[i][j] += h;
+				minus[i][j] -= h;
+				double expected = (objective(plus, t) - objective(minus, t)) / (2 * h);
+				assertEquals("dQ[" + i + "][" + j + "]", expected, gradient[i * N + j], 1e-6);
+			}
+		}
+		assertTrue(objective(q, t) != 0.0);
+	}
+
+	public void testEigenGradient() {
+		checkAgainstFiniteDifferences(new RateMatrixGradient(rateMatrix(),
+				new EigenDecomposition(U.clone(), U_INVERSE.clone(), LAMBDA.clone())));
+	}
+
+	public void testPadeGradient() {
+		checkAgainstFiniteDifferences(new RateMatrixGradient(rateMatrix(), null));
+	}
+}
@@ -0,0 +1,63 @@
+package correlated;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import correlated.polycharacter.CompoundDataType;
+import correlated.polycharacter.RateSlots;
+import correlated.polycharacter.SymmetricEigenSystem;
+
+public class ReversibleRatesTest extends TestCase {
+
+	public void testReverseSlotsShareRates() {
+		Integer[] shape = new Integer[] { 2, 3 };
+		int[] indices = RateSlots.reversibleRateIndices(shape);
+		int nrOfStates = RateSlots.stateCount(shape);
+		int[] uses = new int[indices.length / 2];
+		for (int from = 0; from < nrOfStates; ++from) {
+			int[] fromValues = CompoundDataType.compoundState2componentStates(shape, from);
+			for (int c = 0; c < shape.length; ++c) {
+				for (int to = 0; to < shape[c]; ++to) {
+					if (to != fromValues[c]) {
+						int[] toValues = fromValues.clone();
+						toValues[c] = to;
+						int target = CompoundDataType.componentState2compoundState(shape, toValues);
+						int forward = RateSlots.slot(shape, from, c, to);
+						int backward = RateSlots.slot(shape, target, c, fromValues[c]);
+						assertEquals(indices[forward], indices[backward]);
+						++uses[indices[forward]];
+					}
+				}
+			}
+		}
+		for (int use : uses) {
+			assertEquals(2, use);
+		}
+	}
+
+	public void testSymmetricDecompositionReconstructsMatrix() {
+		int n = 7;
+		Random random = new Random(5);
+		double[][] matrix = new double[n][n];
+		for (int i = 0; i < n; ++i) {
+			for (int j = i; j < n; ++j) {
+				matrix[i][j] = random.nextDouble() - 0.5;
+				matrix[j][i] = matrix[i][j];
+			}
+		}
+		EigenDecomposition decomposition = new SymmetricEigenSystem().decomposeMatrix(matrix);
+		double[] vectors = decomposition.getEigenVectors();
+		double[] inverse = decomposition.getInverseEigenVectors();
+		double[] values = decomposition.getEigenValues();
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				double sum = 0.0;
+				for (int k = 0; k < n; ++k) {
+					sum += vectors[i * n + k] * values[k] * inverse[k * n + j];
+				}
+				assertEquals(matrix[i][j], sum, 1e-12);
+			}
+		}
+	}
+}
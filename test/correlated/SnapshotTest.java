@@ -0,0 +1,90 @@
+package correlated;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+import beast.evolution.substitutionmodel.EigenDecomposition;
+import correlated.polycharacter.CorrelatedSubstitutionModel;
+import correlated.polycharacter.RateSlots;
+import correlated.util.Snapshot;
+
+public class SnapshotTest extends TestCase {
+
+	public void testRoundTrip() throws Exception {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		Snapshot.write(file, "test", new byte[] { 1, 2, 3 });
+		DataInputStream in = Snapshot.read(file, "test");
+		assertNotNull(in);
+		assertEquals(1, in.readByte());
+		assertEquals(2, in.readByte());
+		assertEquals(3, in.readByte());
+	}
+
+	public void testWrongKindIsIgnored() throws Exception {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		Snapshot.write(file, "test", new byte[] { 1, 2, 3 });
+		assertNull(Snapshot.read(file, "other"));
+	}
+
+	public void testDamagedSnapshotIsIgnored() throws Exception {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		Snapshot.write(file, "test", new byte[] { 1, 2, 3 });
+		RandomAccessFile raw = new RandomAccessFile(file, "rw");
+		// Flip a payload byte, just before the checksum
+		raw.seek(raw.length() - 9);
+		raw.writeByte(7);
+		raw.close();
+		assertNull(Snapshot.read(file, "test"));
+	}
+
+	static class CountingModel extends CorrelatedSubstitutionModel {
+		int decompositions = 0;
+
+		@Override
+		protected EigenDecomposition decompose(double[][] matrix) {
+			++decompositions;
+			return super.decompose(matrix);
+		}
+	}
+
+	public void testModelStartsFromSnapshot() throws Exception {
+		File snapshot = File.createTempFile("model", ".snapshot");
+		snapshot.delete();
+		snapshot.deleteOnExit();
+		File stateFile = File.createTempFile("model", ".state");
+		stateFile.deleteOnExit();
+		Integer[] shape = new Integer[] { 2, 3 };
+		int n = RateSlots.stateCount(shape);
+		Double[] rates = ModelFixtures.randomRates(shape, 5);
+
+		// The first start decomposes, and keeps the result for the next one.
+		CountingModel first = ModelFixtures.model(new CountingModel(), shape, rates, "exponential", "eigen",
+				"snapshot", snapshot.getPath(), "stateFile", stateFile.getPath());
+		double[] expected = new double[n * n];
+		first.getTransitionProbabilities(null, 0.7, 0.0, 1.0, expected);
+		assertEquals(1, first.decompositions);
+		assertTrue(snapshot.isFile());
+
+		CountingModel second = ModelFixtures.model(new CountingModel(), shape, rates, "exponential", "eigen",
+				"snapshot", snapshot.getPath());
+		double[] matrix = new double[n * n];
+		second.getTransitionProbabilities(null, 0.7, 0.0, 1.0, matrix);
+		assertEquals(0, second.decompositions);
+		for (int i = 0; i < n * n; ++i) {
+			assertEquals(expected[i], matrix[i], 1e-15);
+		}
+
+		// Writing the state file makes the next store write the snapshot.
+		assertTrue(snapshot.delete());
+		first.store();
+		assertFalse(snapshot.isFile());
+		assertTrue(stateFile.setLastModified(stateFile.lastModified() - 10000));
+		first.store();
+		assertTrue(snapshot.isFile());
+	}
+}
@@ -0,0 +1,41 @@
+package correlated;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import correlated.mcmc.Chain;
+import correlated.mcmc.SteppingStone;
+import correlated.mcmc.SteppingStone.StepSummary;
+
+public class SteppingStoneTest extends TestCase {
+	public void testLogRatioIsStableForLargeLikelihoods() {
+		double deltaBeta = 0.1;
+		double[] logLikelihoods = new double[] { -5000.0, -4990.0, -5020.0, -4985.0 };
+		StepSummary summary = new StepSummary(deltaBeta);
+		double naive = 0.0;
+		for (double logLikelihood : logLikelihoods) {
+			summary.add(logLikelihood);
+			// Fine for these values, but overflows for large Δβ·log L
+			naive += Math.exp(deltaBeta * logLikelihood);
+		}
+		assertEquals(Math.log(naive / logLikelihoods.length), summary.getLogRatio(), 1e-9);
+		assertEquals(-4998.75, summary.getMean(), 1e-9);
+		assertEquals(4, summary.getSampleCount());
+	}
+
+	public void testBetaSchedule() {
+		List<Chain> chains = new ArrayList<Chain>();
+		for (int k = 0; k <= 4; ++k) {
+			chains.add(new CoupledChainsTest.FixedChain(-1.0));
+		}
+		SteppingStone steppingStone = new SteppingStone(chains, 0.5);
+		assertEquals(4, steppingStone.getStepCount());
+		assertEquals(0.0, steppingStone.getBeta(0));
+		assertEquals(0.0625, steppingStone.getBeta(1), 1e-12);
+		assertEquals(1.0, steppingStone.getBeta(4));
+		assertEquals(0.0625, chains.get(1).getBeta(), 1e-12);
+		// No samples yet
+		assertEquals(0.0, steppingStone.getLogMarginalLikelihood());
+	}
+}
@@ -0,0 +1,89 @@
+package correlated;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import correlated.polycharacter.TransitionKernels;
+
+public class TransitionKernelsTest extends TestCase {
+	// Larger than one block, and not a multiple of the block size
+	static final int N = TransitionKernels.BLOCK + 7;
+
+	static double[] randomMatrix(Random random, int rows, int columns) {
+		double[] m = new double[rows * columns];
+		for (int i = 0; i < m.length; ++i) {
+			m[i] = random.nextDouble() - 0.5;
+		}
+		return m;
+	}
+
+	public void testMultiplyMatchesNaiveProduct() {
+		Random random = new Random(17);
+		double[] a = randomMatrix(random, N, N);
+		double[] b = randomMatrix(random, N, N);
+		double[] c = new double[N * N];
+		TransitionKernels.multiply(a, b, N, c);
+		for (int i = 0; i < N; ++i) {
+			for (int j = 0; j < N; ++j) {
+				double expected = 0.0;
+				for (int k = 0; k < N; ++k) {
+					expected += a[i * N + k] * b[k * N + j];
+				}
+				assertEquals(expected, c[i * N + j], 1e-12);
+			}
+		}
+	}
+
+	public void testTransitionProbabilitiesOfDiagonalSystem() {
+		// With U = U⁻¹ = I, P(t) is diag(exp(λt)).
+		int n = 3;
+		double[] identity = new double[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+		double[] values = new double[] { 0.0, -1.0, -2.0 };
+		double[] matrix = new double[n * n];
+		TransitionKernels.transitionProbabilities(identity, values, identity, n, 0.5, new double[n * n], matrix);
+		for (int i = 0; i < n; ++i) {
+			for (int j = 0; j < n; ++j) {
+				assertEquals(i == j ? Math.exp(0.5 * values[i]) : 0.0, matrix[i * n + j], 1e-15);
+			}
+		}
+	}
+
+	public void testPartialsProductMatchesNaiveProduct() {
+		Random random = new Random(23);
+		int patterns = TransitionKernels.BLOCK + 3;
+		double[] matrix = randomMatrix(random, N, N);
+		double[] partials = randomMatrix(random, patterns, N);
+		double[] result = new double[patterns * N];
+		TransitionKernels.partialsProduct(matrix, partials, N, patterns, result);
+		for (int p = 0; p < patterns; ++p) {
+			for (int i = 0; i < N; ++i) {
+				double expected = 0.0;
+				for (int j = 0; j < N; ++j) {
+					expected += matrix[i * N + j] * partials[p * N + j];
+				}
+				assertEquals(expected, result[p * N + i], 1e-12);
+			}
+		}
+	}
+
+	public void testTipProductMatchesPartialsProduct() {
+		Random random = new Random(29);
+		int patterns = 3;
+		double[] matrix = randomMatrix(random, N, N);
+		// One-hot, two allowed states and no allowed state
+		int[][] states = new int[][] { { N - 1 }, { 0, 2 }, {} };
+		double[] partials = new double[patterns * N];
+		for (int p = 0; p < patterns; ++p) {
+			for (int j : states[p]) {
+				partials[p * N + j] = 1.0;
+			}
+		}
+		double[] expected = new double[patterns * N];
+		TransitionKernels.partialsProduct(matrix, partials, N, patterns, expected);
+		double[] result = new double[patterns * N];
+		TransitionKernels.tipProduct(matrix, states, N, patterns, result);
+		for (int u = 0; u < patterns * N; ++u) {
+			assertEquals(expected[u], result[u], 1e-12);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package correlated;
+
+import junit.framework.TestCase;
+import correlated.polycharacter.TransitionMatrixCache;
+
+public class TransitionMatrixCacheTest extends TestCase {
+
+	public void testHitAfterPut() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4);
+		cache.invalidate();
+		double[] matrix = new double[] { 0.9, 0.1, 0.2, 0.8 };
+		double[] result = new double[4];
+		assertFalse(cache.get(0.5, result));
+		cache.put(cache.getVersion(), 0.5, matrix);
+		assertTrue(cache.get(0.5, result));
+		assertEquals(0.2, result[2], 0.0);
+		assertFalse(cache.get(0.25, result));
+		assertEquals(1.0 / 3.0, cache.getHitRate(), 1e-15);
+	}
+
+	public void testInvalidateDropsMatrices() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4);
+		cache.invalidate();
+		long version = cache.getVersion();
+		cache.put(version, 0.5, new double[] { 1.0 });
+		cache.invalidate();
+		assertFalse(cache.get(0.5, new double[1]));
+		// A matrix computed from the old rate matrix must not be cached.
+		cache.put(version, 0.5, new double[] { 1.0 });
+		assertFalse(cache.get(0.5, new double[1]));
+	}
+
+	public void testRestoreBringsBackStoredMatrices() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4);
+		cache.invalidate();
+		cache.put(cache.getVersion(), 0.5, new double[] { 1.0 });
+		cache.store();
+		cache.invalidate();
+		cache.put(cache.getVersion(), 0.5, new double[] { 2.0 });
+		cache.restore();
+		double[] result = new double[1];
+		assertTrue(cache.get(0.5, result));
+		assertEquals(1.0, result[0], 0.0);
+	}
+
+	public void testFullCacheDropsOnlyTheOldestMatrix() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4);
+		cache.invalidate();
+		for (int i = 0; i < 5; ++i) {
+			cache.put(cache.getVersion(), i, new double[] { i });
+		}
+		double[] result = new double[1];
+		assertFalse(cache.get(0.0, result));
+		for (int i = 1; i < 5; ++i) {
+			assertTrue(cache.get(i, result));
+			assertEquals((double) i, result[0], 0.0);
+		}
+		assertEquals(4, cache.getAllocated());
+	}
+
+	public void testDroppedGenerationsAreRecycled() {
+		TransitionMatrixCache cache = new TransitionMatrixCache(4);
+		for (int step = 0; step < 100; ++step) {
+			cache.invalidate();
+			for (int i = 0; i < 4; ++i) {
+				cache.put(cache.getVersion(), step + i, new double[] { step });
+			}
+			if (step % 3 == 0) {
+				cache.store();
+			} else {
+				cache.restore();
+			}
+		}
+		// The current and the stored generation hold at most 4 buffers each.
+		assertTrue(cache.getAllocated() <= 8);
+		double[] result = new double[1];
+		assertTrue(cache.get(99.0, result));
+		assertEquals(99.0, result[0], 0.0);
+	}
+}